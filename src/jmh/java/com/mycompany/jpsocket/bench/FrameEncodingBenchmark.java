@@ -0,0 +1,85 @@
+package com.mycompany.jpsocket.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mycompany.jpsocket.protocol.Compression;
+import com.mycompany.jpsocket.protocol.Frame;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+import com.mycompany.jpsocket.protocol.FrameType;
+import com.mycompany.jpsocket.server.BinaryProtocol;
+import com.mycompany.jpsocket.server.HistoryStore;
+import com.mycompany.jpsocket.server.LegacyProtocol;
+import com.mycompany.jpsocket.server.ServerProtocol;
+
+/**
+ * Codificación de un mensaje privado para el receptor con cada protocolo: v1 (texto con la
+ * hora ya formateada), v2 y v2 comprimido, además de {@link FrameCodec#encode(Frame)}, que usa
+ * el servidor NIO.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FrameEncodingBenchmark {
+
+    @Param({"40", "400"})
+    public int textLength;
+
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(8192);
+    private final DataOutputStream out = new DataOutputStream(buffer);
+    private final ServerProtocol compressed = BinaryProtocol.compressed(new Compression());
+    private HistoryStore.Entry entry;
+
+    @Setup
+    public void setup() {
+        StringBuilder text = new StringBuilder(textLength);
+        while (text.length() < textLength) {
+            text.append("buenas tardes, ¿vienes luego? ");
+        }
+        entry = new HistoryStore.Entry(120345, System.currentTimeMillis(), "ana", "luis", text.substring(0, textLength));
+    }
+
+    @Benchmark
+    public int legacyText() throws IOException {
+        return write(LegacyProtocol.INSTANCE);
+    }
+
+    @Benchmark
+    public int binaryText() throws IOException {
+        return write(BinaryProtocol.INSTANCE);
+    }
+
+    @Benchmark
+    public int compressedText() throws IOException {
+        return write(compressed);
+    }
+
+    @Benchmark
+    public ByteBuffer encodeFrame() throws IOException {
+        return FrameCodec.encode(Frame.text(FrameType.TEXT, entry.id(), entry.sender(), entry.receiver(), entry.text()));
+    }
+
+    private int write(ServerProtocol protocol) throws IOException {
+        buffer.reset();
+        protocol.writeText(out, entry, "luis");
+        return buffer.size();
+    }
+}
@@ -0,0 +1,89 @@
+package com.mycompany.jpsocket.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mycompany.jpsocket.server.HistoryStore;
+
+/**
+ * Historial en memoria (sin diario en disco): guardar un mensaje, desde un hilo y desde varios
+ * a la vez, leer la página más reciente y dar formato a una entrada con su hora.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+
+    /** Historial compartido por todos los hilos, ya lleno. */
+    @State(Scope.Benchmark)
+    public static class Store {
+        @Param({"1", "1000"})
+        public int conversations;
+
+        HistoryStore history;
+        String[] users;
+        HistoryStore.Entry entry;
+
+        @Setup
+        public void setup() {
+            history = new HistoryStore(16, 500, 0, 256L * 1024 * 1024, null);
+            users = new String[conversations + 1];
+            for (int i = 0; i < users.length; i++) {
+                users[i] = "usuario-" + i;
+            }
+            for (int i = 0; i < conversations; i++) {
+                for (int j = 0; j < 500; j++) {
+                    entry = history.append(users[i], users[i + 1], "mensaje de prueba número " + j);
+                }
+            }
+        }
+    }
+
+    /** Conversación que toca a cada hilo en cada llamada. */
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int conversation(Store store) {
+            return next++ % store.conversations;
+        }
+    }
+
+    @Benchmark
+    public HistoryStore.Entry append(Store store, Cursor cursor) {
+        int i = cursor.conversation(store);
+        return store.history.append(store.users[i], store.users[i + 1], "hola, ¿qué tal?");
+    }
+
+    @Benchmark
+    @Threads(4)
+    public HistoryStore.Entry appendContended(Store store, Cursor cursor) {
+        int i = cursor.conversation(store);
+        return store.history.append(store.users[i], store.users[i + 1], "hola, ¿qué tal?");
+    }
+
+    @Benchmark
+    public HistoryStore.Page latestPage(Store store, Cursor cursor) {
+        int i = cursor.conversation(store);
+        return store.history.page(store.users[i + 1], store.users[i], 0, 0, 50);
+    }
+
+    @Benchmark
+    public String render(Store store) {
+        return store.entry.render("usuario-0");
+    }
+}
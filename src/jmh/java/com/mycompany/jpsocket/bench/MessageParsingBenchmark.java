@@ -0,0 +1,63 @@
+package com.mycompany.jpsocket.bench;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mycompany.jpsocket.protocol.Frame;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+import com.mycompany.jpsocket.protocol.FrameType;
+import com.mycompany.jpsocket.server.HistoryPaging;
+import com.mycompany.jpsocket.server.ModifiedUtf8;
+
+/**
+ * Lectura de lo que llega de un cliente: una trama v2 de texto, una línea del protocolo antiguo
+ * y el cuerpo de una petición de historial ({@code usuario|otro|before=..|limit=..}).
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageParsingBenchmark {
+
+    private ByteBuffer textFrame;
+    private ByteBuffer legacyLine;
+    private String historyBody;
+
+    @Setup
+    public void setup() throws IOException {
+        textFrame = FrameCodec.encode(Frame.text(FrameType.TEXT, 0, "ana", "luis",
+                "hola, ¿cómo estás? nos vemos mañana a las cinco en la puerta de la biblioteca"));
+        legacyLine = ModifiedUtf8.encode("RECEIVER:luis");
+        historyBody = "ana|luis|before=120345|limit=50";
+    }
+
+    @Benchmark
+    public String decodeTextFrame() throws IOException {
+        return FrameCodec.tryDecode(textFrame.duplicate()).text();
+    }
+
+    @Benchmark
+    public String decodeLegacyLine() throws IOException {
+        String line = ModifiedUtf8.tryDecode(legacyLine.duplicate());
+        return line.startsWith("RECEIVER:") ? line.substring(9).trim() : line;
+    }
+
+    @Benchmark
+    public HistoryPaging.Request parseHistoryRequest() {
+        return HistoryPaging.parse(historyBody);
+    }
+}
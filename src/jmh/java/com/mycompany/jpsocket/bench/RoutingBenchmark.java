@@ -0,0 +1,62 @@
+package com.mycompany.jpsocket.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.mycompany.jpsocket.server.HistoryStore;
+import com.mycompany.jpsocket.server.SessionRegistry;
+
+/**
+ * Enrutado de un mensaje privado: buscar al destinatario entre los conectados y calcular la
+ * clave de la conversación, con pocos y con muchos clientes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RoutingBenchmark {
+
+    @Param({"100", "10000"})
+    public int sessions;
+
+    private final SessionRegistry<Object> registry = new SessionRegistry<>();
+    private String[] names;
+    private int next;
+
+    @Setup
+    public void setup() {
+        names = new String[sessions];
+        for (int i = 0; i < sessions; i++) {
+            names[i] = registry.register("usuario-" + i, new Object());
+        }
+    }
+
+    @Benchmark
+    public Object lookup() {
+        return registry.lookup(names[next++ % sessions]);
+    }
+
+    @Benchmark
+    public Object lookupMissing() {
+        return registry.lookup("desconectado");
+    }
+
+    @Benchmark
+    public String conversationKey() {
+        int i = next++ % sessions;
+        return HistoryStore.conversationKey(names[i], names[(i + 1) % sessions]);
+    }
+}
@@ -7,8 +7,13 @@ package com.mycompany.jpsocket;
 import java.io.IOException;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import com.mycompany.jpsocket.client.ClientHandler;
+import com.mycompany.jpsocket.server.Log;
+import com.mycompany.jpsocket.server.MetricsEndpoint;
+import com.mycompany.jpsocket.server.NioChatServer;
 
 /**
  *
@@ -17,15 +22,55 @@ import com.mycompany.jpsocket.client.ClientHandler;
 public class JPSocket {
 
     public static void main(String[] args) {
-        try (ServerSocket serverSocket = new ServerSocket(9999)) { // Crea un servidor en el puerto 9999
-            System.out.println("Servidor iniciado en el puerto 9999...");
+        ServerConfig config = ServerConfig.load(args); // Lee el modo y el puerto (--mode=nio, --port=9999)
+        ServerConfig.set(config);
+        MetricsEndpoint.start(config); // JMX y, con --metrics.port, HTTP para Prometheus
+        if (config.getMode() == ServerConfig.Mode.NIO) {
+            try {
+                new NioChatServer(config).start(); // Selector no bloqueante con hilos fijos
+            } catch (IOException e) {
+                Log.error("Error en el servidor", "error", e.getMessage());
+            }
+            return;
+        }
+
+        ExecutorService executor = newHandlerExecutor(config.getMode()); // Hilos de plataforma o virtuales
+        ClientHandler.joinCluster(config); // Con --cluster.port, enlaza con los demás nodos
+        try (ServerSocket serverSocket = new ServerSocket(config.getPort())) { // Crea un servidor en el puerto configurado
+            Log.info("Servidor iniciado", "puerto", config.getPort(), "modo", config.getMode());
             while (true) { // Bucle infinito para aceptar conexiones de clientes
                 Socket clientSocket = serverSocket.accept(); // Acepta una conexión de cliente
-                System.out.println("Nuevo cliente conectado" + clientSocket); // Imprime un mensaje
-                new Thread(new ClientHandler(clientSocket)).start(); // Crea un nuevo hilo para manejar al cliente conectado
+                Log.info("Nuevo cliente conectado", "socket", clientSocket.getRemoteSocketAddress()); // Registra la conexión
+                executor.execute(new ClientHandler(clientSocket, executor)); // Atiende al cliente conectado en su propio hilo
             }
         } catch (IOException e) {
-            System.out.println("Error en el servidor: " + e.getMessage());
+            Log.error("Error en el servidor", "error", e.getMessage());
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * Crea el ejecutor que atiende a cada {@link ClientHandler}.
+     * En modo {@code VIRTUAL} se usa {@code Executors.newVirtualThreadPerTaskExecutor()}; se obtiene
+     * por reflexión para que el proyecto siga compilando con JDK 17 y, si la JVM no lo ofrece,
+     * se vuelve a un hilo de plataforma por cliente.
+     *
+     * @param mode Modo seleccionado al arrancar.
+     * @return Un ejecutor que crea un hilo nuevo por tarea.
+     */
+    static ExecutorService newHandlerExecutor(ServerConfig.Mode mode) {
+        if (mode == ServerConfig.Mode.VIRTUAL) {
+            try {
+                ExecutorService virtual = (ExecutorService) Executors.class
+                        .getMethod("newVirtualThreadPerTaskExecutor")
+                        .invoke(null);
+                Log.info("Usando hilos virtuales para los clientes");
+                return virtual;
+            } catch (ReflectiveOperationException e) {
+                Log.warn("Hilos virtuales no disponibles en esta JVM, se usan hilos de plataforma", "java", Runtime.version());
+            }
         }
+        return Executors.newCachedThreadPool();
     }
 }
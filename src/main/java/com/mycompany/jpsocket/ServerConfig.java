@@ -0,0 +1,114 @@
+package com.mycompany.jpsocket;
+
+import java.util.Properties;
+
+import com.mycompany.jpsocket.server.FlushPolicy;
+import com.mycompany.jpsocket.server.OutboundQueue;
+
+/**
+ * Configuración del servidor leída al arrancar.
+ * Los valores se toman de las propiedades del sistema con prefijo
+ * {@code jpsocket.} (por ejemplo {@code -Djpsocket.mode=nio}) y pueden
+ * sobrescribirse con argumentos {@code --clave=valor} en la línea de comandos.
+ */
+public final class ServerConfig {
+
+    private static final String PREFIX = "jpsocket.";
+    private static volatile ServerConfig current = load(new String[0]);
+
+    /** Motor de red utilizado para atender a los clientes. */
+    public enum Mode {
+        THREADS, // Un hilo de plataforma por cliente (modo original)
+        VIRTUAL, // Un hilo virtual por cliente (requiere Java 21)
+        NIO      // Selector no bloqueante con un número fijo de hilos
+    }
+
+    private final Properties values;
+
+    private ServerConfig(Properties values) {
+        this.values = values;
+    }
+
+    /**
+     * Construye la configuración a partir de las propiedades del sistema y los argumentos.
+     *
+     * @param args Argumentos de la línea de comandos con forma {@code --clave=valor}.
+     * @return La configuración resultante.
+     */
+    public static ServerConfig load(String[] args) {
+        Properties values = new Properties();
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PREFIX)) {
+                values.setProperty(name.substring(PREFIX.length()), System.getProperty(name));
+            }
+        }
+        for (String arg : args) {
+            if (arg.startsWith("--") && arg.indexOf('=') > 2) { // Solo se aceptan argumentos --clave=valor
+                int eq = arg.indexOf('=');
+                values.setProperty(arg.substring(2, eq), arg.substring(eq + 1));
+            }
+        }
+        return new ServerConfig(values);
+    }
+
+    /** Configuración activa del proceso. */
+    public static ServerConfig get() {
+        return current;
+    }
+
+    /** Reemplaza la configuración activa; se llama una sola vez al arrancar. */
+    public static void set(ServerConfig config) {
+        current = config;
+    }
+
+    public int getPort() {
+        return getInt("port", 9999);
+    }
+
+    public Mode getMode() {
+        return Mode.valueOf(getString("mode", "threads").trim().toUpperCase());
+    }
+
+    /** Número de hilos de bucle de eventos en modo NIO. */
+    public int getEventLoops() {
+        return getInt("nio.loops", Runtime.getRuntime().availableProcessors());
+    }
+
+    /** Tramas que puede acumular la cola de salida de un cliente. */
+    public int getQueueCapacity() {
+        return getInt("queue.capacity", 1024);
+    }
+
+    /** Política cuando la cola de salida de un cliente se llena ({@code drop_oldest} o {@code disconnect}). */
+    public OutboundQueue.OverflowPolicy getOverflowPolicy() {
+        return OutboundQueue.OverflowPolicy.valueOf(getString("queue.overflow", "drop_oldest").trim().toUpperCase());
+    }
+
+    /**
+     * Cuándo se vacía el buffer de salida de un cliente: {@code write.flush} ({@code immediate},
+     * {@code max_delay} o {@code max_bytes}), {@code write.flush.delay.us} y {@code write.flush.bytes}.
+     */
+    public FlushPolicy getFlushPolicy() {
+        return new FlushPolicy(FlushPolicy.Mode.valueOf(getString("write.flush", "max_bytes").trim().toUpperCase()),
+                getLong("write.flush.delay.us", 500) * 1000, getInt("write.flush.bytes", 64 * 1024));
+    }
+
+    public String getString(String key, String defaultValue) {
+        return values.getProperty(key, defaultValue);
+    }
+
+    public int getInt(String key, int defaultValue) {
+        String value = values.getProperty(key);
+        return value == null ? defaultValue : Integer.parseInt(value.trim());
+    }
+
+    public long getLong(String key, long defaultValue) {
+        String value = values.getProperty(key);
+        return value == null ? defaultValue : Long.parseLong(value.trim());
+    }
+
+    public boolean getBoolean(String key, boolean defaultValue) {
+        String value = values.getProperty(key);
+        return value == null ? defaultValue : Boolean.parseBoolean(value.trim());
+    }
+}
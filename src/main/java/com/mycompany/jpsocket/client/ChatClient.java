@@ -0,0 +1,716 @@
+package com.mycompany.jpsocket.client;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.ProtocolException;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import com.mycompany.jpsocket.protocol.Compression;
+import com.mycompany.jpsocket.protocol.Frame;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+import com.mycompany.jpsocket.protocol.FrameType;
+import com.mycompany.jpsocket.protocol.HistoryRecord;
+
+/**
+ * Cliente del chat sin interfaz gráfica, con el protocolo v2. Lo usa {@link JFClient} y sirve
+ * igual para bots, integraciones o pruebas.
+ * <p>
+ * Los envíos no bloquean: se encolan y devuelven un {@link CompletableFuture} que se completa
+ * cuando la trama ha salido por el socket. Un hilo escritor vacía la cola en lotes, con una sola
+ * escritura por lote, así que se pueden encadenar muchas peticiones sin esperar respuestas; las
+ * páginas de historial se emparejan con sus peticiones por orden de llegada. El escritor no
+ * envía más tramas de las que el servidor admite ({@code CREDIT}): si se agotan, espera.
+ * <p>
+ * Lo que llega del servidor se entrega al {@link Listener} desde el hilo lector del cliente, en
+ * orden; el listener no debe bloquearse (una interfaz gráfica debe pasar a su propio hilo). Si la
+ * conexión se corta, el cliente vuelve a conectar con esperas crecientes (de
+ * {@link #setReconnect(long, long)}) y lo que quede en la cola se envía al reconectar; las
+ * peticiones de historial y las subidas en curso fallan, y una subida repetida continúa donde se quedó.
+ */
+public final class ChatClient implements AutoCloseable {
+
+    /** Recibe lo que llega del servidor. Todos los métodos tienen una implementación vacía. */
+    public interface Listener {
+        /** Conectado; {@code name} es el nombre asignado (con sufijo si el pedido estaba en uso). */
+        default void connected(String name) {
+        }
+
+        /**
+         * Conexión perdida.
+         *
+         * @param retryMillis Espera antes de reconectar, o -1 si el cliente no lo va a intentar.
+         */
+        default void disconnected(IOException cause, long retryMillis) {
+        }
+
+        /** Usuarios conectados (sin uno mismo), tras la lista inicial y tras cada cambio. */
+        default void users(List<String> users) {
+        }
+
+        default void text(long id, String sender, String receiver, String text) {
+        }
+
+        default void roomText(String room, String sender, String text) {
+        }
+
+        default void notice(String text) {
+        }
+
+        default void fileBegin(long transferId, String sender, String fileName, long size) {
+        }
+
+        /** Trozo de un archivo ya comprobado (posición y CRC); {@code data} solo es válido durante la llamada. */
+        default void fileChunk(long transferId, long offset, ByteBuffer data) {
+        }
+
+        /** Fin de un archivo; {@code complete} es {@code false} si llegó dañado o se cortó la conexión. */
+        default void fileEnd(long transferId, boolean complete) {
+        }
+
+        /** Cualquier trama recibida, antes de los métodos anteriores; para lo que no cubren. */
+        default void frame(Frame frame) {
+        }
+    }
+
+    /** Respuesta a {@link #history(String, long, long, int)}. */
+    public record HistoryPage(List<HistoryRecord> records, boolean hasMore) {
+    }
+
+    private static final int QUEUE_CAPACITY = 10_000;
+    private static final int BATCH = 256; // Tramas como mucho por escritura
+    private static final int UPLOAD_WINDOW = 8; // Trozos de una subida encolados a la vez
+    private static final int UPLOAD_RETRIES = 5; // Reenvíos pedidos por el servidor antes de rendirse
+    private static final long ACK_TIMEOUT_SECONDS = 60;
+
+    // Una trama pendiente; reply es la página esperada si es una petición de historial
+    private record Outgoing(Frame frame, boolean compressible, CompletableFuture<Void> sent,
+            CompletableFuture<HistoryPage> reply) {
+    }
+
+    // Un socket ya saludado; al cerrarse fallan las peticiones de historial sin respuesta
+    private static final class Connection {
+        final Socket socket;
+        final DataInputStream input;
+        final DataOutputStream output;
+        final Compression compression = new Compression(); // Se ofrece siempre; descomprime lo que llegue
+        volatile boolean compressing; // El servidor aceptó: también se comprime lo que se envía
+        private final ArrayDeque<CompletableFuture<HistoryPage>> replies = new ArrayDeque<>();
+        private boolean closed;
+        private long credit = -1; // Tramas que aún se pueden enviar; -1 si el servidor no usa créditos
+
+        Connection(Socket socket) throws IOException {
+            this.socket = socket;
+            this.input = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+            this.output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream(), 64 * 1024));
+        }
+
+        // El escritor anota la respuesta antes de enviar la petición
+        synchronized boolean expect(CompletableFuture<HistoryPage> reply) {
+            if (closed) {
+                return false;
+            }
+            replies.add(reply);
+            return true;
+        }
+
+        synchronized CompletableFuture<HistoryPage> nextReply() {
+            return replies.poll();
+        }
+
+        synchronized void grant(long frames) {
+            credit = credit < 0 ? frames : credit + frames;
+            notifyAll();
+        }
+
+        // Gasta un crédito; false si no queda ninguno
+        synchronized boolean tryCredit() {
+            if (credit == 0) {
+                return false;
+            }
+            if (credit > 0) {
+                credit--;
+            }
+            return true;
+        }
+
+        // Espera al siguiente CREDIT del servidor y gasta uno
+        synchronized void awaitCredit() throws IOException, InterruptedException {
+            while (credit == 0 && !closed) {
+                wait();
+            }
+            if (closed) {
+                throw new IOException("Conexión cerrada");
+            }
+            if (credit > 0) {
+                credit--;
+            }
+        }
+
+        void close(IOException cause) {
+            synchronized (this) {
+                closed = true;
+                for (CompletableFuture<HistoryPage> reply : replies) {
+                    reply.completeExceptionally(cause);
+                }
+                replies.clear();
+                notifyAll(); // Despierta al escritor si esperaba créditos
+            }
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    private final String host;
+    private final int port;
+    private final String requestedName;
+    private final Listener listener;
+    private boolean compress = true;
+    private long reconnectMillis = 500;
+    private long maxReconnectMillis = 30_000;
+
+    private final BlockingQueue<Outgoing> outgoing = new LinkedBlockingQueue<>(QUEUE_CAPACITY);
+    private final Object connectionLock = new Object();
+    private Connection connection; // Protegido por connectionLock; null mientras no hay conexión
+    private final CompletableFuture<String> firstConnection = new CompletableFuture<>();
+    private final Map<Long, BlockingQueue<Long>> uploadAcks = new ConcurrentHashMap<>(); // FILE_ACK de cada subida
+    private volatile String name;
+    private volatile List<String> users = List.of();
+    private volatile boolean closed;
+    private Thread reader;
+    private Thread writer;
+
+    // Solo los usa el hilo lector
+    private final LinkedHashSet<String> roster = new LinkedHashSet<>();
+    private long presenceVersion = -1; // -1 mientras no llega la lista completa
+    private final Map<Long, Long> incomingFiles = new HashMap<>(); // Id de transferencia -> siguiente posición, -1 si está dañado
+
+    /**
+     * @param requestedName Nombre con el que registrarse; el servidor puede añadirle un sufijo.
+     * @param listener Destino de lo que llega del servidor.
+     */
+    public ChatClient(String host, int port, String requestedName, Listener listener) {
+        this.host = host;
+        this.port = port;
+        this.requestedName = requestedName;
+        this.name = requestedName;
+        this.listener = listener;
+    }
+
+    /** Ofrece compresión al saludar (por defecto sí); se llama antes de {@link #connect()}. */
+    public void setCompression(boolean compress) {
+        this.compress = compress;
+    }
+
+    /**
+     * Esperas entre intentos de reconexión: empiezan en {@code initialMillis} y se duplican hasta
+     * {@code maxMillis}. Con {@code initialMillis} a 0 no se reconecta. Se llama antes de {@link #connect()}.
+     */
+    public void setReconnect(long initialMillis, long maxMillis) {
+        this.reconnectMillis = initialMillis;
+        this.maxReconnectMillis = Math.max(initialMillis, maxMillis);
+    }
+
+    /**
+     * Arranca los hilos del cliente y conecta.
+     *
+     * @return Se completa con el nombre asignado en la primera conexión; falla si no se pudo
+     *         conectar y la reconexión está desactivada.
+     */
+    public synchronized CompletableFuture<String> connect() {
+        if (reader == null) {
+            reader = daemon(this::readLoop, "chat-reader-" + requestedName);
+            writer = daemon(this::writeLoop, "chat-writer-" + requestedName);
+        }
+        return firstConnection;
+    }
+
+    /** Nombre asignado por el servidor (o el pedido, antes de conectar). */
+    public String name() {
+        return name;
+    }
+
+    /** Usuarios conectados según la última lista recibida, sin uno mismo. */
+    public List<String> users() {
+        return users;
+    }
+
+    public boolean isConnected() {
+        synchronized (connectionLock) {
+            return connection != null;
+        }
+    }
+
+    /** Mensaje privado. */
+    public CompletableFuture<Void> sendText(String receiver, String text) {
+        return enqueue(Frame.text(FrameType.TEXT, 0, name, receiver, text), true, null);
+    }
+
+    /** Mensaje a una sala de la que se es miembro. */
+    public CompletableFuture<Void> sendRoomText(String room, String text) {
+        return enqueue(Frame.text(FrameType.ROOM_TEXT, 0, name, room, text), true, null);
+    }
+
+    public CompletableFuture<Void> joinRoom(String room) {
+        return enqueue(Frame.text(FrameType.ROOM_JOIN, 0, name, null, room), true, null);
+    }
+
+    public CompletableFuture<Void> leaveRoom(String room) {
+        return enqueue(Frame.text(FrameType.ROOM_LEAVE, 0, name, null, room), true, null);
+    }
+
+    /**
+     * Pide una página de la conversación con {@code peer}. Se pueden pedir varias seguidas sin
+     * esperar: las respuestas llegan en el mismo orden.
+     *
+     * @param beforeId Mensajes anteriores a este id (0 para los más recientes).
+     * @param afterId Mensajes posteriores a este id (0 si no se usa).
+     */
+    public CompletableFuture<HistoryPage> history(String peer, long beforeId, long afterId, int limit) {
+        String body = name + "|" + peer + (beforeId > 0 ? "|before=" + beforeId : "")
+                + (afterId > 0 ? "|after=" + afterId : "") + "|limit=" + limit;
+        CompletableFuture<HistoryPage> reply = new CompletableFuture<>();
+        enqueue(Frame.text(FrameType.HISTORY_REQUEST, 0, name, null, body), true, reply);
+        return reply;
+    }
+
+    /**
+     * Sube un archivo en trozos de 64 KB con su CRC, en un hilo propio. El servidor confirma con
+     * {@code FILE_ACK} desde dónde seguir: al empezar (0, o lo ya recibido si la subida se cortó
+     * antes), si un trozo llega mal y al terminar. El id depende del archivo y del receptor, así
+     * que volver a enviarlo tras reconectar continúa donde se quedó. La cabecera lleva el SHA-256
+     * del archivo: si el servidor ya lo tiene guardado confirma el tamaño total y no se sube.
+     *
+     * @return Se completa con el tamaño del archivo cuando el servidor lo ha recibido entero.
+     */
+    public CompletableFuture<Long> sendFile(File file, String receiver) {
+        CompletableFuture<Long> done = new CompletableFuture<>();
+        daemon(() -> {
+            try {
+                done.complete(upload(file, receiver));
+            } catch (IOException | RuntimeException e) {
+                done.completeExceptionally(e);
+            }
+        }, "chat-upload-" + file.getName());
+        return done;
+    }
+
+    /** Cierra la conexión y detiene los hilos; lo pendiente falla. */
+    @Override
+    public void close() {
+        closed = true;
+        IOException cause = new IOException("Cliente cerrado");
+        synchronized (connectionLock) {
+            if (connection != null) {
+                connection.close(cause);
+                connection = null;
+            }
+            connectionLock.notifyAll();
+        }
+        if (writer != null) {
+            writer.interrupt();
+        }
+        failQueued(cause);
+        firstConnection.completeExceptionally(cause);
+    }
+
+    private CompletableFuture<Void> enqueue(Frame frame, boolean compressible, CompletableFuture<HistoryPage> reply) {
+        CompletableFuture<Void> sent = new CompletableFuture<>();
+        if (reply != null) {
+            sent.whenComplete((ignored, error) -> {
+                if (error != null) {
+                    reply.completeExceptionally(error);
+                }
+            });
+        }
+        if (closed) {
+            sent.completeExceptionally(new IOException("Cliente cerrado"));
+        } else if (!outgoing.offer(new Outgoing(frame, compressible, sent, reply))) {
+            sent.completeExceptionally(new IOException("Demasiados envíos pendientes"));
+        }
+        return sent;
+    }
+
+    // Hilo escritor: espera conexión y envía la cola en lotes, con un solo flush por lote
+    private void writeLoop() {
+        List<Outgoing> batch = new ArrayList<>(BATCH);
+        try {
+            while (!closed) {
+                batch.add(outgoing.take());
+                Connection current = awaitConnection();
+                if (current == null) {
+                    break;
+                }
+                outgoing.drainTo(batch, BATCH - 1);
+                try {
+                    for (Outgoing item : batch) {
+                        if (item.reply() != null && !current.expect(item.reply())) {
+                            throw new IOException("Conexión cerrada");
+                        }
+                        if (!current.tryCredit()) {
+                            current.output.flush(); // Lo ya escrito debe llegar para que el servidor devuelva créditos
+                            current.awaitCredit();
+                        }
+                        Frame frame = item.frame();
+                        FrameCodec.write(current.output, current.compressing && item.compressible()
+                                ? current.compression.compress(frame) : frame);
+                    }
+                    current.output.flush();
+                    for (Outgoing item : batch) {
+                        item.sent().complete(null);
+                    }
+                } catch (IOException e) {
+                    for (Outgoing item : batch) {
+                        item.sent().completeExceptionally(e);
+                    }
+                    current.close(e); // El hilo lector lo detecta y reconecta
+                }
+                batch.clear();
+            }
+        } catch (InterruptedException e) {
+            // close()
+        }
+        IOException cause = new IOException("Cliente cerrado");
+        for (Outgoing item : batch) {
+            item.sent().completeExceptionally(cause);
+        }
+    }
+
+    private Connection awaitConnection() throws InterruptedException {
+        synchronized (connectionLock) {
+            while (connection == null && !closed) {
+                connectionLock.wait();
+            }
+            return closed ? null : connection;
+        }
+    }
+
+    // Hilo lector: conecta, entrega lo recibido y, si se corta, vuelve a conectar
+    private void readLoop() {
+        long delay = reconnectMillis;
+        while (!closed) {
+            Connection current = null;
+            try {
+                current = open();
+                delay = reconnectMillis;
+                synchronized (connectionLock) {
+                    if (closed) {
+                        current.close(new IOException("Cliente cerrado"));
+                        return;
+                    }
+                    connection = current;
+                    connectionLock.notifyAll();
+                }
+                listener.connected(name);
+                firstConnection.complete(name);
+                while (true) {
+                    dispatch(current, Compression.decode(FrameCodec.read(current.input), current.compression));
+                }
+            } catch (IOException error) {
+                IOException e = error instanceof EOFException ? new EOFException("El servidor cerró la conexión") : error;
+                if (current != null) {
+                    current.close(e);
+                    synchronized (connectionLock) {
+                        if (connection == current) {
+                            connection = null;
+                        }
+                    }
+                }
+                abortIncomingFiles();
+                if (closed) {
+                    return;
+                }
+                if (reconnectMillis <= 0) {
+                    listener.disconnected(e, -1);
+                    closed = true;
+                    failQueued(e);
+                    firstConnection.completeExceptionally(e);
+                    return;
+                }
+                long wait = delay / 2 + ThreadLocalRandom.current().nextLong(delay / 2 + 1); // Sin reconectar todos a la vez
+                listener.disconnected(e, wait);
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException interrupted) {
+                    return;
+                }
+                delay = Math.min(delay * 2, maxReconnectMillis);
+            }
+        }
+    }
+
+    // Abre el socket, negocia el protocolo v2 y espera el nombre asignado
+    private Connection open() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.connect(new InetSocketAddress(host, port), 10_000);
+            socket.setTcpNoDelay(true);
+            Connection current = new Connection(socket);
+            current.output.writeUTF(FrameCodec.HANDSHAKE);
+            current.output.flush();
+            String reply = current.input.readUTF();
+            if (!reply.equals(FrameCodec.HANDSHAKE_OK)) {
+                throw new IOException("El servidor no admite el protocolo v2: " + reply);
+            }
+            FrameCodec.write(current.output, new Frame(FrameType.HELLO, compress ? Compression.FLAG_OFFER : 0, 0,
+                    null, null, requestedName.getBytes(StandardCharsets.UTF_8)));
+            current.output.flush();
+            Frame first = Compression.decode(FrameCodec.read(current.input), current.compression);
+            if (first.getType() == FrameType.NOTICE) {
+                throw new IOException(first.text()); // Nombre rechazado
+            }
+            if (first.getType() != FrameType.NAME) {
+                throw new IOException("Se esperaba NAME y llegó " + first.getType());
+            }
+            name = first.text();
+            current.compressing = first.hasFlag(Compression.FLAG_OFFER);
+            if (first.getMessageId() > 0) {
+                current.grant(first.getMessageId()); // Créditos iniciales
+            }
+            presenceVersion = -1; // La lista completa llega tras el saludo
+            return current;
+        } catch (IOException e) {
+            socket.close();
+            throw e;
+        }
+    }
+
+    private void dispatch(Connection current, Frame frame) throws IOException {
+        listener.frame(frame);
+        switch (frame.getType()) {
+            case USERLIST:
+                roster.clear();
+                for (String user : frame.text().split("\n")) {
+                    if (!user.isEmpty()) {
+                        roster.add(user);
+                    }
+                }
+                presenceVersion = frame.getMessageId();
+                publishUsers();
+                break;
+            case PRESENCE:
+                applyPresence(frame);
+                break;
+            case TEXT:
+                listener.text(frame.getMessageId(), frame.getSender(), frame.getReceiver(), frame.text());
+                break;
+            case ROOM_TEXT:
+                listener.roomText(frame.getReceiver(), frame.getSender(), frame.text());
+                break;
+            case NOTICE:
+                listener.notice(frame.text());
+                break;
+            case HISTORY_PAGE: {
+                CompletableFuture<HistoryPage> reply = current.nextReply();
+                if (reply != null) {
+                    reply.complete(new HistoryPage(FrameCodec.readHistory(frame.getPayload()), frame.hasFlag(FrameCodec.FLAG_HAS_MORE)));
+                }
+                break;
+            }
+            case NAME:
+                name = frame.text();
+                break;
+            case FILE_BEGIN:
+                incomingFiles.put(frame.getMessageId(), 0L);
+                listener.fileBegin(frame.getMessageId(), frame.getSender(), FrameCodec.fileName(frame), FrameCodec.fileSize(frame));
+                break;
+            case FILE_CHUNK: { // Puede intercalarse con mensajes y con otros archivos
+                Long expected = incomingFiles.get(frame.getMessageId());
+                if (expected == null || expected < 0) {
+                    break;
+                }
+                ByteBuffer data = FrameCodec.chunkData(frame);
+                if (FrameCodec.chunkOffset(frame) != expected || FrameCodec.crc(data) != FrameCodec.chunkCrc(frame)) {
+                    incomingFiles.put(frame.getMessageId(), -1L); // Se descarta al llegar FILE_END
+                    break;
+                }
+                incomingFiles.put(frame.getMessageId(), expected + data.remaining());
+                listener.fileChunk(frame.getMessageId(), expected, data);
+                break;
+            }
+            case FILE_END: {
+                Long expected = incomingFiles.remove(frame.getMessageId());
+                if (expected != null) {
+                    listener.fileEnd(frame.getMessageId(), expected >= 0);
+                }
+                break;
+            }
+            case CREDIT:
+                current.grant(frame.getMessageId());
+                break;
+            case FILE_ACK: {
+                BlockingQueue<Long> acks = uploadAcks.get(frame.getMessageId());
+                if (acks != null) {
+                    acks.add(FrameCodec.ackOffset(frame));
+                }
+                break;
+            }
+            default:
+                break;
+        }
+    }
+
+    // Cambios en la lista; si falta una versión intermedia se pide la lista completa
+    private void applyPresence(Frame frame) throws ProtocolException {
+        if (presenceVersion < 0 || frame.getMessageId() <= presenceVersion) {
+            return; // Aún no ha llegado la lista completa, o el cambio ya está incluido
+        }
+        if (FrameCodec.presenceBase(frame) != presenceVersion) {
+            presenceVersion = -1; // Se ignoran los cambios hasta recibirla
+            enqueue(new Frame(FrameType.USERLIST, 0, 0, null, null, null), true, null);
+            return;
+        }
+        for (String change : FrameCodec.presenceChanges(frame)) {
+            String user = change.substring(1);
+            if (user.equals(name)) {
+                continue;
+            }
+            if (change.charAt(0) == '+') {
+                roster.add(user);
+            } else {
+                roster.remove(user);
+            }
+        }
+        presenceVersion = frame.getMessageId();
+        publishUsers();
+    }
+
+    private void publishUsers() {
+        users = List.copyOf(roster);
+        listener.users(users);
+    }
+
+    // Los archivos a medias no se completarán en la nueva conexión
+    private void abortIncomingFiles() {
+        for (Long transferId : incomingFiles.keySet()) {
+            listener.fileEnd(transferId, false);
+        }
+        incomingFiles.clear();
+    }
+
+    private void failQueued(IOException cause) {
+        List<Outgoing> pending = new ArrayList<>();
+        outgoing.drainTo(pending);
+        for (Outgoing item : pending) {
+            item.sent().completeExceptionally(cause);
+        }
+    }
+
+    private long upload(File file, String to) throws IOException {
+        long id = transferId(file, to);
+        BlockingQueue<Long> acks = new LinkedBlockingQueue<>();
+        uploadAcks.put(id, acks);
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            byte[] buffer = new byte[FrameCodec.FILE_CHUNK_SIZE];
+            // Nombre y tamaño primero; cada trama lleva el receptor
+            await(enqueue(new Frame(FrameType.FILE_BEGIN, 0, id, name, to, FrameCodec.fileBegin(size, file.getName())), true, null));
+            long offset = waitAck(acks);
+            boolean compressible = !alreadyCompressed(channel, buffer);
+            ArrayDeque<CompletableFuture<Void>> window = new ArrayDeque<>();
+            int retries = 0;
+            while (offset < size) { // El tamaño total indica que el servidor ya lo tiene completo
+                while (offset < size) {
+                    Long rewind = acks.poll();
+                    if (rewind != null) { // Un trozo llegó mal: se reenvía desde ahí
+                        offset = rewind;
+                        if (++retries > UPLOAD_RETRIES) throw new IOException("demasiados reenvíos");
+                        continue;
+                    }
+                    int length = (int) Math.min(buffer.length, size - offset);
+                    ByteBuffer chunk = ByteBuffer.wrap(buffer, 0, length);
+                    while (chunk.hasRemaining()) {
+                        if (channel.read(chunk, offset + chunk.position()) < 0) {
+                            throw new IOException("el archivo se acortó durante el envío");
+                        }
+                    }
+                    // El contenido se copia a la trama, así que el buffer se puede reutilizar
+                    window.add(enqueue(new Frame(FrameType.FILE_CHUNK, 0, id, null, to,
+                            FrameCodec.fileChunk(offset, buffer, 0, length)), compressible, null));
+                    if (window.size() > UPLOAD_WINDOW) {
+                        await(window.poll()); // No se adelanta demasiado a lo que sale por el socket
+                    }
+                    offset += length;
+                }
+                window.clear();
+                enqueue(new Frame(FrameType.FILE_END, 0, id, null, to, null), true, null);
+                offset = waitAck(acks);
+                if (offset < size && ++retries > UPLOAD_RETRIES) throw new IOException("demasiados reenvíos");
+            }
+            return size;
+        } finally {
+            uploadAcks.remove(id);
+        }
+    }
+
+    private static void await(CompletableFuture<Void> sent) throws IOException {
+        try {
+            sent.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof IOException io ? io : new IOException(e.getCause());
+        }
+    }
+
+    // Mira los primeros bytes del archivo: los formatos ya comprimidos no se vuelven a comprimir
+    private static boolean alreadyCompressed(FileChannel channel, byte[] buffer) throws IOException {
+        ByteBuffer head = ByteBuffer.wrap(buffer, 0, (int) Math.min(16, channel.size()));
+        while (head.hasRemaining() && channel.read(head, head.position()) > 0) {
+            // Lee la cabecera completa
+        }
+        return Compression.isCompressed(buffer, 0, head.position());
+    }
+
+    private static long waitAck(BlockingQueue<Long> acks) throws IOException {
+        try {
+            Long offset = acks.poll(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (offset == null) {
+                throw new IOException("el servidor no confirmó la subida");
+            }
+            if (offset < 0) {
+                throw new IOException("el servidor rechazó la subida: demasiadas a la vez");
+            }
+            return offset;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("subida interrumpida");
+        }
+    }
+
+    // Id estable para el mismo archivo y receptor, para poder reanudar la subida
+    private static long transferId(File file, String to) {
+        String key = file.getAbsolutePath() + '|' + file.length() + '|' + file.lastModified() + '|' + to;
+        return UUID.nameUUIDFromBytes(key.getBytes(StandardCharsets.UTF_8)).getMostSignificantBits();
+    }
+
+    private static Thread daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+}
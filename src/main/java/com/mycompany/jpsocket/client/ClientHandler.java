@@ -3,28 +3,70 @@
     import java.io.DataInputStream;
     import java.io.DataOutputStream;
     import java.io.File;
-    import java.io.FileInputStream;
-    import java.io.FileOutputStream;
     import java.io.IOException;
+    import java.net.ProtocolException;
     import java.net.Socket;
-    import java.time.LocalTime;
-    import java.time.format.DateTimeFormatter;
+    import java.nio.ByteBuffer;
     import java.util.ArrayList;
-    import java.util.Collections;
-    import java.util.HashMap;
+    import java.util.Collection;
     import java.util.List;
-    import java.util.Map;
+    import java.util.concurrent.Executor;
+    import java.util.concurrent.Semaphore;
+    import java.util.concurrent.TimeUnit;
+    import java.util.concurrent.atomic.AtomicLong;
+
+    import com.mycompany.jpsocket.ServerConfig;
+    import com.mycompany.jpsocket.protocol.Compression;
+    import com.mycompany.jpsocket.protocol.Frame;
+    import com.mycompany.jpsocket.protocol.FrameCodec;
+    import com.mycompany.jpsocket.protocol.FrameType;
+    import com.mycompany.jpsocket.server.BatchingOutputStream;
+    import com.mycompany.jpsocket.server.BinaryProtocol;
+    import com.mycompany.jpsocket.server.AttachmentStore;
+    import com.mycompany.jpsocket.server.ChunkDeflater;
+    import com.mycompany.jpsocket.server.Cluster;
+    import com.mycompany.jpsocket.server.CountingInputStream;
+    import com.mycompany.jpsocket.server.FileTransfer;
+    import com.mycompany.jpsocket.server.FlowControl;
+    import com.mycompany.jpsocket.server.FlushPolicy;
+    import com.mycompany.jpsocket.server.HistoryPaging;
+    import com.mycompany.jpsocket.server.HistoryStore;
+    import com.mycompany.jpsocket.server.LegacyProtocol;
+    import com.mycompany.jpsocket.server.Log;
+    import com.mycompany.jpsocket.server.ModifiedUtf8;
+    import com.mycompany.jpsocket.server.OutboundFrame;
+    import com.mycompany.jpsocket.server.OutboundQueue;
+    import com.mycompany.jpsocket.server.Presence;
+    import com.mycompany.jpsocket.server.RoomMessage;
+    import com.mycompany.jpsocket.server.Rooms;
+    import com.mycompany.jpsocket.server.ServerMetrics;
+    import com.mycompany.jpsocket.server.ServerProtocol;
+    import com.mycompany.jpsocket.server.SessionRegistry;
+    import com.mycompany.jpsocket.server.WriteStats;
 
     public class ClientHandler implements Runnable {
-        private static final List<ClientHandler> clients = Collections.synchronizedList(new ArrayList<>());
+        private static final SessionRegistry<ClientHandler> clients = new SessionRegistry<>(); // Clientes conectados por nombre
+        private static final AtomicLong transferIds = new AtomicLong(); // Ids de los archivos reenviados
+        private static final Presence presence = new Presence(ClientHandler::publishPresence); // Altas y bajas agrupadas
+        private static final Rooms<ClientHandler> rooms = new Rooms<>(); // Salas y sus miembros
+        private static volatile Cluster cluster = Cluster.disabled(); // Otros nodos, si se arranca en modo clúster
         private String currentReceiver = null;
+        private String currentRoom = null; // Sala del siguiente mensaje (protocolo antiguo)
 
         private final Socket socket; // Socket del cliente
-        private String clientName; // Nombre del cliente, puede ser utilizado para personalizar mensajes
+        private volatile String clientName; // Nombre del cliente, puede ser utilizado para personalizar mensajes
         private DataInputStream input; // Stream de entrada para recibir mensajes
         private DataOutputStream output; // Stream de salida para enviar mensajes
-        private final Map<String, List<String>> data = new HashMap<>(); // Mapa para almacenar datos
-        private DateTimeFormatter formatter = DateTimeFormatter.ofPattern("HH:mm");
+        private BatchingOutputStream buffer; // Buffer bajo output; lo vacía el hilo escritor según flushPolicy
+        private final WriteStats writeStats = new WriteStats(); // De esta conexión; se suman también al total
+        private final FlushPolicy flushPolicy;
+        private final OutboundQueue outbound; // Cola de salida que vacía el hilo escritor de este cliente
+        private final Executor executor; // Ejecutor donde corre el hilo escritor
+        private final HistoryStore history = HistoryStore.shared(); // Historial compartido por todo el servidor
+        private volatile ServerProtocol protocol = LegacyProtocol.INSTANCE; // Protocolo negociado al conectar
+
+        private FileTransfer upload; // Archivo que se está recibiendo y reenviando
+        private FlowControl flow; // Límites de lo que envía este cliente, desde que se registra
 
         /**
          * Constructor que inicializa el socket y los streams de entrada y salida.
@@ -32,53 +74,146 @@
          * @param socket El socket del cliente.
          */
         public ClientHandler(Socket socket) {
+            this(socket, task -> new Thread(task).start());
+        }
+
+        /**
+         * Constructor que además indica dónde ejecutar el hilo escritor del cliente.
+         *
+         * @param socket El socket del cliente.
+         * @param executor Ejecutor para el hilo que vacía la cola de salida.
+         */
+        public ClientHandler(Socket socket, Executor executor) {
             this.socket = socket; // Inicializa el socket del cliente
+            this.executor = executor;
+            ServerConfig config = ServerConfig.get();
+            this.outbound = new OutboundQueue(config.getQueueCapacity(), config.getOverflowPolicy());
+            this.flushPolicy = config.getFlushPolicy();
             // Inicializa los streams de entrada y salida
             try {
-                input = new DataInputStream(socket.getInputStream()); // Stream de entrada para recibir mensajes
-                output = new DataOutputStream(socket.getOutputStream()); // Stream de salida para enviar mensajes
-                synchronized (clients) { // Bloque sincronizado para evitar problemas de concurrencia
-                    clients.add(this); // Agrega este cliente a la lista de clientes conectados
-                }
+                input = new DataInputStream(new CountingInputStream(socket.getInputStream())); // Stream de entrada para recibir mensajes
+                buffer = new BatchingOutputStream(socket.getOutputStream(), flushPolicy.maxBytes(), writeStats);
+                output = new DataOutputStream(buffer); // Stream de salida para enviar mensajes
             } catch (IOException e) { // Maneja excepciones al crear los streams
-                System.out.println("Error al crear streams: " + e.getMessage()); // Imprime el mensaje de error
+                Log.error("Error al crear streams", "error", e.getMessage()); // Registra el error
             }
         }
 
+        /**
+         * Arranca el modo clúster si {@code cluster.port} está configurado; se llama una vez al
+         * arrancar el servidor, antes de aceptar clientes.
+         */
+        public static void joinCluster(ServerConfig config) {
+            cluster = Cluster.start(config, presence, new ClusterDelivery());
+        }
+
         @Override
         public void run() {
+            executor.execute(this::writeLoop); // Arranca el escritor antes de que otros clientes nos envíen nada
+            ServerMetrics.shared().connectionOpened();
             try {
-                this.clientName = input.readUTF(); // Lee el nombre del usuario desde el stream de entrada
-                broadcastUserList();
+                String requestedName = input.readUTF(); // Lee el nombre del usuario (o la petición de protocolo v2)
+                boolean binary = requestedName.equals(FrameCodec.HANDSHAKE);
+                if (binary) {
+                    enqueue((out, p) -> out.writeUTF(FrameCodec.HANDSHAKE_OK)); // Última cadena writeUTF de la conexión
+                    protocol = BinaryProtocol.INSTANCE;
+                    Frame hello = FrameCodec.read(input);
+                    if (hello.getType() != FrameType.HELLO) {
+                        throw new IOException("Se esperaba HELLO y llegó " + hello.getType());
+                    }
+                    requestedName = hello.text();
+                    if (SessionRegistry.checkName(requestedName) == null // El aviso de rechazo va sin comprimir
+                            && hello.hasFlag(Compression.FLAG_OFFER) && ServerConfig.get().getBoolean("compression.enabled", true)) {
+                        protocol = BinaryProtocol.compressed(new Compression()); // NAME confirmará que se acepta
+                    }
+                }
+                String invalid = SessionRegistry.checkName(requestedName);
+                if (invalid != null) {
+                    rejectName(invalid);
+                    return;
+                }
+                this.clientName = clients.register(requestedName, this, cluster::isRemote); // Se registra al recibir el nombre
+                flow = new FlowControl(ServerConfig.get(), binary); // Solo los clientes v2 usan créditos
+                if (binary || !clientName.equals(requestedName)) { // En v2 siempre; en v1 solo si el nombre estaba repetido
+                    int credit = flow.initialCredit();
+                    enqueue((out, p) -> p.writeName(out, clientName, credit));
+                }
+                sendUserList();
+                presence.join(clientName);
+                cluster.joined(clientName);
+                if (binary) {
+                    readFrames();
+                } else {
+                    readMessages();
+                }
+            } catch (IOException e) { // Maneja excepciones al leer mensajes
+                Compression compression = protocol.compression();
+                Log.info("Cliente desconectado", "cola", outbound.stats(), "escrituras", writeStats.snapshot(),
+                        "compresion", compression != null ? compression : "no");
+            } finally { // Bloque finally para cerrar recursos
+                // Cierra los streams de entrada y salida
+                outbound.close(); // Detiene el hilo escritor
+                try {
+                    socket.close();
+                } catch (IOException ignored) {}
+                if (upload != null) {
+                    if (protocol.interleavesFiles()) {
+                        upload.park(); // Se puede reanudar al reconectar
+                    } else {
+                        upload.sink().abort();
+                    }
+                }
+
+                rooms.leaveAll(this);
+                ServerMetrics.shared().connectionClosed();
+                if (clients.remove(clientName, this)) { // Elimina este cliente del índice de clientes conectados
+                    presence.leave(clientName);
+                    cluster.left(clientName);
+                }
+            }
+        }
+
+        // Bucle del protocolo original: cadenas writeUTF y el receptor en un mensaje aparte
+        private void readMessages() throws IOException {
                 while (!socket.isClosed()) { // Mientras el socket no esté cerrado
                     
                     // Lee el mensaje enviado por el cliente
                     String message = input.readUTF();
+                    ServerMetrics.shared().messageReceived();
+                    throttle(true, ModifiedUtf8.encodedLength(message)); // Se cobra antes de procesarlo: la espera retrasa el siguiente
                     if(message.equals("FILE"))
                     {
                         //String fileName = message.substring(4).trim(); // Extrae el nombre del archivo del mensaje
                         //System.out.println("Archivo solicitado: " + fileName); // Imprime el nombre del archivo solicitado
                         receiveFile();
                         //sendFile(fileName); // Envía el archivo al cliente
+                        currentReceiver = null; // El receptor era el del archivo, no el de un mensaje
+                        continue;
                     }
 
                     if (message.startsWith("RECEIVER:")) {
                         currentReceiver = message.substring(9).trim(); // Guarda el receptor temporalmente
                         continue;
                     }
-                    if (message.startsWith("HISTORY_REQUEST:")) {
-                        String[] users = message.substring(16).split("\\|");
-                        if (users.length == 2) {
-                            String senderUser = users[0];
-                            String receiverUser = users[1];
-                            List<String> history = getHistory(senderUser, receiverUser);
-
-                            for (String histMsg : history) {
-                                output.writeUTF("HISTORY_MSG:" + histMsg);
-                            }
-                            // Indicar fin de historial
-                            //output.writeUTF("HISTORY_END");
-                        }
+                    if (message.startsWith(HistoryPaging.REQUEST)) {
+                        sendHistoryPage(message.substring(HistoryPaging.REQUEST.length()));
+                    }
+                    if (message.startsWith("JOIN:")) {
+                        joinRoom(message.substring(5));
+                        continue;
+                    }
+                    if (message.startsWith("LEAVE:")) {
+                        leaveRoom(message.substring(6));
+                        continue;
+                    }
+                    if (message.startsWith("ROOM:")) {
+                        currentRoom = message.substring(5); // El siguiente mensaje va a la sala
+                        continue;
+                    }
+                    if (currentRoom != null) {
+                        sendToRoom(currentRoom, message);
+                        currentRoom = null;
+                        continue;
                     }
 
 
@@ -87,178 +222,549 @@
                         broadcastOnebyOne(message, clientName, currentReceiver);
                         currentReceiver = null; // Limpiar receptor después de enviar
                     }
-                        System.out.println("Mensaje enviado de: " + socket.getRemoteSocketAddress() + " a " + socket.getLocalSocketAddress() +" Hora :" + formatter.format(LocalTime.now())); // Imprime el mensaje recibido junto con las direcciones del socket remoto y local
+                        if (Log.sampleMessage()) { // Solo uno de cada log.message.sample mensajes, sin bloquear este hilo
+                            Log.info("Mensaje recibido", "de", socket.getRemoteSocketAddress(), "cliente", clientName);
+                        }
                         //broadcast(message); // Envía el mensaje a todos los clientes conectados   
                     }
-            } catch (IOException e) { // Maneja excepciones al leer mensajes
-                System.out.println("Cliente desconectado.");
-            } finally { // Bloque finally para cerrar recursos
-                // Cierra los streams de entrada y salida
-                try {
-                    socket.close();
-                } catch (IOException ignored) {}
+        }
 
-                synchronized (clients) { // Bloque sincronizado para evitar problemas de concurrencia
-                    // Elimina este cliente de la lista de clientes conectados
-                    clients.remove(this);
+        // Bucle del protocolo v2: cada trama lleva su tipo y su destinatario
+        private void readFrames() throws IOException {
+            while (!socket.isClosed()) {
+                Frame frame = Compression.decode(FrameCodec.read(input), protocol.compression());
+                ServerMetrics.shared().messageReceived();
+                switch (frame.getType()) {
+                    case TEXT:
+                        broadcastOnebyOne(frame.text(), clientName, frame.getReceiver()); // Mensaje privado en una sola trama
+                        break;
+                    case HISTORY_REQUEST:
+                        sendHistoryPage(frame.text());
+                        break;
+                    case USERLIST: // Al cliente le falta una versión de la lista
+                        sendUserList();
+                        break;
+                    case ROOM_JOIN:
+                        joinRoom(frame.text());
+                        break;
+                    case ROOM_LEAVE:
+                        leaveRoom(frame.text());
+                        break;
+                    case ROOM_TEXT:
+                        sendToRoom(frame.getReceiver(), frame.text());
+                        break;
+                    case FILE_BEGIN:
+                        beginUpload(frame);
+                        break;
+                    case FILE_CHUNK:
+                        awaitAdmission();
+                        if (upload != null && upload.id() == frame.getMessageId()) {
+                            sendAck(upload.chunk(FrameCodec.chunkOffset(frame), FrameCodec.chunkCrc(frame), FrameCodec.chunkData(frame)));
+                        }
+                        break;
+                    case FILE_END:
+                        if (upload != null && upload.id() == frame.getMessageId()) {
+                            long offset = upload.end();
+                            sendAck(offset);
+                            if (offset == upload.size()) upload = null;
+                        }
+                        break;
+                    default:
+                        Log.warn("Trama ignorada", "cliente", clientName, "trama", frame);
+                }
+                if (Log.sampleMessage()) {
+                    Log.info("Trama recibida", "de", socket.getRemoteSocketAddress(), "cliente", clientName, "tipo", frame.getType());
                 }
-                broadcastUserList();
+                throttle(frame.getType() != FrameType.FILE_CHUNK, frame.getPayload().length);
             }
         }
 
-        // Método para enviar un mensaje a todos los clientes conectados
-        private void broadcast(String message) { 
-            synchronized (clients) { // Bloque sincronizado para evitar problemas de concurrencia
-                for (ClientHandler client : clients) { // Itera sobre la lista de clientes conectados
-                    try { // Intenta enviar el mensaje al cliente
-                        client.output.writeUTF("[" + formatter.format(java.time.LocalTime.now()) + "] "+ clientName+": " + message); // Envia el mensaje
-                    } catch (IOException ignored) {
-                        // Si ocurre un error al enviar el mensaje, se ignora
-                        System.out.println("Error al enviar mensaje a un cliente: " + ignored.getMessage());
-                    } 
+        /**
+         * Cuenta lo recibido en los límites del cliente; si va demasiado rápido este hilo deja de
+         * leer el tiempo necesario y TCP frena al cliente. Después devuelve los créditos que toquen.
+         */
+        private void throttle(boolean message, int length) throws IOException {
+            long wait = flow.admit(message, length);
+            if (wait > 0) {
+                if (flow.shouldWarn()) {
+                    Log.warn("Cliente frenado por sus límites", "cliente", clientName, "ms", wait);
+                    enqueue((out, p) -> p.writeNotice(out, "[Vas demasiado rápido: el servidor frena tus envíos]"));
                 }
+                try {
+                    Thread.sleep(wait);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Lectura interrumpida");
+                }
+            }
+            int frames = flow.grant();
+            if (frames > 0) {
+                enqueue((out, p) -> p.writeCredit(out, frames));
             }
         }
 
-        private List<String> getHistory(String sender, String receiver) {
-            // La clave debe ser ordenada alfabéticamente para que coincida con la usada en 'send'
-            String key = sender.compareTo(receiver) < 0
-                ? sender + "|" + receiver
-                : receiver + "|" + sender;
+        // Antes de leer más bytes de archivo: espera si el servidor tiene demasiados en tránsito
+        private void awaitAdmission() throws IOException {
+            try {
+                while (!FlowControl.awaitAdmission(200, TimeUnit.MILLISECONDS)) {
+                    if (socket.isClosed()) {
+                        throw new IOException("Conexión cerrada");
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Lectura interrumpida");
+            }
+        }
 
-            // Busca el historial en todos los clientes conectados
-        /* for (ClientHandler client : clients) {
-                if (client.data.containsKey(key)) {
-                    return client.data.get(key);
+        // Responde con una sola trama con la página pedida y la marca de si quedan más
+        private void sendHistoryPage(String body) {
+            HistoryPaging.Request request = HistoryPaging.parse(body);
+            if (request != null) {
+                HistoryStore.Page page = HistoryPaging.fetch(history, request, clientName);
+                enqueue((out, p) -> p.writeHistoryPage(out, page, clientName, request.afterId() > 0));
+            }
+        }
+
+        // Entra en una sala (la crea si no existe) y confirma con los miembros que tiene
+        private void joinRoom(String name) {
+            String room = Rooms.normalize(name);
+            if (room == null) {
+                enqueue((out, p) -> p.writeNotice(out, "[Nombre de sala no válido]"));
+                return;
+            }
+            rooms.join(room, this);
+            int members = rooms.members(room).size();
+            enqueue((out, p) -> p.writeNotice(out, "[Sala #" + room + ": " + members + " miembros]"));
+        }
+
+        private void leaveRoom(String name) {
+            String room = Rooms.normalize(name);
+            if (room != null && rooms.leave(room, this)) {
+                enqueue((out, p) -> p.writeNotice(out, "[Has salido de la sala #" + room + "]"));
+            }
+        }
+
+        // Reparte el mensaje a todos los miembros: una sola trama, codificada una vez por protocolo
+        private void sendToRoom(String name, String text) {
+            String room = Rooms.normalize(name);
+            if (room == null || !rooms.isMember(room, this)) {
+                enqueue((out, p) -> p.writeNotice(out, "[No estás en la sala #" + name + "]"));
+                return;
+            }
+            RoomMessage message = rooms.message(room, clientName, text);
+            OutboundFrame frame = (out, p) -> p.writeRoomText(out, message);
+            long start = System.nanoTime();
+            int count = 0;
+            for (ClientHandler member : rooms.members(room)) {
+                member.enqueue(frame);
+                count++;
+            }
+            long nanos = System.nanoTime() - start;
+            rooms.recordFanout(count, nanos);
+            ServerMetrics.shared().messagesDelivered(count);
+            if (Log.sampleMessage()) {
+                Log.info("Mensaje a una sala", "sala", room, "miembros", count, "us", nanos / 1000);
+            }
+        }
+
+        // Clientes conectados; la vista del índice se recorre sin candados
+        private static Collection<ClientHandler> snapshot() {
+            return clients.sessions();
+        }
+
+        // Destinatario y emisor de un mensaje privado, buscados en O(1) por nombre
+        private List<ClientHandler> recipients(String receiver) {
+            List<ClientHandler> targets = new ArrayList<>(2);
+            ClientHandler target = clients.lookup(receiver);
+            if (target != null && target != this) {
+                targets.add(target);
+            }
+            targets.add(this);
+            return targets;
+        }
+
+        // Encola un mensaje para este cliente; nunca bloquea al hilo que lo envía
+        private boolean enqueue(OutboundFrame frame) {
+            if (!outbound.offer(frame)) {
+                if (outbound.isClosed()) {
+                    return false; // El cliente ya se está desconectando: no hay a quién avisar
                 }
+                // Cola llena con política DISCONNECT
+                Log.warn("Cliente lento desconectado", "cliente", clientName, "cola", outbound.stats());
+                closeQuietly();
+                return false;
             }
-            return null;
-            */
-            return data.getOrDefault(key, new ArrayList<>());
+            return true;
         }
-        
 
-        // Metodo para enviar un mensaje a un cliente específico
-        private void broadcastOnebyOne(String message, String sender, String receiver) {
-            synchronized (clients) { // Bloque sincronizado para evitar problemas de concurrencia
-                for (ClientHandler client : clients) { // Itera sobre la lista de clientes conectados
-                    if (client.clientName.equals(receiver) || client.clientName.equals(sender)) { // Si el cliente es el destinatario del mensaje
-                        try {
-                            // Crear una clave única para el par de usuarios (ordenada alfabéticamente)
-                            String key = sender.compareTo(receiver) < 0
-                                ? sender + "|" + receiver
-                                : receiver + "|" + sender;
-
-                            // Guardar el mensaje en el historial
-                            data.putIfAbsent(key, new ArrayList<>());
-                            List<String> messages = data.get(key);
-
-                            String time = formatter.format(java.time.LocalTime.now());
-                            String formattedMessage = "[" + time + "] ";
-
-                            // Enviar mensaje con etiqueta [Yo] si es al emisor, o con el nombre del sender si es al receptor
-                            if (client.clientName.equals(sender)) {
-                                formattedMessage += "[Yo] " + message;
-                            } else {
-                                formattedMessage += "[" + sender + "] " + message;
-                            }
-                            messages.add(formattedMessage); // Agrega el mensaje al historial
-                            client.output.writeUTF(formattedMessage); // Envia el mensaje al cliente
-
-                        } catch (IOException e) {
-                            System.out.println("Error al enviar mensaje a " + receiver + ": " + e.getMessage()); // Imprime el mensaje de error
-                        }
-                    }
+        // Hilo escritor: único que escribe en output, vacía la cola en orden
+        private void writeLoop() {
+            try {
+                OutboundFrame frame;
+                while ((frame = outbound.take()) != null) {
+                    long batchStart = System.nanoTime();
+                    do {
+                        frame.writeTo(output, protocol); // Se codifica con el protocolo de este cliente
+                    } while ((frame = flushPolicy.next(outbound, buffer.buffered(), batchStart)) != null);
+                    output.flush(); // Todo el lote en una sola escritura
                 }
+            } catch (IOException | InterruptedException e) {
+                closeQuietly(); // El hilo lector detecta el cierre y limpia
             }
+        }
 
+        // Nombre no válido: el escritor envía el aviso y cierra la salida; se espera a que el cliente cierre
+        private void rejectName(String reason) throws IOException {
+            Log.warn("Nombre rechazado", "motivo", reason);
+            closeWithNotice("[Nombre no válido: " + reason + "]");
         }
 
-        private void broadcastUserList() {
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    client.sendUserList();
-                }
+        // Tamaño negativo o por encima de limit.file.bytes: se avisa y se cierra, antes de crear la subida
+        private void rejectFile(String fileName, long size) throws IOException {
+            Log.warn("Archivo rechazado por su tamaño", "cliente", clientName, "archivo", fileName, "bytes", size);
+            closeWithNotice("[Archivo rechazado por su tamaño: " + fileName + " (" + size + " bytes)]");
+            throw new ProtocolException("Tamaño de archivo no válido: " + size);
+        }
+
+        private void closeWithNotice(String notice) throws IOException {
+            enqueue((out, p) -> p.writeNotice(out, notice));
+            enqueue((out, p) -> {
+                out.flush();
+                socket.shutdownOutput();
+            });
+            socket.setSoTimeout(5000);
+            while (input.read() != -1) {
+                // Se descarta lo que siga enviando
             }
         }
 
-        private void sendUserList() {
-            synchronized (clients) {
-                try {
-                    StringBuilder userList = new StringBuilder();
-                    for (ClientHandler client : clients) {
-                        if (client != this && client.clientName != null) {
-                            userList.append(client.clientName).append(",");
-                        }
-                    }
-                    // Quitar la última coma
-                    if (userList.length() > 0) {
-                        userList.setLength(userList.length() - 1);
-                    }
+        private void closeQuietly() {
+            outbound.close();
+            try {
+                socket.close();
+            } catch (IOException ignored) {}
+        }
 
-                    output.writeUTF("USERLIST:" + userList.toString());
-                } catch (IOException e) {
-                    System.out.println("Error al enviar la lista de usuarios: " + e.getMessage());
-                }
+        /** Estadísticas de la cola de salida de este cliente. */
+        public OutboundQueue.Stats getQueueStats() {
+            return outbound.stats();
+        }
+
+        // Metodo para enviar un mensaje a un cliente específico
+        private void broadcastOnebyOne(String message, String sender, String receiver) {
+            if (SessionRegistry.checkName(receiver) != null) {
+                return; // Ningún usuario puede llamarse así; no se guarda con una clave de conversación ambigua
             }
+            // Guardar el mensaje una sola vez en el historial de la pareja
+            HistoryStore.Entry entry = history.append(sender, receiver, message);
+            List<ClientHandler> targets = recipients(receiver);
+            for (ClientHandler client : targets) { // Solo el destinatario y el emisor
+                // Enviar mensaje con etiqueta [Yo] si es al emisor, o con el nombre del sender si es al receptor
+                String viewer = client.clientName;
+                client.enqueue((out, p) -> p.writeText(out, entry, viewer)); // Envia el mensaje al cliente
+            }
+            ServerMetrics.shared().messagesDelivered(targets.size());
+            cluster.forwardText(entry); // Si el receptor está en otro nodo
+        }
+
+        // Envía a todos los clientes el mismo cambio; cada protocolo lo codifica a su manera
+        private static void publishPresence(Presence.Delta delta) {
+            for (ClientHandler client : snapshot()) {
+                String viewer = client.clientName;
+                client.enqueue((out, p) -> p.writePresence(out, delta, viewer));
+            }
+        }
+
+        // Lista completa, al conectar o cuando el cliente la pide
+        private void sendUserList() {
+            String viewer = clientName;
+            presence.snapshot(snapshot -> enqueue((out, p) -> p.writeUserList(out, snapshot, viewer)));
         }
 
+        // Subida con el protocolo antiguo: nombre, tamaño y los bytes seguidos
         private void receiveFile() throws IOException {
-            String fileName = input.readUTF();
+            String fileName = new File(input.readUTF()).getName(); // Evita rutas ajenas en el nombre
             long fileSize = input.readLong();
+            if (!flow.acceptsFile(fileSize)) {
+                rejectFile(fileName, fileSize); // Los bytes del archivo ya vienen detrás: no se puede seguir
+            }
+
+            upload = new FileTransfer(clientName, transferIds.incrementAndGet(), fileName, fileSize,
+                    new Relay(clientName, recipients(currentReceiver), fileName, fileSize, currentReceiver));
+            long offset = 0;
+            while (offset < fileSize) {
+                awaitAdmission();
+                byte[] chunk = new byte[(int) Math.min(FrameCodec.FILE_CHUNK_SIZE, fileSize - offset)]; // Cada trozo se comparte con los receptores
+                input.readFully(chunk);
+                ByteBuffer data = ByteBuffer.wrap(chunk);
+                upload.chunk(offset, FrameCodec.crc(data), data); // Sin CRC del cliente: solo comprueba el orden
+                offset += chunk.length;
+                throttle(false, chunk.length);
+            }
+            upload.end();
+            upload = null;
+        }
+
+        // Subida con el protocolo v2: nueva, o la continuación de una que se cortó
+        private void beginUpload(Frame frame) throws IOException {
+            String fileName = new File(FrameCodec.fileName(frame)).getName(); // Evita rutas ajenas en el nombre
+            long size = FrameCodec.fileSize(frame);
+            if (!flow.acceptsFile(size)) {
+                rejectFile(fileName, size);
+            }
+            long id = frame.getMessageId();
+            String receiver = frame.getReceiver();
+            if (!FileTransfer.canStart(clientName, id, upload != null && upload.id() != id, flow.transfers())) {
+                ServerMetrics.shared().transferRejected();
+                Log.warn("Demasiadas subidas a la vez", "cliente", clientName, "archivo", fileName);
+                enqueue(OutboundFrame.reliable((out, p) -> {
+                    p.writeNotice(out, "[Demasiadas subidas a la vez: " + fileName + "]");
+                    p.writeFileAck(out, id, -1); // Rechazada: el cliente no envía los trozos
+                }));
+                return;
+            }
+            if (upload != null) {
+                upload.park(); // Otra subida a medias: se puede retomar después
+            }
+            upload = FileTransfer.resume(clientName, id, fileName, size);
+            if (upload == null) {
+                // Siempre se sube completo: conocer el hash de un archivo guardado no da acceso a él.
+                // Si el contenido ya estaba, el almacén lo comparte al terminar (Writer.commit)
+                upload = new FileTransfer(clientName, id, fileName, size,
+                        new Relay(clientName, recipients(receiver), fileName, size, receiver));
+            }
+            if (upload.received() == size) {
+                sendAck(upload.end()); // Nada que recibir: el tamaño total confirma que está completo
+                upload = null;
+                return;
+            }
+            sendAck(upload.received());
+        }
+
+        // Indica a quien sube desde dónde seguir (nada si offset es -1)
+        private void sendAck(long offset) {
+            if (offset >= 0) {
+                long id = upload.id();
+                enqueue(OutboundFrame.reliable((out, p) -> p.writeFileAck(out, id, offset)));
+            }
+        }
 
-            File saveDir = new File("archivos_recibidos");
-            if (!saveDir.exists()) saveDir.mkdirs();
+        /**
+         * Archivo que se reenvía mientras llega. Los receptores v2 reciben cada trozo en cuanto se
+         * lee; a la vez se guarda en el {@link AttachmentStore}, del que lo reciben al terminar los
+         * antiguos, que necesitan el archivo completo. Cada receptor v2 admite como mucho
+         * {@code relay.window.bytes} pendientes en su cola: si no los consume, el hilo lector
+         * de quien sube espera y TCP frena al emisor. No depende de la conexión de quien sube,
+         * así que sobrevive a una reconexión.
+         */
+        private static final class Relay implements FileTransfer.Sink {
+            private final String sender;
+            private final String fileName;
+            private final String receiver;
+            private final List<RelayTarget> streamed = new ArrayList<>();
+            private final List<ClientHandler> spooled = new ArrayList<>();
+            private final AttachmentStore.Writer stored;
+            private final ChunkDeflater deflater;
+            private long received;
+
+            Relay(String sender, List<ClientHandler> recipients, String fileName, long size, String receiver) throws IOException {
+                this.sender = sender;
+                this.fileName = fileName;
+                this.receiver = receiver;
+                for (ClientHandler client : recipients) {
+                    if (client.protocol.interleavesFiles()) {
+                        streamed.add(new RelayTarget(client, sender, fileName, size, receiver));
+                    } else {
+                        spooled.add(client);
+                    }
+                }
+                List<ServerProtocol> protocols = new ArrayList<>();
+                for (RelayTarget target : streamed) {
+                    protocols.add(target.client.protocol);
+                }
+                deflater = new ChunkDeflater(protocols);
+                stored = AttachmentStore.shared().newWriter();
+            }
 
-            File outFile = new File(saveDir, fileName);
+            @Override
+            public void chunk(ByteBuffer data, int crc) throws IOException {
+                byte[] deflated = deflater.deflate(received, crc, data); // Una vez para todos los que comprimen
+                for (RelayTarget target : streamed) {
+                    target.chunk(received, crc, data, deflated);
+                }
+                stored.write(data);
+                received += data.remaining();
+            }
 
-            try (FileOutputStream fos = new FileOutputStream(outFile)) {
-                byte[] buffer = new byte[4096];
-                long totalRead = 0;
-                int read;
+            @Override
+            public void finish() throws IOException {
+                Log.info("Archivo recibido", "archivo", fileName, "bytes", received);
+                for (RelayTarget target : streamed) {
+                    target.end(notice(target.client));
+                }
+                AttachmentStore.Blob blob = stored.commit();
+                cluster.forwardFile(blob, sender, fileName, receiver); // Receptor en otro nodo
+                sendStored(blob, spooled, sender, fileName, receiver);
+            }
 
-                while (totalRead < fileSize &&
-                    (read = input.read(buffer, 0, (int) Math.min(buffer.length, fileSize - totalRead))) != -1) {
-                    fos.write(buffer, 0, read);
-                    totalRead += read;
+            @Override
+            public void abort() {
+                for (RelayTarget target : streamed) {
+                    target.fail("[Transferencia cancelada: " + fileName + "]");
                 }
+                stored.discard();
+            }
+
+            /**
+             * Envía un archivo ya guardado a {@code recipients} y suelta la referencia de
+             * {@code blob}; cada envío pendiente mantiene la suya hasta escribirse.
+             */
+            static void sendStored(AttachmentStore.Blob blob, List<ClientHandler> recipients, String sender, String fileName, String receiver) {
+                for (ClientHandler client : recipients) {
+                    String chatMessage = notice(client, sender, fileName, receiver);
+                    String target = client.clientName;
+                    long transferId = transferIds.incrementAndGet();
+                    blob.retain();
+                    // La cabecera, los bytes y el aviso van en una sola trama para no intercalarse
+                    boolean queued = client.enqueue(OutboundFrame.reliable((out, p) -> {
+                        try {
+                            blob.writeTo(out, p, transferId, fileName, sender, receiver);
+                        } finally {
+                            blob.release();
+                        }
+                        Log.info("Archivo enviado", "a", target);
+                        p.writeNotice(out, chatMessage);
+                    }));
+                    if (!queued) {
+                        blob.release();
+                    }
+                }
+                blob.release();
+            }
 
-                System.out.println("Archivo recibido: " + fileName + " (" + totalRead + " bytes)");
+            private String notice(ClientHandler client) {
+                return notice(client, sender, fileName, receiver);
+            }
 
-                // Reenviar archivo en binario al receptor (cliente)
-                sendFile(outFile, currentReceiver);
+            private static String notice(ClientHandler client, String sender, String fileName, String receiver) {
+                return client.clientName.equals(receiver)
+                        ? "[Archivo recibido de " + sender + ": " + fileName + "]"
+                        : "[Archivo enviado: " + fileName + "]";
             }
         }
 
-        private void sendFile(File file, String receiver) throws IOException {
-            synchronized (clients) {
-                for (ClientHandler client : clients) {
-                    if (client.clientName.equals(receiver) || client.clientName.equals(clientName)) {
-                        client.output.writeUTF("FILE");
-                        client.output.writeUTF(file.getName());
-                        client.output.writeUTF(clientName);
-                        client.output.writeLong(file.length());
-
-                        try (FileInputStream fis = new FileInputStream(file)) {
-                            byte[] buffer = new byte[4096];
-                            int bytesRead;
-                            while ((bytesRead = fis.read(buffer)) != -1) {
-                                client.output.write(buffer, 0, bytesRead);
-                            }
-                        }
+        // Entrega a los clientes de este nodo lo que llega de otros nodos del clúster
+        private static final class ClusterDelivery implements Cluster.Local {
+            @Override
+            public boolean isConnected(String name) {
+                return clients.lookup(name) != null;
+            }
 
-                        System.out.println("Archivo enviado a " + client.clientName);
+            @Override
+            public void deliverText(HistoryStore.Entry entry) {
+                ClientHandler target = clients.lookup(entry.receiver());
+                if (target != null) {
+                    String viewer = target.clientName;
+                    target.enqueue((out, p) -> p.writeText(out, entry, viewer));
+                    ServerMetrics.shared().messagesDelivered(1);
+                }
+            }
+
+            @Override
+            public void deliverFile(AttachmentStore.Blob blob, String sender, String fileName, String receiver) {
+                ClientHandler target = clients.lookup(receiver);
+                Relay.sendStored(blob, target == null ? List.of() : List.of(target), sender, fileName, receiver);
+            }
+        }
 
-                        String chatMessage;
-                        if (client.clientName.equals(receiver)) {
-                            chatMessage = "[Archivo recibido de " + clientName + ": " + file.getName() + "]";
+        // Un receptor v2 de un archivo en tránsito
+        private static final class RelayTarget {
+            private final ClientHandler client;
+            private final long transferId = transferIds.incrementAndGet();
+            private final Semaphore window; // Bytes que aún puede tener pendientes en su cola
+            private final long timeoutMillis;
+            private boolean failed;
+
+            RelayTarget(ClientHandler client, String sender, String fileName, long size, String receiver) {
+                this.client = client;
+                ServerConfig config = ServerConfig.get();
+                this.window = new Semaphore(Math.max(FrameCodec.FILE_CHUNK_SIZE, config.getInt("relay.window.bytes", 1024 * 1024)));
+                this.timeoutMillis = config.getLong("relay.timeout.ms", 30_000);
+                failed = !client.enqueue(OutboundFrame.reliable((out, p) -> p.writeFileHeader(out, transferId, fileName, sender, receiver, size)));
+            }
+
+            // Los bytes (o su copia comprimida) se comparten con los demás receptores; no se copian
+            void chunk(long offset, int crc, ByteBuffer data, byte[] deflated) {
+                int length = data.remaining();
+                if (failed || !acquire(length)) {
+                    return;
+                }
+                byte[] array = data.array();
+                int from = data.arrayOffset() + data.position();
+                FlowControl.inflight(length);
+                Runnable released = () -> {
+                    window.release(length);
+                    FlowControl.inflight(-length);
+                };
+                failed = !client.enqueue(OutboundFrame.reliable((out, p) -> {
+                    try {
+                        if (deflated != null && p.compression() != null) {
+                            p.writeDeflatedChunkHeader(out, transferId, deflated.length);
+                            out.write(deflated);
                         } else {
-                            chatMessage = "[Archivo enviado: " + file.getName() + "]";
+                            p.writeFileChunkHeader(out, transferId, offset, crc, length);
+                            out.write(array, from, length);
                         }
-                        client.output.writeUTF(chatMessage);
+                    } finally {
+                        released.run();
                     }
+                }, released)); // Si se cierra la conexión del receptor antes de escribirlo
+                if (failed) {
+                    released.run();
+                }
+            }
+
+            void end(String chatMessage) {
+                if (failed) {
+                    return;
                 }
+                String target = client.clientName;
+                client.enqueue(OutboundFrame.reliable((out, p) -> {
+                    p.writeFileEnd(out, transferId);
+                    Log.info("Archivo enviado", "a", target);
+                    p.writeNotice(out, chatMessage);
+                }));
+            }
+
+            void fail(String chatMessage) {
+                if (!failed) {
+                    failed = true;
+                    client.enqueue((out, p) -> p.writeNotice(out, chatMessage));
+                }
+            }
 
+            // Espera hueco en la ventana; se rinde si el receptor se desconecta o no avanza a tiempo
+            private boolean acquire(int bytes) {
+                long deadline = System.currentTimeMillis() + timeoutMillis;
+                try {
+                    while (!window.tryAcquire(bytes, 200, TimeUnit.MILLISECONDS)) {
+                        if (client.socket.isClosed()) {
+                            failed = true;
+                            return false;
+                        }
+                        if (System.currentTimeMillis() > deadline) {
+                            Log.warn("Receptor demasiado lento, se cancela el archivo", "a", client.clientName);
+                            fail("[Transferencia cancelada: receptor demasiado lento]");
+                            return false;
+                        }
+                    }
+                    return true;
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    failed = true;
+                    return false;
+                }
             }
         }
 
@@ -0,0 +1,259 @@
+package com.mycompany.jpsocket.client;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.URLEncoder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Consumer;
+
+import com.mycompany.jpsocket.protocol.FrameCodec;
+import com.mycompany.jpsocket.protocol.HistoryRecord;
+
+/**
+ * Historial de las conversaciones ya abiertas, para no pedirlo entero al servidor cada vez que
+ * se vuelve a una. De cada conversación se guardan los {@code messages} mensajes más recientes y
+ * hasta qué id no falta ninguno: al volver a abrirla basta con pedir los posteriores
+ * ({@code after=}). Mientras la conexión sigue abierta los mensajes nuevos llegan en directo y no
+ * hace falta pedir nada.
+ * <p>
+ * Se guardan en memoria hasta {@code conversations} conversaciones (las menos usadas se descartan)
+ * y, si se indica un directorio, también en disco: un archivo por conversación, escrito al salir de
+ * ella y al cerrar el programa, que se lee la primera vez que se abre. Se usa desde el hilo de Swing
+ * y desde el del cliente, así que todos los métodos están sincronizados. Los errores de disco no
+ * interrumpen nada: se avisan con {@code onError} y lo que no se puede leer se pide al servidor.
+ */
+final class HistoryCache {
+
+    /** Copia de una conversación; {@code live} indica que no hace falta pedir nada al servidor. */
+    record Snapshot(List<HistoryRecord> records, boolean olderOnServer, long syncedUpTo, boolean live) {
+    }
+
+    private static final int FORMAT = 1;
+
+    private static final class Conversation {
+        final TreeMap<Long, HistoryRecord> records = new TreeMap<>();
+        boolean olderOnServer; // Hay mensajes anteriores al primero guardado
+        long syncedUpTo; // Hasta este id no falta ningún mensaje
+        boolean live; // Sincronizada con la conexión actual: lo posterior llega en directo
+        boolean dirty; // Cambios sin escribir en disco
+    }
+
+    private final int messages;
+    private final int conversations;
+    private final Path dir; // null: solo en memoria
+    private final Consumer<String> onError; // Avisos de errores de disco, desde cualquier hilo
+    private final LinkedHashMap<String, Conversation> cache = new LinkedHashMap<>(16, 0.75f, true); // Orden por último uso
+    private String owner; // Usuario conectado; cada uno tiene su propio historial
+
+    HistoryCache(int messages, int conversations, Path dir, Consumer<String> onError) {
+        this.messages = Math.max(1, messages);
+        this.conversations = Math.max(1, conversations);
+        this.dir = dir;
+        this.onError = onError;
+    }
+
+    /** Usuario al que pertenece el historial; si cambia se olvida el del anterior. */
+    synchronized void setOwner(String name) {
+        if (!name.equals(owner)) {
+            save();
+            cache.clear();
+            owner = name;
+        }
+    }
+
+    /** @return La conversación con {@code peer}, o {@code null} si no está ni en memoria ni en disco. */
+    synchronized Snapshot get(String peer) {
+        Conversation conversation = conversation(peer, false);
+        if (conversation == null) {
+            return null;
+        }
+        return new Snapshot(new ArrayList<>(conversation.records.values()), conversation.olderOnServer,
+                conversation.syncedUpTo, conversation.live);
+    }
+
+    /**
+     * Empieza a guardar una conversación antes de pedir su primera página, para no perder lo que
+     * llegue en directo mientras tanto.
+     */
+    synchronized void open(String peer) {
+        conversation(peer, true);
+    }
+
+    /** Mensaje recibido en directo; solo se guarda si la conversación ya está en memoria. */
+    synchronized void addLive(String peer, HistoryRecord record) {
+        Conversation conversation = cache.get(peer);
+        if (conversation == null) {
+            return; // Al abrirla se piden al servidor los posteriores a lo guardado
+        }
+        put(conversation, record);
+        if (conversation.live) {
+            conversation.syncedUpTo = Math.max(conversation.syncedUpTo, record.id());
+        }
+    }
+
+    /**
+     * Página de mensajes anteriores ({@code before=}, o la más reciente si {@code latest}).
+     *
+     * @param hasMore Lo que indicó el servidor: quedan mensajes anteriores a la página.
+     */
+    synchronized void addOlder(String peer, List<HistoryRecord> records, boolean hasMore, boolean latest) {
+        Conversation conversation = conversation(peer, true);
+        if (conversation.records.isEmpty() || (!records.isEmpty() && records.get(0).id() < conversation.records.firstKey())) {
+            conversation.olderOnServer = hasMore; // Pasa a true si alguno no cabe
+        }
+        for (HistoryRecord record : records) {
+            put(conversation, record);
+        }
+        if (latest) {
+            conversation.syncedUpTo = conversation.records.isEmpty() ? 0 : conversation.records.lastKey();
+            conversation.live = true;
+        }
+    }
+
+    /**
+     * Página de mensajes posteriores ({@code after=}).
+     *
+     * @param sync La petición partía de {@code syncedUpTo}: avanza hasta donde no falta nada.
+     */
+    synchronized void addNewer(String peer, List<HistoryRecord> records, boolean hasMore, boolean sync) {
+        Conversation conversation = conversation(peer, true);
+        for (HistoryRecord record : records) {
+            put(conversation, record);
+        }
+        if (sync) {
+            if (!records.isEmpty()) {
+                conversation.syncedUpTo = Math.max(conversation.syncedUpTo, records.get(records.size() - 1).id());
+            }
+            if (!hasMore) {
+                // Lo recibido en directo mientras tanto ya está guardado
+                if (!conversation.records.isEmpty()) {
+                    conversation.syncedUpTo = Math.max(conversation.syncedUpTo, conversation.records.lastKey());
+                }
+                conversation.live = true;
+            }
+        }
+    }
+
+    /** Conexión perdida: lo que llegue mientras tanto habrá que pedirlo al volver a abrir cada conversación. */
+    synchronized void disconnected() {
+        for (Conversation conversation : cache.values()) {
+            conversation.live = false;
+        }
+    }
+
+    /** Escribe en disco una conversación con cambios, al salir de ella. */
+    synchronized void save(String peer) {
+        Conversation conversation = cache.get(peer);
+        if (conversation != null) {
+            write(peer, conversation);
+        }
+    }
+
+    /** Escribe en disco todas las conversaciones con cambios. */
+    synchronized void save() {
+        for (Map.Entry<String, Conversation> entry : cache.entrySet()) {
+            write(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void put(Conversation conversation, HistoryRecord record) {
+        if (conversation.records.size() >= messages && record.id() < conversation.records.firstKey()) {
+            conversation.olderOnServer = true; // No cabe: se queda en el servidor
+            return;
+        }
+        if (conversation.records.put(record.id(), record) == null) {
+            conversation.dirty = true;
+            if (conversation.records.size() > messages) {
+                conversation.records.pollFirstEntry();
+                conversation.olderOnServer = true;
+            }
+        }
+    }
+
+    private Conversation conversation(String peer, boolean create) {
+        Conversation conversation = cache.get(peer);
+        if (conversation == null) {
+            conversation = read(peer);
+            if (conversation == null && !create) {
+                return null;
+            }
+            if (conversation == null) {
+                conversation = new Conversation();
+            }
+            cache.put(peer, conversation);
+            Iterator<Map.Entry<String, Conversation>> it = cache.entrySet().iterator();
+            while (cache.size() > conversations && it.hasNext()) {
+                Map.Entry<String, Conversation> eldest = it.next();
+                write(eldest.getKey(), eldest.getValue());
+                it.remove();
+            }
+        }
+        return conversation;
+    }
+
+    private Path file(String peer) {
+        String user = URLEncoder.encode(owner == null ? "" : owner, StandardCharsets.UTF_8);
+        return dir.resolve(user).resolve(URLEncoder.encode(peer, StandardCharsets.UTF_8) + ".hist");
+    }
+
+    // Formato: versión, syncedUpTo, olderOnServer y los mensajes como en HISTORY_PAGE
+    private Conversation read(String peer) {
+        if (dir == null || owner == null) {
+            return null;
+        }
+        Path file = file(peer);
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try (DataInputStream in = new DataInputStream(Files.newInputStream(file))) {
+            if (in.readInt() != FORMAT) {
+                return null;
+            }
+            Conversation conversation = new Conversation();
+            conversation.syncedUpTo = in.readLong();
+            conversation.olderOnServer = in.readBoolean();
+            byte[] payload = new byte[in.readInt()];
+            in.readFully(payload);
+            for (HistoryRecord record : FrameCodec.readHistory(payload)) {
+                conversation.records.put(record.id(), record);
+            }
+            return conversation;
+        } catch (IOException | RuntimeException e) {
+            onError.accept("[No se pudo leer el historial guardado de " + peer + ": " + e.getMessage() + "]");
+            return null;
+        }
+    }
+
+    private void write(String peer, Conversation conversation) {
+        if (dir == null || owner == null || !conversation.dirty) {
+            return;
+        }
+        Path file = file(peer);
+        try {
+            Files.createDirectories(file.getParent());
+            Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+            byte[] payload = FrameCodec.writeHistory(new ArrayList<>(conversation.records.values()));
+            try (DataOutputStream out = new DataOutputStream(Files.newOutputStream(tmp))) {
+                out.writeInt(FORMAT);
+                out.writeLong(conversation.syncedUpTo);
+                out.writeBoolean(conversation.olderOnServer);
+                out.writeInt(payload.length);
+                out.write(payload);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            conversation.dirty = false;
+        } catch (IOException e) {
+            onError.accept("[No se pudo guardar el historial de " + peer + ": " + e.getMessage() + "]");
+        }
+    }
+}
@@ -5,19 +5,22 @@
     package com.mycompany.jpsocket.client;
 
 import java.awt.Color;
-import java.awt.Image;
-    import java.awt.image.BufferedImage;
-    import java.io.ByteArrayInputStream;
-    import java.io.ByteArrayOutputStream;
-    import java.io.DataInputStream;
-    import java.io.DataOutputStream;
-    import java.io.File;
-    import java.io.FileInputStream;
-    import java.io.FileOutputStream;
-    import java.io.IOException;
-    import java.net.Socket;
-
-    import javax.imageio.ImageIO;
+import java.io.IOException;
+    import java.nio.ByteBuffer;
+    import java.nio.channels.FileChannel;
+    import java.nio.file.Files;
+    import java.nio.file.InvalidPathException;
+    import java.nio.file.Path;
+    import java.nio.file.StandardOpenOption;
+    import java.time.Instant;
+    import java.time.ZoneId;
+    import java.time.format.DateTimeFormatter;
+    import java.util.ArrayList;
+    import java.util.HashMap;
+    import java.util.List;
+    import java.util.Map;
+    import java.util.concurrent.CompletableFuture;
+
     import javax.swing.ImageIcon;
 
     import javax.swing.JFileChooser;
@@ -25,16 +28,76 @@ import java.awt.Image;
     import javax.swing.JOptionPane;
     import javax.swing.table.DefaultTableModel;
 
+    import com.mycompany.jpsocket.ServerConfig;
+    import com.mycompany.jpsocket.protocol.HistoryRecord;
+
     /**
+     * Interfaz del chat sobre {@link ChatClient}: la conexión, los envíos y la reconexión son cosa
+     * del cliente, que avisa desde su hilo; aquí solo se pasa cada aviso al hilo de Swing.
      *
      * @author k4lfer
      */
-    public class JFClient extends javax.swing.JFrame implements Runnable{
-        private String name;
-        private String receiver;
-        private Socket socket;
-        private DataInputStream input;
-        private DataOutputStream output;
+    public class JFClient extends javax.swing.JFrame implements ChatClient.Listener {
+        private static String host = "127.0.0.1"; // Servidor; se cambia con --host y --port
+        private static int port = 9999;
+        private static Path downloads = Path.of("descargas"); // Archivos recibidos; se cambia con --downloads.dir
+        private static long thumbnailCacheBytes = 16L * 1024 * 1024; // --thumbnails.cache.bytes
+        private static int chatMaxLines = 1000; // Líneas en memoria; --chat.max.lines
+        private static Path historyCacheDir; // Historial guardado en disco; --history.cache.dir (solo memoria si no se indica)
+        private static int historyCacheMessages = 1000; // --history.cache.messages por conversación
+        private static int historyCacheConversations = 100; // --history.cache.conversations
+
+        private volatile String name; // También los lee el hilo del cliente
+        private volatile String receiver;
+        private ChatClient client;
+
+        private static final int HISTORY_PAGE_SIZE = 50; // Mensajes por página de historial
+        private static final int TICK_MILLIS = 16; // Lo recibido se muestra como mucho una vez por tick
+        private final MessageListModel messages = new MessageListModel(chatMaxLines, TICK_MILLIS);
+        private int rowHeight;
+        private long oldestHistoryId; // Cursor: id del mensaje más antiguo mostrado
+        private boolean historyHasMore; // Hay mensajes más antiguos, en el servidor o descartados de la vista
+        private long newestHistoryId; // Cursor hacia delante: id del mensaje más reciente mostrado
+        private volatile boolean historyHasNewer; // Se descartaron mensajes recientes al cargar los antiguos
+        private boolean historyLoading; // Hay una petición de historial en curso
+        private final HistoryCache historyCache = new HistoryCache(historyCacheMessages, historyCacheConversations, historyCacheDir, this::append);
+
+        private final DefaultTableModel userTableModel = new DefaultTableModel(new String[]{"Users", "Status"}, 0);
+
+        private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+
+        // Archivos que se están recibiendo, por id de transferencia; solo los usa el hilo del cliente
+        private final Map<Long, IncomingFile> incomingFiles = new HashMap<>();
+        private final ThumbnailCache thumbnails = new ThumbnailCache(thumbnailCacheBytes, 2);
+
+        // Cada trozo se escribe en un archivo .part según llega; al terminar se renombra
+        private static final class IncomingFile {
+            final String name;
+            final String sender;
+            final long size;
+            final Path part;
+            final FileChannel channel;
+            long received;
+            int percent = -1; // Último progreso mostrado
+
+            IncomingFile(long transferId, String name, String sender, long size) throws IOException {
+                this.name = name;
+                this.sender = sender;
+                this.size = size;
+                Files.createDirectories(downloads);
+                this.part = downloads.resolve(Long.toHexString(transferId) + ".part");
+                this.channel = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                        StandardOpenOption.TRUNCATE_EXISTING);
+            }
+
+            void discard() {
+                try {
+                    channel.close();
+                    Files.deleteIfExists(part);
+                } catch (IOException ignored) {
+                }
+            }
+        }
 
 
         /**
@@ -45,56 +108,329 @@ import java.awt.Image;
             
             jTFInputMessage.setEditable(false);
             jBttnSend.setEnabled(false);
-            jTxtMessageArea.setEditable(false);
+
+            // Filas de altura y anchura fijas: el JList no mide cada línea y solo pinta las visibles
+            rowHeight = jListMessages.getFontMetrics(jListMessages.getFont()).getHeight() + 2;
+            jListMessages.setFixedCellHeight(rowHeight);
+            jListMessages.setFixedCellWidth(1); // Ocupa el ancho de la vista
+            jListMessages.setModel(messages);
+            messages.setOnTick(this::showLines);
+            Runtime.getRuntime().addShutdownHook(new Thread(historyCache::save, "history-cache"));
+
+            // Al llegar arriba del todo se piden los mensajes anteriores; abajo, los descartados al subir
+            jScrollPane3.getVerticalScrollBar().addAdjustmentListener(e -> {
+                if (e.getValueIsAdjusting() || historyLoading) {
+                    return;
+                }
+                if (e.getValue() == 0 && historyHasMore) {
+                    requestHistory(oldestHistoryId, 0);
+                } else if (historyHasNewer && atBottom()) {
+                    requestHistory(0, newestHistoryId);
+                }
+            });
         }
 
 
-        // Conectar al servidor
+        // Conectar al servidor; si la conexión se pierde, el cliente reconecta solo
         private void connect() {
-            try {
-                socket = new Socket("0.0.0.0", 9999); // Conectar al servidor en localhost y puerto 9999
-                input = new DataInputStream(socket.getInputStream()); // Stream de entrada
-                output = new DataOutputStream(socket.getOutputStream()); // Stream de salida
-                output.writeUTF(name); // Enviar el nombre del usuario
+            client = new ChatClient(host, port, name, this);
+            client.setReconnect(500, 30_000);
+            client.connect();
+        }
 
-                Thread thread = new Thread(this); // Crea un nuevo hilo
-                thread.start(); // Hilo que escucha mensajes del servidor
+        // Enviar mensaje al servidor: "/join sala", "/leave sala", "#sala texto" o privado al usuario elegido
+        private void enviarMensaje() {
+            String text = jTFInputMessage.getText();
+            if (text.startsWith("/join ") || text.startsWith("/leave ")) {
+                String room = text.substring(text.indexOf(' ') + 1);
+                reportFailure(text.startsWith("/join ") ? client.joinRoom(room) : client.leaveRoom(room), "Error al enviar mensaje: ");
+                jTFInputMessage.setText("");
+                return;
+            }
+            int space = text.indexOf(' ');
+            if (text.startsWith("#") && space > 1) {
+                reportFailure(client.sendRoomText(text.substring(1, space), text.substring(space + 1)), "Error al enviar mensaje: ");
+                jTFInputMessage.setText("");
+                return;
+            }
+            if (receiver == null || receiver.isEmpty()) {
+                JOptionPane.showMessageDialog(this, "Please select a user to send the message.", "Error", JOptionPane.ERROR_MESSAGE);
+                return;
+            }
+            reportFailure(client.sendText(receiver, text), "Error al enviar mensaje: "); // No espera a que salga por la red
+            jTFInputMessage.setText(""); // Limpia el campo de entrada de mensaje
+        }
 
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "No se pudo conectar al servidor: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+        // Los envíos se completan en el hilo del cliente; si fallan, se avisa en el de Swing
+        private void reportFailure(CompletableFuture<?> sent, String message) {
+            sent.whenComplete((ignored, error) -> {
+                if (error != null) {
+                    java.awt.EventQueue.invokeLater(() -> JOptionPane.showMessageDialog(this,
+                            message + error.getMessage(), "Error", JOptionPane.ERROR_MESSAGE));
+                }
+            });
+        }
+
+        // Pide una página de historial de la conversación actual: anterior a beforeId (0 para la
+        // más reciente) o, si afterId > 0, posterior a afterId
+        private void requestHistory(long beforeId, long afterId) {
+            if (client == null || receiver == null || receiver.isEmpty()) {
+                return;
             }
+            historyLoading = true;
+            String peer = receiver;
+            client.history(peer, beforeId, afterId, HISTORY_PAGE_SIZE).whenComplete((page, error) -> {
+                if (error != null) {
+                    java.awt.EventQueue.invokeLater(() -> historyLoading = false);
+                } else {
+                    if (afterId > 0) {
+                        historyCache.addNewer(peer, page.records(), page.hasMore(), false);
+                    } else {
+                        historyCache.addOlder(peer, page.records(), page.hasMore(), beforeId == 0);
+                    }
+                    showHistoryPage(peer, page.records(), page.hasMore(), afterId > 0);
+                }
+            });
         }
 
-        // Enviar mensaje al servidor
-        private void enviarMensaje() {
-            try {
-                if (receiver == null || receiver.isEmpty()) {
-                    JOptionPane.showMessageDialog(this, "Please select a user to send the message.", "Error", JOptionPane.ERROR_MESSAGE);
+        // Pide lo posterior a lo guardado de una conversación, página a página hasta el final
+        private void syncHistory(String peer, long afterId) {
+            client.history(peer, 0, afterId, HISTORY_PAGE_SIZE).whenComplete((page, error) -> {
+                if (error != null) {
+                    return; // Al reconectar se pide lo que falte
+                }
+                historyCache.addNewer(peer, page.records(), page.hasMore(), true);
+                showHistoryPage(peer, page.records(), page.hasMore(), true);
+                if (page.hasMore() && !page.records().isEmpty()) {
+                    syncHistory(peer, page.records().get(page.records().size() - 1).id());
+                }
+            });
+        }
+
+        // Muestra una página de historial: las anteriores se insertan arriba, las posteriores abajo
+        private void showHistoryPage(String peer, List<HistoryRecord> records, boolean hasMore, boolean forward) {
+            List<MessageListModel.Line> lines = toLines(records);
+            java.awt.EventQueue.invokeLater(() -> {
+                if (!peer.equals(receiver)) {
+                    return; // Se cambió de conversación mientras llegaba
+                }
+                if (forward) {
+                    historyHasNewer = hasMore;
+                    showLines(lines);
+                    HistoryCache.Snapshot cached = historyCache.get(peer);
+                    if (!hasMore && cached != null) { // Lo que llegó en directo mientras tanto
+                        List<HistoryRecord> newer = new ArrayList<>(cached.records());
+                        newer.removeIf(record -> record.id() <= newestHistoryId);
+                        showLines(toLines(newer));
+                    }
+                    java.awt.EventQueue.invokeLater(() -> historyLoading = false);
                     return;
                 }
-                output.writeUTF("RECEIVER:" + receiver + "\n"); // Envía el receptor al servidor
-                output.writeUTF(jTFInputMessage.getText() + "\n"); // Envía el mensaje al servidor con el nombre del usuario
-                jTFInputMessage.setText(""); // Limpia el campo de entrada de mensaje
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Error al enviar mensaje: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                boolean firstPage = oldestHistoryId == 0;
+                int shown = messages.getSize();
+                if (messages.prepend(lines) > 0) {
+                    historyHasNewer = true; // Se piden de nuevo al volver abajo
+                    newestHistoryId = messages.lastId();
+                }
+                oldestHistoryId = messages.firstId();
+                historyHasMore = hasMore || messages.getSize() - shown < lines.size(); // Alguna no cabía en la vista
+                if (newestHistoryId == 0) newestHistoryId = messages.lastId();
+                javax.swing.JScrollBar bar = jScrollPane3.getVerticalScrollBar();
+                int value = bar.getValue();
+                java.awt.EventQueue.invokeLater(() -> {
+                    if (firstPage) {
+                        jListMessages.ensureIndexIsVisible(messages.getSize() - 1);
+                    } else {
+                        bar.setValue(value + lines.size() * rowHeight); // Mantiene a la vista el mismo mensaje
+                    }
+                    historyLoading = false;
+                });
+            });
+        }
+
+        private List<MessageListModel.Line> toLines(List<HistoryRecord> records) {
+            List<MessageListModel.Line> lines = new ArrayList<>(records.size());
+            for (HistoryRecord record : records) {
+                lines.add(new MessageListModel.Line(record.id(), formatMessage(record.timestamp(), record.sender(), record.text())));
+            }
+            return lines;
+        }
+
+        // Añade al final lo recibido en un tick; sigue abajo si ya lo estaba
+        private void showLines(List<MessageListModel.Line> lines) {
+            // Un mensaje de la conversación puede llegar en directo y también en una página
+            lines.removeIf(line -> line.id() > 0 && line.id() <= newestHistoryId);
+            if (lines.isEmpty()) {
+                return;
+            }
+            boolean following = atBottom();
+            int evicted = messages.append(lines);
+            long last = messages.lastId();
+            if (last > 0) newestHistoryId = last;
+            if (evicted > 0 && messages.firstId() > 0) { // Lo descartado se vuelve a pedir al subir
+                oldestHistoryId = messages.firstId();
+                historyHasMore = true;
+            }
+            javax.swing.JScrollBar bar = jScrollPane3.getVerticalScrollBar();
+            int value = bar.getValue();
+            java.awt.EventQueue.invokeLater(() -> {
+                if (following) {
+                    jListMessages.ensureIndexIsVisible(messages.getSize() - 1);
+                } else if (evicted > 0) {
+                    bar.setValue(value - evicted * rowHeight); // Mantiene a la vista el mismo mensaje
+                }
+            });
+        }
+
+        private boolean atBottom() {
+            javax.swing.JScrollBar bar = jScrollPane3.getVerticalScrollBar();
+            return bar.getValue() + bar.getVisibleAmount() >= bar.getMaximum() - rowHeight;
+        }
+
+        // Mismo formato que el historial del servidor: [HH:mm] [Yo] texto o [emisor] texto
+        private String formatMessage(long timestamp, String sender, String text) {
+            return "[" + TIME.format(Instant.ofEpochMilli(timestamp)) + "] "
+                    + (sender.equals(name) ? "[Yo] " : "[" + sender + "] ") + text;
+        }
+
+        private void append(String line) {
+            messages.post(new MessageListModel.Line(0, line));
+        }
+
+        // Avisos de ChatClient, desde su hilo
+
+        @Override
+        public void connected(String assigned) { // Puede ser otro nombre si el nuestro estaba en uso
+            historyCache.setOwner(assigned);
+            java.awt.EventQueue.invokeLater(() -> {
+                name = assigned;
+                jTFName.setText(assigned);
+                if (historyHasNewer && atBottom()) {
+                    requestHistory(0, newestHistoryId); // Lo recibido mientras no había conexión
+                }
+            });
+        }
+
+        @Override
+        public void disconnected(IOException cause, long retryMillis) {
+            historyCache.disconnected();
+            java.awt.EventQueue.invokeLater(() -> {
+                if (receiver != null && newestHistoryId > 0) {
+                    historyHasNewer = true; // Lo que llegue mientras tanto se pide al reconectar
+                }
+            });
+            append("[Conexión perdida: " + cause.getMessage() + ". Reconectando en " + retryMillis + " ms]");
+        }
+
+        @Override
+        public void users(List<String> users) {
+            java.awt.EventQueue.invokeLater(() -> {
+                userTableModel.setRowCount(0);
+                for (String user : users) {
+                    userTableModel.addRow(new Object[]{user, "Online"});
+                }
+                if (jTable1.getModel() != userTableModel) {
+                    jTable1.setModel(userTableModel);
+                }
+            });
+        }
+
+        @Override
+        public void text(long id, String sender, String to, String text) {
+            String peer = sender.equals(name) ? to : sender;
+            historyCache.addLive(peer, new HistoryRecord(id, System.currentTimeMillis(), sender, text));
+            boolean open = peer.equals(receiver); // De la conversación abierta
+            if (open && historyHasNewer) {
+                return; // Llegará con el resto al volver abajo
             }
+            messages.post(new MessageListModel.Line(open ? id : 0, formatMessage(System.currentTimeMillis(), sender, text)));
         }
 
-        private void updateUserTable(String listData) {
-            String[] rows = listData.split(",");
-            String[][] data = new String[rows.length][2];
+        @Override
+        public void roomText(String room, String sender, String text) {
+            append("[#" + room + "] " + formatMessage(System.currentTimeMillis(), sender, text));
+        }
+
+        @Override
+        public void notice(String text) {
+            append(text);
+        }
 
-            for (int i = 0; i < rows.length; i++) {
-                if(!rows[i].isEmpty()) {
-                    data[i][0] = rows[i];
-                    data[i][1] = "Online";
+        @Override
+        public void fileBegin(long transferId, String sender, String fileName, long size) {
+            try {
+                incomingFiles.put(transferId, new IncomingFile(transferId, fileName, sender, size));
+            } catch (IOException e) {
+                append("[No se pudo guardar " + fileName + ": " + e.getMessage() + "]");
+            }
+        }
+
+        // Se escribe directamente al disco: el archivo nunca está entero en memoria
+        @Override
+        public void fileChunk(long transferId, long offset, ByteBuffer data) {
+            IncomingFile incoming = incomingFiles.get(transferId);
+            if (incoming == null) {
+                return;
+            }
+            try {
+                long position = offset;
+                while (data.hasRemaining()) {
+                    position += incoming.channel.write(data, position);
                 }
+                incoming.received = position;
+            } catch (IOException e) {
+                incomingFiles.remove(transferId);
+                incoming.discard();
+                append("[No se pudo guardar " + incoming.name + ": " + e.getMessage() + "]");
+                return;
             }
+            int percent = incoming.size > 0 ? (int) (incoming.received * 100 / incoming.size) : 100;
+            if (percent != incoming.percent) { // Como mucho una actualización por punto
+                incoming.percent = percent;
+                java.awt.EventQueue.invokeLater(() -> setTitle("Recibiendo " + incoming.name + ": " + percent + "%"));
+            }
+        }
 
-            jTable1.setModel(new DefaultTableModel(
-                data,
-                new String[]{"Users", "Status"}
-            ));
+        @Override
+        public void fileEnd(long transferId, boolean complete) {
+            IncomingFile incoming = incomingFiles.remove(transferId);
+            if (incoming == null) {
+                return;
+            }
+            java.awt.EventQueue.invokeLater(() -> setTitle(""));
+            if (!complete) {
+                incoming.discard();
+                append("[Archivo dañado, descartado: " + incoming.name + "]");
+                return;
+            }
+            try {
+                incoming.channel.close();
+                Path file = Files.move(incoming.part, freeName(incoming.name));
+                append("[Archivo de " + incoming.sender + " guardado en " + file + "]");
+                java.awt.EventQueue.invokeLater(() -> showReceivedFile(file));
+            } catch (IOException e) {
+                incoming.discard();
+                append("[No se pudo guardar " + incoming.name + ": " + e.getMessage() + "]");
+            }
+        }
+
+        // Nombre en la carpeta de descargas sin pisar otro archivo: foto.png, foto (1).png...
+        private static Path freeName(String fileName) {
+            String base;
+            try {
+                Path name = Path.of(fileName).getFileName(); // Sin directorios del emisor
+                base = name != null ? name.toString() : "archivo";
+            } catch (InvalidPathException e) {
+                base = "archivo";
+            }
+            int dot = base.lastIndexOf('.');
+            String stem = dot > 0 ? base.substring(0, dot) : base;
+            String extension = dot > 0 ? base.substring(dot) : "";
+            Path candidate = downloads.resolve(base);
+            for (int i = 1; Files.exists(candidate); i++) {
+                candidate = downloads.resolve(stem + " (" + i + ")" + extension);
+            }
+            return candidate;
         }
 
 
@@ -115,7 +451,7 @@ import java.awt.Image;
             jScrollPane1 = new javax.swing.JScrollPane();
             jTable1 = new javax.swing.JTable();
             jScrollPane3 = new javax.swing.JScrollPane();
-            jTxtMessageArea = new javax.swing.JTextArea();
+            jListMessages = new javax.swing.JList<>();
             jPViewImg = new javax.swing.JPanel();
 
             setDefaultCloseOperation(javax.swing.WindowConstants.EXIT_ON_CLOSE);
@@ -159,9 +495,7 @@ import java.awt.Image;
             });
             jScrollPane1.setViewportView(jTable1);
 
-            jTxtMessageArea.setColumns(20);
-            jTxtMessageArea.setRows(5);
-            jScrollPane3.setViewportView(jTxtMessageArea);
+            jScrollPane3.setViewportView(jListMessages);
 
             jPViewImg.setBorder(javax.swing.BorderFactory.createLineBorder(new java.awt.Color(0, 0, 0)));
 
@@ -256,31 +590,19 @@ import java.awt.Image;
             if (result == JFileChooser.APPROVE_OPTION) {
                 java.io.File selectedFile = fileChooser.getSelectedFile();
 
-                try (FileInputStream fileInput = new FileInputStream(selectedFile)) {
-                    if (receiver == null || receiver.isEmpty()) {
-                        JOptionPane.showMessageDialog(this, "Por favor selecciona un receptor antes de enviar el archivo.", "Error", JOptionPane.ERROR_MESSAGE);
-                        return;
-                    }
-
-                    output.writeUTF("RECEIVER:" + receiver); 
-                    // Enviar nombre y tamaño primero
-                    output.writeUTF("FILE"); // comando para indicar que se enviará un archivo
-                    output.writeUTF(selectedFile.getName()); // Nombre del archivo
-                    output.writeLong(selectedFile.length()); // Tamaño del archivo
-
-                    // Enviar contenido en fragmentos
-                    byte[] buffer = new byte[4096];
-                    int bytesRead;
-                    while ((bytesRead = fileInput.read(buffer)) != -1) {
-                        output.write(buffer, 0, bytesRead);
-                    }
-                    output.flush(); // Asegura que todos los datos se envíen
-
-                    JOptionPane.showMessageDialog(this, "Archivo enviado exitosamente.");
-
-                } catch (IOException ex) {
-                    JOptionPane.showMessageDialog(this, "Error al enviar el archivo: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
+                if (receiver == null || receiver.isEmpty()) {
+                    JOptionPane.showMessageDialog(this, "Por favor selecciona un receptor antes de enviar el archivo.", "Error", JOptionPane.ERROR_MESSAGE);
+                    return;
                 }
+                // Sube en un hilo del cliente sin bloquear la interfaz
+                client.sendFile(selectedFile, receiver).whenComplete((size, error) -> java.awt.EventQueue.invokeLater(() -> {
+                    if (error == null) {
+                        JOptionPane.showMessageDialog(this, "Archivo enviado exitosamente.");
+                    } else {
+                        JOptionPane.showMessageDialog(this, "Error al enviar el archivo: " + error.getMessage()
+                                + "\nSi vuelves a enviarlo, continuará donde se quedó.", "Error", JOptionPane.ERROR_MESSAGE);
+                    }
+                }));
             }
         }//GEN-LAST:event_jBttnLoadFileActionPerformed
 
@@ -288,8 +610,30 @@ import java.awt.Image;
             // TODO add your handling code here:
             int selectedRow = jTable1.getSelectedRow();  
             if (selectedRow != -1) {
+                String previous = receiver;
                 receiver = (String) jTable1.getValueAt(selectedRow, 0);
-                jTxtMessageArea.setText("");
+                if (previous != null && !previous.equals(receiver)) {
+                    historyCache.save(previous);
+                }
+                messages.clear();
+                oldestHistoryId = 0;
+                newestHistoryId = 0;
+                historyHasMore = false;
+                historyHasNewer = false;
+                HistoryCache.Snapshot cached = historyCache.get(receiver);
+                if (cached == null || cached.syncedUpTo() == 0) {
+                    historyCache.open(receiver);
+                    requestHistory(0, 0); // Carga la página más reciente; las anteriores al hacer scroll
+                } else if (cached.live()) {
+                    showHistoryPage(receiver, cached.records(), cached.olderOnServer(), false); // Sin pedir nada
+                } else {
+                    // Lo guardado hasta donde no falta nada, y del servidor solo lo posterior
+                    List<HistoryRecord> synced = new ArrayList<>(cached.records());
+                    synced.removeIf(record -> record.id() > cached.syncedUpTo());
+                    showHistoryPage(receiver, synced, cached.olderOnServer(), false);
+                    historyHasNewer = true; // Lo que llegue en directo se muestra tras la sincronización
+                    syncHistory(receiver, cached.syncedUpTo());
+                }
             }    
 
         }//GEN-LAST:event_jTable1MouseClicked
@@ -300,6 +644,17 @@ import java.awt.Image;
          * @param args the command line arguments
          */
         public static void main(String args[]) {
+            ServerConfig config = ServerConfig.load(args); // --host y --port, o -Djpsocket.host y -Djpsocket.port
+            host = config.getString("host", host);
+            port = config.getInt("port", port);
+            downloads = Path.of(config.getString("downloads.dir", downloads.toString()));
+            thumbnailCacheBytes = config.getLong("thumbnails.cache.bytes", thumbnailCacheBytes);
+            chatMaxLines = config.getInt("chat.max.lines", chatMaxLines);
+            String cacheDir = config.getString("history.cache.dir", "");
+            historyCacheDir = cacheDir.isEmpty() ? null : Path.of(cacheDir);
+            historyCacheMessages = config.getInt("history.cache.messages", historyCacheMessages);
+            historyCacheConversations = config.getInt("history.cache.conversations", historyCacheConversations);
+
             /* Set the Nimbus look and feel */
             //<editor-fold defaultstate="collapsed" desc=" Look and feel setting code (optional) ">
             /* If Nimbus (introduced in Java SE 6) is not available, stay with the default look and feel.
@@ -335,86 +690,34 @@ import java.awt.Image;
         private javax.swing.JButton jBttnLoadFile;
         private javax.swing.JButton jBttnRegister;
         private javax.swing.JButton jBttnSend;
+        private javax.swing.JList<String> jListMessages;
         private javax.swing.JPanel jPViewImg;
         private javax.swing.JScrollPane jScrollPane1;
         private javax.swing.JScrollPane jScrollPane3;
         private javax.swing.JTextField jTFInputMessage;
         private javax.swing.JTextField jTFName;
         private javax.swing.JTable jTable1;
-        private javax.swing.JTextArea jTxtMessageArea;
         // End of variables declaration//GEN-END:variables
         
-        @Override
-        public void run() {
-            try {
-                while (!socket.isClosed()) { // Mientras el socket no esté cerrado
-                    // Lee el mensaje enviado por el servidor
-                    String msg = input.readUTF();
-                    if (msg.startsWith("USERLIST:")) {
-                        updateUserTable(msg.substring(9));
-                    }
-                    else if (msg.startsWith("FILE")) {
-                        try {
-                            String fileName = input.readUTF();
-                            String senderName = input.readUTF();
-                            long fileSize = input.readLong();
-
-                            ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                            byte[] buffer = new byte[4096];
-                            long totalRead = 0;
-                            int read;
-
-                            while (totalRead < fileSize &&
-                                (read = input.read(buffer, 0, (int)Math.min(buffer.length, fileSize - totalRead))) != -1) {
-                                baos.write(buffer, 0, read);
-                                totalRead += read;
-                            }
-
-                            System.out.println("Tamaño total leído: " + totalRead + " bytes");
-
-                            //jTxtMessageArea.append("[Archivo recibido: " + fileName + "]\n");
-                            System.out.println("Archivo recibido: " + fileName + " (" + totalRead + " bytes)");
-
-                            if (fileName.endsWith(".jpg") || fileName.endsWith(".jpeg") || fileName.endsWith(".png")) {
-                                ByteArrayInputStream bais = new ByteArrayInputStream(baos.toByteArray());
-                                BufferedImage img = ImageIO.read(bais);
-
-                                if (img != null) {
-                                    jPViewImg.setLayout(new java.awt.BorderLayout());
-
-                                    Image scaledImage = img.getScaledInstance(jPViewImg.getWidth(), jPViewImg.getHeight(), Image.SCALE_SMOOTH);
-                                    ImageIcon icon = new ImageIcon(scaledImage);
-                                    JLabel imageLabel = new JLabel(icon);
-
-                                    jPViewImg.removeAll(); // Limpiar contenido anterior
-                                    jPViewImg.add(imageLabel);
-                                    jPViewImg.revalidate();
-                                    jPViewImg.repaint();
-                                    jPViewImg.setVisible(true);
-                                    System.out.println("Imagen cargada correctamente");
-                                } else {
-                                    jTxtMessageArea.append("No se pudo mostrar la imagen.\n");
-                                }
-                            }
-
-                        } catch (IOException ex) {
-                            JOptionPane.showMessageDialog(this, "Error al recibir archivo: " + ex.getMessage());
-                        }
-                    }
-                    else{
-                        jTxtMessageArea.append(msg + "\n"); 
-                    }
-                            
-                }
-            } catch (IOException ex) {
-                JOptionPane.showMessageDialog(this, "Conexión perdida: " + ex.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-            } finally { // Bloque finally para cerrar recursos
-                // Cierra los streams de entrada y salida
-                try {
-                    if (socket != null) socket.close(); 
-                } catch (IOException ignored) {
-                    JOptionPane.showMessageDialog(this, "Error al cerrar la conexión: " + ignored.getMessage(), "Error", JOptionPane.ERROR_MESSAGE);
-                } 
+        // Las imágenes se muestran como miniatura, decodificada en segundo plano
+        private void showReceivedFile(Path file) {
+            String fileName = file.getFileName().toString().toLowerCase();
+            if (!(fileName.endsWith(".jpg") || fileName.endsWith(".jpeg") || fileName.endsWith(".png"))) {
+                return;
             }
+            thumbnails.get(file, jPViewImg.getWidth(), jPViewImg.getHeight()).thenAccept(img -> java.awt.EventQueue.invokeLater(() -> {
+                if (img != null) {
+                    jPViewImg.setLayout(new java.awt.BorderLayout());
+                    JLabel imageLabel = new JLabel(new ImageIcon(img));
+
+                    jPViewImg.removeAll(); // Limpiar contenido anterior
+                    jPViewImg.add(imageLabel);
+                    jPViewImg.revalidate();
+                    jPViewImg.repaint();
+                    jPViewImg.setVisible(true);
+                } else {
+                    append("No se pudo mostrar la imagen.");
+                }
+            }));
         }
     }
@@ -0,0 +1,170 @@
+package com.mycompany.jpsocket.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Consumer;
+
+import javax.swing.AbstractListModel;
+import javax.swing.Timer;
+
+/**
+ * Líneas del chat para un {@code JList}, con un máximo de {@code capacity}. Con altura y anchura
+ * de celda fijas el {@code JList} solo pinta las filas visibles, así que el coste no depende de
+ * cuántas líneas haya.
+ * <p>
+ * Al pasar del máximo se descartan las líneas del extremo contrario al que se añade: las más
+ * antiguas al llegar mensajes nuevos, las más recientes al cargar historial hacia atrás. Las que
+ * tienen id se pueden volver a pedir al servidor con {@link #firstId()} y {@link #lastId()}.
+ * <p>
+ * Los métodos se llaman desde el hilo de Swing, salvo {@link #post(Line)}: lo que llega de la red
+ * se acumula y se añade de una vez, como mucho una vez cada {@code tickMillis}, con un solo aviso
+ * al {@code JList}.
+ */
+@SuppressWarnings("serial") // No se serializa: solo vive en la ventana
+final class MessageListModel extends AbstractListModel<String> {
+
+    /** Una línea; {@code id} es el del historial si es de la conversación abierta, 0 si no. */
+    record Line(long id, String text) {
+    }
+
+    private final Line[] ring;
+    private int head; // Posición de la primera línea en ring
+    private int size;
+    private final ConcurrentLinkedQueue<Line> pending = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+    private final Timer tick;
+    private Consumer<List<Line>> onTick = this::append;
+
+    MessageListModel(int capacity, int tickMillis) {
+        this.ring = new Line[Math.max(1, capacity)];
+        this.tick = new Timer(tickMillis, e -> flush());
+        this.tick.setRepeats(false);
+    }
+
+    /**
+     * Recibe lo acumulado en cada tick, en lugar de añadirlo directamente; para mirar la vista
+     * antes y después de {@link #append(List)}.
+     */
+    void setOnTick(Consumer<List<Line>> onTick) {
+        this.onTick = onTick;
+    }
+
+    /** Desde cualquier hilo: la línea se añade al final en el próximo tick. */
+    void post(Line line) {
+        pending.add(line);
+        if (scheduled.compareAndSet(false, true)) {
+            java.awt.EventQueue.invokeLater(tick::restart);
+        }
+    }
+
+    private void flush() {
+        scheduled.set(false); // Lo que llegue a partir de aquí programa otro tick
+        List<Line> lines = new ArrayList<>();
+        Line line;
+        while ((line = pending.poll()) != null) {
+            lines.add(line);
+        }
+        if (!lines.isEmpty()) {
+            onTick.accept(lines);
+        }
+    }
+
+    /**
+     * Añade al final.
+     *
+     * @return Cuántas líneas antiguas se han descartado.
+     */
+    int append(List<Line> lines) {
+        int evicted = Math.max(0, size + lines.size() - ring.length);
+        int skipped = Math.max(0, lines.size() - ring.length); // Si no caben ni las nuevas, solo las últimas
+        if (evicted > 0) {
+            int removed = Math.min(evicted, size);
+            head = (head + removed) % ring.length;
+            size -= removed;
+            if (removed > 0) {
+                fireIntervalRemoved(this, 0, removed - 1);
+            }
+        }
+        int from = size;
+        for (int i = skipped; i < lines.size(); i++) {
+            ring[(head + size++) % ring.length] = lines.get(i);
+        }
+        if (size > from) {
+            fireIntervalAdded(this, from, size - 1);
+        }
+        return evicted;
+    }
+
+    /**
+     * Añade al principio, en el orden dado.
+     *
+     * @return Cuántas líneas recientes se han descartado.
+     */
+    int prepend(List<Line> lines) {
+        int count = Math.min(lines.size(), ring.length);
+        int evicted = Math.max(0, size + count - ring.length);
+        if (evicted > 0) {
+            size -= evicted;
+            fireIntervalRemoved(this, size, size + evicted - 1);
+        }
+        for (int i = lines.size() - 1; i >= lines.size() - count; i--) {
+            head = (head - 1 + ring.length) % ring.length;
+            ring[head] = lines.get(i);
+            size++;
+        }
+        if (count > 0) {
+            fireIntervalAdded(this, 0, count - 1);
+        }
+        return evicted;
+    }
+
+    void clear() {
+        pending.clear();
+        if (size > 0) {
+            int last = size - 1;
+            head = 0;
+            size = 0;
+            Arrays.fill(ring, null);
+            fireIntervalRemoved(this, 0, last);
+        }
+    }
+
+    /** Id de la primera línea con id, o 0. */
+    long firstId() {
+        for (int i = 0; i < size; i++) {
+            long id = line(i).id();
+            if (id > 0) {
+                return id;
+            }
+        }
+        return 0;
+    }
+
+    /** Id de la última línea con id, o 0. */
+    long lastId() {
+        for (int i = size - 1; i >= 0; i--) {
+            long id = line(i).id();
+            if (id > 0) {
+                return id;
+            }
+        }
+        return 0;
+    }
+
+    private Line line(int index) {
+        return ring[(head + index) % ring.length];
+    }
+
+    @Override
+    public int getSize() {
+        return size;
+    }
+
+    @Override
+    public String getElementAt(int index) {
+        return line(index).text();
+    }
+}
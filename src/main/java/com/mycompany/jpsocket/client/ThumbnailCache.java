@@ -0,0 +1,139 @@
+package com.mycompany.jpsocket.client;
+
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Miniaturas de las imágenes recibidas. Se decodifican en hilos propios, nunca en el de Swing ni
+ * en el de la conexión, leyendo del disco solo uno de cada N píxeles cuando la imagen es mucho
+ * mayor que la miniatura, así que una foto grande no se carga entera en memoria.
+ * <p>
+ * Las miniaturas se guardan por archivo y tamaño, de la menos usada a la más usada, hasta
+ * {@code maxBytes} (4 bytes por píxel); al superarlo se descartan las menos usadas.
+ */
+final class ThumbnailCache {
+
+    private record Key(Path file, int width, int height) {
+    }
+
+    private final long maxBytes;
+    private final ExecutorService decoders;
+    private final LinkedHashMap<Key, BufferedImage> thumbnails = new LinkedHashMap<>(16, 0.75f, true); // Orden por último uso
+    private final Map<Key, CompletableFuture<BufferedImage>> loading = new HashMap<>(); // Para no decodificar dos veces
+    private long usedBytes;
+
+    ThumbnailCache(long maxBytes, int threads) {
+        this.maxBytes = maxBytes;
+        this.decoders = Executors.newFixedThreadPool(threads, task -> {
+            Thread thread = new Thread(task, "thumbnails");
+            thread.setDaemon(true);
+            thread.setPriority(Thread.NORM_PRIORITY - 1); // Por detrás de la interfaz y de la conexión
+            return thread;
+        });
+    }
+
+    /**
+     * Miniatura de {@code file} que cabe en {@code width} x {@code height}, conservando la proporción.
+     *
+     * @return Se completa en un hilo del pool (o en el acto si estaba guardada); con {@code null}
+     *         si el archivo no es una imagen que se pueda leer.
+     */
+    CompletableFuture<BufferedImage> get(Path file, int width, int height) {
+        Key key = new Key(file, Math.max(1, width), Math.max(1, height));
+        synchronized (this) {
+            BufferedImage hit = thumbnails.get(key);
+            if (hit != null) {
+                return CompletableFuture.completedFuture(hit);
+            }
+            CompletableFuture<BufferedImage> pending = loading.get(key);
+            if (pending != null) {
+                return pending;
+            }
+            pending = new CompletableFuture<>();
+            loading.put(key, pending);
+            CompletableFuture<BufferedImage> result = pending;
+            decoders.execute(() -> {
+                BufferedImage image = null;
+                try {
+                    image = decode(key);
+                } catch (IOException | RuntimeException e) {
+                    // Se trata como un archivo que no es imagen
+                }
+                store(key, image);
+                result.complete(image);
+            });
+            return pending;
+        }
+    }
+
+    private synchronized void store(Key key, BufferedImage image) {
+        loading.remove(key);
+        if (image == null || bytes(image) > maxBytes) {
+            return;
+        }
+        if (thumbnails.put(key, image) == null) {
+            usedBytes += bytes(image);
+        }
+        Iterator<BufferedImage> it = thumbnails.values().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            usedBytes -= bytes(it.next());
+            it.remove();
+        }
+    }
+
+    private static long bytes(BufferedImage image) {
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+    // Lee con submuestreo (como mucho el doble de la miniatura) y reescala el resultado
+    private static BufferedImage decode(Key key) throws IOException {
+        try (ImageInputStream in = ImageIO.createImageInputStream(key.file().toFile())) {
+            if (in == null) {
+                return null;
+            }
+            Iterator<ImageReader> readers = ImageIO.getImageReaders(in);
+            if (!readers.hasNext()) {
+                return null;
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(in, true, true);
+                int sourceWidth = reader.getWidth(0);
+                int sourceHeight = reader.getHeight(0);
+                double scale = Math.min(1.0, Math.min((double) key.width() / sourceWidth, (double) key.height() / sourceHeight));
+                int step = Math.max(1, (int) (1 / (scale * 2)));
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(step, step, 0, 0);
+                BufferedImage sampled = reader.read(0, param);
+                int width = Math.max(1, (int) Math.round(sourceWidth * scale));
+                int height = Math.max(1, (int) Math.round(sourceHeight * scale));
+                BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                Graphics2D g = thumbnail.createGraphics();
+                try {
+                    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                    g.drawImage(sampled, 0, 0, width, height, null);
+                } finally {
+                    g.dispose();
+                }
+                return thumbnail;
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+}
@@ -0,0 +1,355 @@
+package com.mycompany.jpsocket.load;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mycompany.jpsocket.ServerConfig;
+import com.mycompany.jpsocket.server.LatencyHistogram;
+
+/**
+ * Generador de carga sin interfaz contra un servidor {@code JPSocket} en marcha. Conecta miles
+ * de {@link SimulatedClient} con el protocolo v2 real y les hace enviar mensajes privados,
+ * peticiones de historial y archivos al ritmo indicado, y al final muestra el rendimiento y
+ * los percentiles p50/p99/p999 de la latencia de entrega de cada operación.
+ * <p>
+ * Opciones ({@code --clave=valor} o {@code -Djpsocket.clave=valor}):
+ * <ul>
+ * <li>{@code host} (127.0.0.1) y {@code port} (9999).</li>
+ * <li>{@code clients} (1000): clientes simulados, conectados a {@code connect.rate} por segundo (500).</li>
+ * <li>{@code rate} (2000): operaciones por segundo en total, repartidas según {@code mix}
+ *     ({@code text:90,history:8,file:2}).</li>
+ * <li>{@code profile} ({@code constant}): {@code constant}, {@code ramp} (de 0 a {@code rate})
+ *     o {@code step} (25 %, 50 %, 75 % y 100 % de {@code rate}, un cuarto del tiempo cada uno).</li>
+ * <li>{@code warmup.seconds} (5) al 25 % del ritmo sin contar, y luego {@code duration.seconds} (30).</li>
+ * <li>{@code message.bytes} (100), {@code file.bytes} (262144), {@code history.limit} (50).</li>
+ * <li>{@code file.content} ({@code text}): archivos de palabras, que se comprimen como un
+ *     documento, o {@code random}, que no se comprimen (el peor caso para {@code compress}).</li>
+ * <li>{@code compress} (false): ofrecer compresión al servidor.</li>
+ * <li>{@code senders} (8): hilos que envían; {@code seed} (1) para repetir la misma carga.</li>
+ * <li>{@code max.p99.ms}: si la p99 de los mensajes lo supera, termina con código 1 (para
+ *     detectar regresiones antes de publicar).</li>
+ * </ul>
+ * La latencia se mide desde el instante en que cada operación debía enviarse, no desde que se
+ * envió, para que un servidor lento no oculte su propio retraso frenando al generador.
+ */
+public final class LoadGenerator {
+
+    /** Perfil del ritmo a lo largo de la prueba. */
+    enum Profile {
+        CONSTANT, RAMP, STEP;
+
+        /** Fracción de {@code rate} cuando ha transcurrido {@code progress} (0 a 1) de la prueba. */
+        double factor(double progress) {
+            switch (this) {
+                case RAMP:
+                    return progress;
+                case STEP:
+                    return Math.min(4, Math.floor(progress * 4) + 1) / 4;
+                default:
+                    return 1;
+            }
+        }
+    }
+
+    /** Contadores y latencias de un tipo de operación. */
+    static final class Operation {
+        final String label;
+        final LongAdder sent = new LongAdder();
+        final LongAdder delivered = new LongAdder();
+        final LongAdder failed = new LongAdder();
+        final LatencyHistogram latency = new LatencyHistogram(); // Solo desde el fin del calentamiento
+        final LatencyHistogram interval = new LatencyHistogram(); // Último segundo, para el progreso
+        private final Metrics metrics;
+
+        Operation(String label, Metrics metrics) {
+            this.label = label;
+            this.metrics = metrics;
+        }
+
+        void sent(long intended) {
+            if (intended >= metrics.measureFrom) {
+                sent.increment();
+            }
+        }
+
+        void failed(long intended) {
+            if (intended >= metrics.measureFrom) {
+                failed.increment();
+            }
+        }
+
+        /** Entrega en {@code now} de una operación que debía enviarse en {@code intended}. */
+        void delivered(long intended, long now) {
+            interval.record(now - intended);
+            if (intended >= metrics.measureFrom) {
+                delivered.increment();
+                latency.record(now - intended);
+            }
+        }
+    }
+
+    /** Métricas compartidas por todos los clientes simulados. */
+    static final class Metrics {
+        volatile long measureFrom = Long.MAX_VALUE; // Instante desde el que se cuenta (fin del calentamiento)
+        final Operation text = new Operation("texto", this);
+        final Operation history = new Operation("historial", this);
+        final Operation file = new Operation("archivo", this);
+        final LongAdder disconnected = new LongAdder();
+
+        List<Operation> operations() {
+            return List.of(text, history, file);
+        }
+    }
+
+    private final ServerConfig config;
+    private final Metrics metrics = new Metrics();
+    private final List<SimulatedClient> clients = new ArrayList<>();
+    private final Random random;
+    private final int[] mix = new int[3]; // Pesos de texto, historial y archivo
+    private final byte[] fileContent;
+
+    private LoadGenerator(ServerConfig config) {
+        this.config = config;
+        this.random = new Random(config.getLong("seed", 1));
+        for (String part : config.getString("mix", "text:90,history:8,file:2").split(",")) {
+            String[] pair = part.trim().split(":");
+            int weight = Integer.parseInt(pair[1].trim());
+            switch (pair[0].trim()) {
+                case "text":
+                    mix[0] = weight;
+                    break;
+                case "history":
+                    mix[1] = weight;
+                    break;
+                case "file":
+                    mix[2] = weight;
+                    break;
+                default:
+                    throw new IllegalArgumentException("Operación desconocida en mix: " + pair[0]);
+            }
+        }
+        fileContent = fileContent(config.getInt("file.bytes", 256 * 1024), config.getString("file.content", "text"));
+    }
+
+    public static void main(String[] args) throws InterruptedException {
+        LoadGenerator generator = new LoadGenerator(ServerConfig.load(args));
+        int status = generator.run();
+        System.exit(status);
+    }
+
+    private int run() throws InterruptedException {
+        connect();
+        if (clients.size() < 2) {
+            System.out.println("Hacen falta al menos dos clientes conectados");
+            return 2;
+        }
+        int senders = config.getInt("senders", 8);
+        ThreadPoolExecutor sendPool = (ThreadPoolExecutor) Executors.newFixedThreadPool(senders, daemon("lg-envio"));
+        ExecutorService filePool = Executors.newCachedThreadPool(daemon("lg-archivo"));
+        double rate = config.getLong("rate", 2000);
+        Profile profile = Profile.valueOf(config.getString("profile", "constant").trim().toUpperCase(Locale.ROOT));
+        long warmup = TimeUnit.SECONDS.toNanos(config.getLong("warmup.seconds", 5));
+        long duration = TimeUnit.SECONDS.toNanos(config.getLong("duration.seconds", 30));
+
+        System.out.printf("Carga: %d clientes, %.0f ops/s (%s), calentamiento %d s, duración %d s%n",
+                clients.size(), rate, profile.name().toLowerCase(Locale.ROOT), warmup / 1_000_000_000L, duration / 1_000_000_000L);
+        long start = System.nanoTime();
+        long measureStart = start + warmup;
+        long end = measureStart + duration;
+        long lastTick = start;
+        long nextReport = start + TimeUnit.SECONDS.toNanos(1);
+        double credit = 0;
+        long sentAtLastReport = 0;
+        while (true) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(1));
+            long now = System.nanoTime();
+            if (now >= end) {
+                break;
+            }
+            if (now >= measureStart && metrics.measureFrom == Long.MAX_VALUE) {
+                metrics.measureFrom = measureStart;
+            }
+            double current = now < measureStart ? rate * 0.25 : rate * profile.factor((double) (now - measureStart) / duration);
+            credit += current * (now - lastTick) / 1e9;
+            int due = (int) credit;
+            credit -= due;
+            for (int i = 0; i < due; i++) {
+                long intended = lastTick + (now - lastTick) * (i + 1) / due; // Repartidas en el intervalo
+                dispatch(intended, sendPool, filePool);
+            }
+            lastTick = now;
+            if (now >= nextReport) {
+                sentAtLastReport = progress(now - start, sentAtLastReport, sendPool.getQueue().size());
+                nextReport += TimeUnit.SECONDS.toNanos(1);
+            }
+        }
+        filePool.shutdown(); // Las subidas en curso terminan durante la espera
+        drain(TimeUnit.SECONDS.toNanos(config.getLong("drain.seconds", 5)));
+        sendPool.shutdownNow();
+        filePool.shutdownNow();
+        int status = report(duration);
+        for (SimulatedClient client : clients) {
+            client.close();
+        }
+        return status;
+    }
+
+    // Conecta los clientes al ritmo indicado; los que fallan se cuentan y se omiten
+    private void connect() {
+        String host = config.getString("host", "127.0.0.1");
+        int port = config.getInt("port", 9999);
+        int count = config.getInt("clients", 1000);
+        long interval = 1_000_000_000L / Math.max(1, config.getInt("connect.rate", 500));
+        boolean compress = config.getBoolean("compress", false);
+        long start = System.nanoTime();
+        int failures = 0;
+        for (int i = 0; i < count; i++) {
+            long wait = start + i * interval - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            try {
+                clients.add(new SimulatedClient(host, port, "carga-" + i, compress, metrics));
+            } catch (IOException e) {
+                if (failures++ == 0) {
+                    System.out.println("No se pudo conectar un cliente: " + e.getMessage());
+                }
+            }
+        }
+        System.out.printf("Conectados %d clientes en %.1f s (%d fallos)%n",
+                clients.size(), (System.nanoTime() - start) / 1e9, failures);
+    }
+
+    // Elige la operación según los pesos y un cliente y un destinatario al azar
+    private void dispatch(long intended, ExecutorService sendPool, ExecutorService filePool) {
+        SimulatedClient from = clients.get(random.nextInt(clients.size()));
+        SimulatedClient to = clients.get(random.nextInt(clients.size()));
+        if (from == to || !from.isOpen()) {
+            return;
+        }
+        int pick = random.nextInt(mix[0] + mix[1] + mix[2]);
+        if (pick < mix[0]) {
+            int size = config.getInt("message.bytes", 100);
+            submit(sendPool, metrics.text, intended, () -> from.sendText(to.name(), size, intended));
+        } else if (pick < mix[0] + mix[1]) {
+            int limit = config.getInt("history.limit", 50);
+            submit(sendPool, metrics.history, intended, () -> from.requestHistory(to.name(), limit, intended));
+        } else {
+            filePool.execute(() -> {
+                try {
+                    if (from.sendFile(to.name(), fileContent, intended)) {
+                        metrics.file.sent(intended);
+                    }
+                } catch (IOException e) {
+                    metrics.file.failed(intended);
+                }
+            });
+        }
+    }
+
+    private interface Send {
+        void run() throws IOException;
+    }
+
+    private void submit(ExecutorService pool, Operation operation, long intended, Send send) {
+        pool.execute(() -> {
+            try {
+                send.run();
+                operation.sent(intended);
+            } catch (IOException e) {
+                operation.failed(intended);
+            }
+        });
+    }
+
+    // Una línea por segundo con los mensajes del último segundo
+    private long progress(long elapsed, long sentBefore, int backlog) {
+        long sent = metrics.text.sent.sum();
+        LatencyHistogram interval = metrics.text.interval;
+        System.out.printf("[%4ds] enviados/s=%d entregas=%d p50=%.2fms p99=%.2fms cola=%d desconectados=%d%n",
+                elapsed / 1_000_000_000L, sent - sentBefore, interval.count(),
+                interval.percentile(0.5) / 1e6, interval.percentile(0.99) / 1e6, backlog, metrics.disconnected.sum());
+        interval.reset();
+        metrics.history.interval.reset();
+        metrics.file.interval.reset();
+        return sent;
+    }
+
+    // Espera a que lleguen las entregas pendientes
+    private void drain(long timeout) {
+        long deadline = System.nanoTime() + timeout;
+        while (System.nanoTime() < deadline) {
+            boolean pending = false;
+            for (Operation operation : metrics.operations()) {
+                pending |= operation.delivered.sum() < operation.sent.sum();
+            }
+            if (!pending) {
+                return;
+            }
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(50));
+        }
+    }
+
+    private int report(long duration) {
+        double seconds = duration / 1e9;
+        System.out.println();
+        System.out.printf("%-10s %10s %10s %8s %10s %9s %9s %9s %9s%n",
+                "operación", "enviados", "entregados", "fallos", "ops/s", "p50 ms", "p99 ms", "p999 ms", "max ms");
+        for (Operation operation : metrics.operations()) {
+            LatencyHistogram latency = operation.latency;
+            System.out.printf("%-10s %10d %10d %8d %10.1f %9.2f %9.2f %9.2f %9.2f%n",
+                    operation.label, operation.sent.sum(), operation.delivered.sum(), operation.failed.sum(),
+                    operation.delivered.sum() / seconds, latency.percentile(0.5) / 1e6,
+                    latency.percentile(0.99) / 1e6, latency.percentile(0.999) / 1e6, latency.max() / 1e6);
+        }
+        System.out.println("Clientes desconectados por el servidor: " + metrics.disconnected.sum());
+        String limit = config.getString("max.p99.ms", null);
+        if (limit != null) {
+            double p99 = metrics.text.latency.percentile(0.99) / 1e6;
+            if (p99 > Double.parseDouble(limit)) {
+                System.out.printf("REGRESIÓN: p99 de los mensajes %.2f ms > %s ms%n", p99, limit);
+                return 1;
+            }
+        }
+        return 0;
+    }
+
+    // Contenido de los archivos: palabras al azar (se comprime unas tres veces) o bytes al azar
+    private byte[] fileContent(int size, String kind) {
+        byte[] content = new byte[size];
+        if (kind.trim().equalsIgnoreCase("random")) {
+            random.nextBytes(content);
+            return content;
+        }
+        String[] words = {"hola", "servidor", "mensaje", "archivo", "cliente", "sala", "historial", "conexión",
+                "latencia", "prueba", "datos", "usuario", "chat", "envío", "red", "carga"};
+        int length = 0;
+        while (length < size) {
+            byte[] word = (words[random.nextInt(words.length)] + (random.nextInt(12) == 0 ? ".\n" : " "))
+                    .getBytes(StandardCharsets.UTF_8);
+            int count = Math.min(word.length, size - length);
+            System.arraycopy(word, 0, content, length, count);
+            length += count;
+        }
+        return content;
+    }
+
+    private static ThreadFactory daemon(String name) {
+        return task -> {
+            Thread thread = new Thread(task, name);
+            thread.setDaemon(true);
+            return thread;
+        };
+    }
+}
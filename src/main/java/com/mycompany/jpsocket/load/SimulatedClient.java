@@ -0,0 +1,226 @@
+package com.mycompany.jpsocket.load;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mycompany.jpsocket.protocol.Compression;
+import com.mycompany.jpsocket.protocol.Frame;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+import com.mycompany.jpsocket.protocol.FrameType;
+
+/**
+ * Cliente v2 simulado del generador de carga: habla el mismo protocolo que {@code JFClient}
+ * y mide lo que recibe. Los mensajes y los nombres de archivo llevan el instante en que se
+ * debían enviar ({@code System.nanoTime()}, el mismo reloj en todo el proceso), así que la
+ * latencia de entrega se mide en el receptor e incluye el retraso si el generador se atrasó.
+ */
+final class SimulatedClient {
+
+    static final String TEXT_PREFIX = "LG ";
+    static final String FILE_PREFIX = "lg-";
+    private static final long ACK_TIMEOUT_SECONDS = 30;
+    private static final AtomicLong TRANSFER_IDS = new AtomicLong();
+
+    private final LoadGenerator.Metrics metrics;
+    private final Socket socket;
+    private final DataInputStream input;
+    private final DataOutputStream output;
+    private final Compression compression;
+    private volatile boolean compressing;
+    private volatile String name;
+    private final ArrayDeque<Long> pendingHistory = new ArrayDeque<>(); // Instantes de las peticiones sin respuesta
+    private final Map<Long, Long> incomingFiles = new ConcurrentHashMap<>(); // Id de transferencia -> instante de envío
+    private final BlockingQueue<Long> acks = new LinkedBlockingQueue<>(); // Solo los de la subida en curso
+    private final AtomicBoolean uploading = new AtomicBoolean();
+    private volatile long uploadId; // Subida en curso, 0 si no hay ninguna
+
+    SimulatedClient(String host, int port, String requestedName, boolean compress, LoadGenerator.Metrics metrics) throws IOException {
+        this.metrics = metrics;
+        this.name = requestedName;
+        this.socket = new Socket(host, port);
+        socket.setTcpNoDelay(true);
+        input = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+        output = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+        output.writeUTF(FrameCodec.HANDSHAKE);
+        output.flush();
+        String reply = input.readUTF();
+        if (!reply.equals(FrameCodec.HANDSHAKE_OK)) {
+            socket.close();
+            throw new IOException("El servidor no admite el protocolo v2: " + reply);
+        }
+        compression = compress ? new Compression() : null;
+        send(new Frame(FrameType.HELLO, compress ? Compression.FLAG_OFFER : 0, 0, null, null,
+                requestedName.getBytes(StandardCharsets.UTF_8)));
+        Frame first = Compression.decode(FrameCodec.read(input), compression);
+        if (first.getType() != FrameType.NAME) {
+            socket.close();
+            throw new IOException("Se esperaba NAME y llegó " + first.getType());
+        }
+        name = first.text();
+        compressing = first.hasFlag(Compression.FLAG_OFFER);
+        Thread reader = new Thread(null, this::readLoop, "lg-" + name, 256 * 1024); // Miles de hilos: pila pequeña
+        reader.setDaemon(true);
+        reader.start();
+    }
+
+    String name() {
+        return name;
+    }
+
+    boolean isOpen() {
+        return !socket.isClosed();
+    }
+
+    /** Mensaje privado de {@code size} bytes a {@code to}. */
+    void sendText(String to, int size, long intended) throws IOException {
+        StringBuilder text = new StringBuilder(size).append(TEXT_PREFIX).append(intended).append(' ');
+        while (text.length() < size) {
+            text.append('x');
+        }
+        send(Frame.text(FrameType.TEXT, 0, name, to, text.toString()));
+    }
+
+    /** Página más reciente del historial con {@code peer}; la latencia es hasta la respuesta. */
+    void requestHistory(String peer, int limit, long intended) throws IOException {
+        synchronized (pendingHistory) {
+            pendingHistory.add(intended);
+        }
+        send(Frame.text(FrameType.HISTORY_REQUEST, 0, name, null, name + "|" + peer + "|limit=" + limit));
+    }
+
+    /**
+     * Sube un archivo a {@code to} como {@code JFClient}, esperando cada confirmación.
+     * Bloquea hasta terminar; el servidor solo admite una subida a la vez por conexión.
+     *
+     * @return {@code false} si ya había una subida en curso y no se ha enviado nada.
+     */
+    boolean sendFile(String to, byte[] content, long intended) throws IOException {
+        if (!uploading.compareAndSet(false, true)) {
+            return false;
+        }
+        try {
+            long id = TRANSFER_IDS.incrementAndGet();
+            acks.clear();
+            uploadId = id;
+            send(new Frame(FrameType.FILE_BEGIN, 0, id, name, to, FrameCodec.fileBegin(content.length, FILE_PREFIX + intended)));
+            long offset = waitAck();
+            while (offset < content.length) {
+                int length = Math.min(FrameCodec.FILE_CHUNK_SIZE, content.length - (int) offset);
+                send(new Frame(FrameType.FILE_CHUNK, 0, id, null, to, FrameCodec.fileChunk(offset, content, (int) offset, length)));
+                offset += length;
+            }
+            send(new Frame(FrameType.FILE_END, 0, id, null, to, null));
+            if (waitAck() != content.length) {
+                throw new IOException("el servidor pidió reenviar un trozo");
+            }
+            return true;
+        } finally {
+            uploadId = 0;
+            uploading.set(false);
+        }
+    }
+
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private long waitAck() throws IOException {
+        try {
+            Long offset = acks.poll(ACK_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            if (offset == null) {
+                throw new IOException("el servidor no confirmó la subida");
+            }
+            return offset;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+    }
+
+    private void send(Frame frame) throws IOException {
+        Frame wire = compressing ? compression.compress(frame) : frame;
+        synchronized (output) {
+            FrameCodec.write(output, wire);
+            output.flush();
+        }
+    }
+
+    private void readLoop() {
+        try {
+            while (!socket.isClosed()) {
+                Frame frame = Compression.decode(FrameCodec.read(input), compression);
+                long now = System.nanoTime();
+                switch (frame.getType()) {
+                    case TEXT: {
+                        String text = frame.text();
+                        if (!frame.getSender().equals(name) && text.startsWith(TEXT_PREFIX)) { // No cuenta la copia propia
+                            metrics.text.delivered(parseTime(text, TEXT_PREFIX.length()), now);
+                        }
+                        break;
+                    }
+                    case HISTORY_PAGE: {
+                        Long intended;
+                        synchronized (pendingHistory) {
+                            intended = pendingHistory.poll();
+                        }
+                        if (intended != null) {
+                            metrics.history.delivered(intended, now);
+                        }
+                        break;
+                    }
+                    case FILE_BEGIN: {
+                        String fileName = FrameCodec.fileName(frame);
+                        if (!frame.getSender().equals(name) && fileName.startsWith(FILE_PREFIX)) {
+                            incomingFiles.put(frame.getMessageId(), parseTime(fileName, FILE_PREFIX.length()));
+                        }
+                        break;
+                    }
+                    case FILE_END: {
+                        Long intended = incomingFiles.remove(frame.getMessageId());
+                        if (intended != null) {
+                            metrics.file.delivered(intended, now);
+                        }
+                        break;
+                    }
+                    case FILE_ACK:
+                        if (frame.getMessageId() == uploadId) { // Un ACK tardío de otra subida no cuenta
+                            acks.add(FrameCodec.ackOffset(frame));
+                        }
+                        break;
+                    default: // Presencia, avisos, trozos de archivo: no se miden
+                }
+            }
+        } catch (IOException e) {
+            if (!socket.isClosed()) {
+                metrics.disconnected.increment();
+            }
+        } finally {
+            close();
+        }
+    }
+
+    // Instante de envío escrito tras el prefijo (puede ser negativo)
+    private static long parseTime(String text, int from) {
+        int end = from < text.length() && text.charAt(from) == '-' ? from + 1 : from;
+        while (end < text.length() && Character.isDigit(text.charAt(end))) {
+            end++;
+        }
+        return Long.parseLong(text.substring(from, end));
+    }
+}
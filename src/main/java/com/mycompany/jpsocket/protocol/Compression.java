@@ -0,0 +1,214 @@
+package com.mycompany.jpsocket.protocol;
+
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Compresión Deflate del contenido de las tramas de una conexión, con un diccionario común de
+ * textos del chat para que también los mensajes cortos se reduzcan. Se acuerda al saludar:
+ * el cliente marca {@code HELLO} con {@link #FLAG_OFFER} y el servidor responde con la misma
+ * bandera en {@code NAME} si acepta. A partir de ahí cualquier trama puede llevar
+ * {@link #FLAG_DEFLATE}, con el contenido {@code [int tamaño original][datos Deflate]}.
+ * <p>
+ * Cada trama se comprime por separado, así que se pueden descartar o reordenar tramas sin
+ * romper las siguientes. Solo se comprime lo que ocupa al menos {@value #MIN_BYTES} bytes y
+ * solo se envía comprimido si ocupa menos. Cada conexión lleva sus propias estadísticas.
+ */
+public final class Compression {
+
+    public static final int FLAG_OFFER = 4; // HELLO / NAME: se ofrece / se acepta la compresión
+    public static final int FLAG_DEFLATE = 0x80; // Cualquier trama: contenido comprimido
+    public static final int MIN_BYTES = 64;
+
+    private static final int INITIAL_BUFFER = 16 * 1024; // Los buffers de salida crecen desde aquí
+    private static final int MAX_RATIO = 1032; // Deflate no descomprime más de 1032 bytes por byte
+
+    // Textos frecuentes, los más comunes al final (Deflate los alcanza con distancias más cortas)
+    private static final byte[] DICTIONARY = String.join("",
+            "application/octet-stream image/png image/jpeg .pdf .txt .docx .zip ",
+            "[Transferencia cancelada: [Archivo dañado, descartado: [Archivo enviado: [Archivo recibido de ",
+            "buenos días buenas tardes buenas noches por favor muchas gracias de nada hasta luego nos vemos ",
+            "mañana ahora cuando donde porque también pero entonces vale bueno claro perfecto genial ",
+            "¿qué tal? ¿cómo estás? estoy bien y tú hola adiós sí no que de la el en los las con por para un una ")
+            .getBytes(StandardCharsets.UTF_8);
+
+    private static final ThreadLocal<Deflater> DEFLATERS = ThreadLocal.withInitial(Deflater::new);
+    private static final ThreadLocal<Inflater> INFLATERS = ThreadLocal.withInitial(Inflater::new);
+
+    // Solo cuenta lo que se intentó comprimir; las tramas pequeñas no cuentan
+    private final AtomicLong rawBytes = new AtomicLong(); // Contenido antes de comprimir (o tras descomprimir)
+    private final AtomicLong wireBytes = new AtomicLong(); // Lo que viajó realmente
+    private final AtomicLong cpuNanos = new AtomicLong();
+
+    /**
+     * Comprime el contenido de la trama si merece la pena.
+     *
+     * @return La trama comprimida con {@link #FLAG_DEFLATE}, o la misma si no se redujo.
+     */
+    public Frame compress(Frame frame) {
+        byte[] payload = frame.getPayload();
+        if (payload.length < MIN_BYTES || frame.hasFlag(FLAG_DEFLATE)) {
+            return frame;
+        }
+        byte[] deflated = deflate(payload, 0, payload.length);
+        if (deflated == null) {
+            return frame;
+        }
+        return new Frame(frame.getType(), frame.getFlags() | FLAG_DEFLATE, frame.getMessageId(),
+                frame.getSender(), frame.getReceiver(), deflated);
+    }
+
+    /**
+     * Comprime {@code length} bytes.
+     *
+     * @return {@code [int length][datos Deflate]}, o {@code null} si no ocupa menos que el original.
+     */
+    public byte[] deflate(byte[] data, int from, int length) {
+        long start = System.nanoTime();
+        Deflater deflater = DEFLATERS.get();
+        deflater.reset();
+        deflater.setDictionary(DICTIONARY);
+        deflater.setInput(data, from, length);
+        deflater.finish();
+        byte[] out = new byte[Math.min(length, INITIAL_BUFFER)];
+        ByteBuffer.wrap(out).putInt(length);
+        int size = Integer.BYTES;
+        while (!deflater.finished()) {
+            if (size == out.length) {
+                if (out.length == length) {
+                    break; // Si no cabe en el tamaño original, no se envía comprimido
+                }
+                out = Arrays.copyOf(out, (int) Math.min(length, 2L * out.length));
+            }
+            size += deflater.deflate(out, size, out.length - size);
+        }
+        boolean smaller = deflater.finished() && size < length;
+        record(length, smaller ? size : length, start);
+        return smaller ? Arrays.copyOf(out, size) : null;
+    }
+
+    /**
+     * Devuelve la trama con su contenido original si llegó comprimida.
+     *
+     * @param compression Compresión acordada en la conexión, o {@code null} si no hay.
+     * @throws ProtocolException Si llega comprimida sin haberlo acordado o no se puede descomprimir.
+     */
+    public static Frame decode(Frame frame, Compression compression) throws ProtocolException {
+        if (!frame.hasFlag(FLAG_DEFLATE)) {
+            return frame;
+        }
+        if (compression == null) {
+            throw new ProtocolException("Trama comprimida sin haber acordado la compresión");
+        }
+        return new Frame(frame.getType(), frame.getFlags() & ~FLAG_DEFLATE, frame.getMessageId(),
+                frame.getSender(), frame.getReceiver(), compression.inflate(frame.getPayload()));
+    }
+
+    private byte[] inflate(byte[] payload) throws ProtocolException {
+        long start = System.nanoTime();
+        if (payload.length < Integer.BYTES) {
+            throw new ProtocolException("Trama comprimida demasiado corta");
+        }
+        int length = ByteBuffer.wrap(payload).getInt();
+        int compressed = payload.length - Integer.BYTES;
+        if (length < 0 || length > FrameCodec.maxFrame() || length > (long) compressed * MAX_RATIO) {
+            throw new ProtocolException("Tamaño descomprimido no válido: " + length);
+        }
+        Inflater inflater = INFLATERS.get();
+        inflater.reset();
+        inflater.setInput(payload, Integer.BYTES, compressed);
+        // El tamaño lo declara el otro extremo: el buffer crece con lo que de verdad sale, hasta length
+        byte[] out = new byte[Math.min(length, Math.max(INITIAL_BUFFER, compressed * 4))];
+        int size = 0;
+        try {
+            while (size < length) {
+                if (size == out.length) {
+                    out = Arrays.copyOf(out, (int) Math.min(length, 2L * out.length));
+                }
+                int n = inflater.inflate(out, size, out.length - size);
+                if (n == 0) {
+                    if (!inflater.needsDictionary()) {
+                        break; // Datos truncados
+                    }
+                    inflater.setDictionary(DICTIONARY);
+                }
+                size += n;
+            }
+        } catch (DataFormatException e) {
+            throw new ProtocolException("Trama comprimida no válida: " + e.getMessage());
+        }
+        if (size != length) {
+            throw new ProtocolException("Trama comprimida incompleta");
+        }
+        record(length, payload.length, start);
+        return out;
+    }
+
+    /**
+     * Indica si el contenido ya está comprimido según sus primeros bytes (PNG, JPEG, GIF, WebP,
+     * ZIP y formatos basados en él, GZIP, BZIP2, XZ, Zstandard, 7z, RAR, MP3, MP4, Ogg, FLAC),
+     * en cuyo caso comprimirlo otra vez solo gasta CPU.
+     */
+    public static boolean isCompressed(byte[] head, int from, int length) {
+        return startsWith(head, from, length, 0, 0x89, 'P', 'N', 'G')
+                || startsWith(head, from, length, 0, 0xFF, 0xD8, 0xFF)
+                || startsWith(head, from, length, 0, 'G', 'I', 'F', '8')
+                || startsWith(head, from, length, 0, 'R', 'I', 'F', 'F') && startsWith(head, from, length, 8, 'W', 'E', 'B', 'P')
+                || startsWith(head, from, length, 0, 'P', 'K', 3, 4)
+                || startsWith(head, from, length, 0, 0x1F, 0x8B)
+                || startsWith(head, from, length, 0, 'B', 'Z', 'h')
+                || startsWith(head, from, length, 0, 0xFD, '7', 'z', 'X', 'Z')
+                || startsWith(head, from, length, 0, 0x28, 0xB5, 0x2F, 0xFD)
+                || startsWith(head, from, length, 0, '7', 'z', 0xBC, 0xAF)
+                || startsWith(head, from, length, 0, 'R', 'a', 'r', '!')
+                || startsWith(head, from, length, 0, 'I', 'D', '3')
+                || startsWith(head, from, length, 4, 'f', 't', 'y', 'p')
+                || startsWith(head, from, length, 0, 'O', 'g', 'g', 'S')
+                || startsWith(head, from, length, 0, 'f', 'L', 'a', 'C');
+    }
+
+    private static boolean startsWith(byte[] data, int from, int length, int offset, int... magic) {
+        if (length < offset + magic.length) {
+            return false;
+        }
+        for (int i = 0; i < magic.length; i++) {
+            if ((data[from + offset + i] & 0xFF) != magic[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Cuenta en esta conexión un contenido que comprimió otra (un trozo de archivo que se
+     * comprime una vez para todos sus receptores), sin tiempo de CPU.
+     */
+    public void recordShared(long raw, long wire) {
+        rawBytes.addAndGet(raw);
+        wireBytes.addAndGet(wire);
+    }
+
+    private void record(long raw, long wire, long start) {
+        rawBytes.addAndGet(raw);
+        wireBytes.addAndGet(wire);
+        cpuNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    /** Bytes que viajaron respecto al original, en los dos sentidos (1 = sin ahorro). */
+    public double ratio() {
+        long raw = rawBytes.get();
+        return raw == 0 ? 1 : (double) wireBytes.get() / raw;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("Compresión: original=%d en_red=%d ratio=%.2f cpu=%.1fms",
+                rawBytes.get(), wireBytes.get(), ratio(), cpuNanos.get() / 1e6);
+    }
+}
@@ -0,0 +1,71 @@
+package com.mycompany.jpsocket.protocol;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Trama del protocolo v2: tipo, banderas, id de mensaje, emisor, receptor y contenido.
+ * Cada trama lleva su propio destinatario, así que un mensaje privado es una sola trama.
+ */
+public final class Frame {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private final FrameType type;
+    private final int flags;
+    private final long messageId;
+    private final String sender;
+    private final String receiver;
+    private final byte[] payload;
+
+    public Frame(FrameType type, int flags, long messageId, String sender, String receiver, byte[] payload) {
+        this.type = type;
+        this.flags = flags;
+        this.messageId = messageId;
+        this.sender = sender == null ? "" : sender;
+        this.receiver = receiver == null ? "" : receiver;
+        this.payload = payload == null ? EMPTY : payload;
+    }
+
+    /** Trama cuyo contenido es un texto UTF-8. */
+    public static Frame text(FrameType type, long messageId, String sender, String receiver, String text) {
+        return new Frame(type, 0, messageId, sender, receiver, text.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public FrameType getType() {
+        return type;
+    }
+
+    public int getFlags() {
+        return flags;
+    }
+
+    public boolean hasFlag(int flag) {
+        return (flags & flag) != 0;
+    }
+
+    public long getMessageId() {
+        return messageId;
+    }
+
+    public String getSender() {
+        return sender;
+    }
+
+    public String getReceiver() {
+        return receiver;
+    }
+
+    public byte[] getPayload() {
+        return payload;
+    }
+
+    /** Contenido interpretado como texto UTF-8. */
+    public String text() {
+        return new String(payload, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public String toString() {
+        return type + "[id=" + messageId + ", " + sender + " -> " + receiver + ", " + payload.length + " bytes]";
+    }
+}
@@ -0,0 +1,328 @@
+package com.mycompany.jpsocket.protocol;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.ProtocolException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import com.mycompany.jpsocket.ServerConfig;
+
+/**
+ * Lectura y escritura de tramas del protocolo binario v2.
+ * <p>
+ * Formato: {@code int longitud} (bytes que siguen), {@code byte tipo}, {@code byte banderas},
+ * {@code long messageId}, {@code short} longitud del emisor, {@code short} longitud del receptor,
+ * emisor y receptor en UTF-8 y el contenido hasta completar la longitud.
+ * <p>
+ * Para negociarlo, el cliente envía {@link #HANDSHAKE} con {@code writeUTF} como primer mensaje
+ * en lugar del nombre; el servidor responde {@link #HANDSHAKE_OK} y a partir de ahí ambos
+ * extremos usan tramas binarias, empezando por {@link FrameType#HELLO}. Un cliente antiguo
+ * envía directamente su nombre y sigue con el protocolo de texto.
+ */
+public final class FrameCodec {
+
+    public static final String HANDSHAKE = "PROTO:2";
+    public static final String HANDSHAKE_OK = "PROTO_OK:2";
+    public static final int FLAG_HAS_MORE = 1; // HISTORY_PAGE: quedan más mensajes
+    public static final int FLAG_HASH = 2; // FILE_BEGIN: lleva el SHA-256 del archivo (clientes anteriores; se ignora)
+    public static final int HASH_BYTES = 32;
+    public static final int FILE_CHUNK_SIZE = 64 * 1024;
+    public static final int HEADER_BYTES = 1 + 1 + 8 + 2 + 2; // Tras el campo de longitud
+    public static final int CHUNK_HEADER_BYTES = Long.BYTES + Integer.BYTES; // Posición y CRC de FILE_CHUNK
+
+    /** Tamaño máximo de trama por defecto: cabe un trozo de archivo con su cabecera y una página de historial. */
+    public static final int DEFAULT_MAX_FRAME = 256 * 1024;
+
+    // Se lee al primer uso, con la configuración ya cargada
+    private static final class Limits {
+        static final int MAX_FRAME = ServerConfig.get().getInt("protocol.max.frame", DEFAULT_MAX_FRAME);
+    }
+
+    private FrameCodec() {
+    }
+
+    /** Tamaño máximo de una trama tras el campo de longitud ({@code protocol.max.frame}). */
+    public static int maxFrame() {
+        return Limits.MAX_FRAME;
+    }
+
+    public static void write(DataOutputStream out, Frame frame) throws IOException {
+        byte[] sender = frame.getSender().getBytes(StandardCharsets.UTF_8);
+        byte[] receiver = frame.getReceiver().getBytes(StandardCharsets.UTF_8);
+        writeHeader(out, frame.getType(), frame.getFlags(), frame.getMessageId(), sender, receiver, frame.getPayload().length);
+        out.write(frame.getPayload());
+    }
+
+    /**
+     * Escribe solo la cabecera; el llamante escribe después {@code payloadLength} bytes.
+     * Permite enviar trozos de archivo sin copiarlos a un {@link Frame}.
+     */
+    public static void writeHeader(DataOutputStream out, FrameType type, int flags, long messageId,
+                                   byte[] sender, byte[] receiver, int payloadLength) throws IOException {
+        out.writeInt(HEADER_BYTES + sender.length + receiver.length + payloadLength);
+        out.writeByte(type.code());
+        out.writeByte(flags);
+        out.writeLong(messageId);
+        out.writeShort(sender.length);
+        out.writeShort(receiver.length);
+        out.write(sender);
+        out.write(receiver);
+    }
+
+    /**
+     * Lee una trama completa del stream.
+     *
+     * @throws ProtocolException Si la trama no es válida o supera {@link #maxFrame()}.
+     */
+    public static Frame read(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        checkLength(length);
+        int code = in.readUnsignedByte();
+        int flags = in.readUnsignedByte();
+        long messageId = in.readLong();
+        int senderLength = in.readUnsignedShort();
+        int receiverLength = in.readUnsignedShort();
+        int payloadLength = length - HEADER_BYTES - senderLength - receiverLength;
+        if (payloadLength < 0) {
+            throw new ProtocolException("Longitudes de trama incoherentes");
+        }
+        String sender = readString(in, senderLength);
+        String receiver = readString(in, receiverLength);
+        byte[] payload = new byte[payloadLength];
+        in.readFully(payload);
+        return new Frame(type(code), flags, messageId, sender, receiver, payload);
+    }
+
+    /**
+     * Intenta leer una trama del buffer (en modo lectura) sin bloquear.
+     *
+     * @return La trama, o {@code null} si todavía no han llegado todos sus bytes.
+     * @throws ProtocolException Si la trama no es válida.
+     */
+    public static Frame tryDecode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < Integer.BYTES) {
+            return null;
+        }
+        int start = buffer.position();
+        int length = buffer.getInt(start);
+        checkLength(length);
+        if (buffer.remaining() < Integer.BYTES + length) {
+            return null;
+        }
+        buffer.position(start + Integer.BYTES);
+        int code = buffer.get() & 0xFF;
+        int flags = buffer.get() & 0xFF;
+        long messageId = buffer.getLong();
+        int senderLength = buffer.getShort() & 0xFFFF;
+        int receiverLength = buffer.getShort() & 0xFFFF;
+        int payloadLength = length - HEADER_BYTES - senderLength - receiverLength;
+        if (payloadLength < 0) {
+            throw new ProtocolException("Longitudes de trama incoherentes");
+        }
+        String sender = readString(buffer, senderLength);
+        String receiver = readString(buffer, receiverLength);
+        byte[] payload = new byte[payloadLength];
+        buffer.get(payload);
+        return new Frame(type(code), flags, messageId, sender, receiver, payload);
+    }
+
+    /** Bytes necesarios para la trama que empieza en el buffer, o -1 si aún no se sabe. */
+    public static int pendingLength(ByteBuffer buffer) {
+        return buffer.remaining() < Integer.BYTES ? -1 : Integer.BYTES + buffer.getInt(buffer.position());
+    }
+
+    /** Codifica una trama en un buffer listo para escribir en un canal. */
+    public static ByteBuffer encode(Frame frame) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(Integer.BYTES + HEADER_BYTES + frame.getPayload().length + 32);
+        write(new DataOutputStream(bytes), frame);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /** Contenido de {@code FILE_BEGIN}: tamaño y nombre del archivo. */
+    public static byte[] fileBegin(long size, String fileName) {
+        byte[] name = fileName.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(Long.BYTES + name.length).putLong(size).put(name).array();
+    }
+
+    public static long fileSize(Frame begin) throws ProtocolException {
+        return ByteBuffer.wrap(payload(begin, fileHeaderBytes(begin))).getLong();
+    }
+
+    public static String fileName(Frame begin) throws ProtocolException {
+        int from = fileHeaderBytes(begin);
+        byte[] payload = payload(begin, from);
+        return new String(payload, from, payload.length - from, StandardCharsets.UTF_8);
+    }
+
+    /** Contenido de {@code FILE_CHUNK}: posición en el archivo, CRC32 y los bytes. */
+    public static byte[] fileChunk(long offset, byte[] data, int from, int length) {
+        return fileChunk(offset, crc(ByteBuffer.wrap(data, from, length)), ByteBuffer.wrap(data, from, length));
+    }
+
+    /** Contenido de {@code FILE_CHUNK} con el CRC ya calculado; no consume {@code data}. */
+    public static byte[] fileChunk(long offset, int crc, ByteBuffer data) {
+        return ByteBuffer.allocate(CHUNK_HEADER_BYTES + data.remaining())
+                .putLong(offset).putInt(crc).put(data.duplicate()).array();
+    }
+
+    public static long chunkOffset(Frame chunk) throws ProtocolException {
+        return ByteBuffer.wrap(payload(chunk, CHUNK_HEADER_BYTES)).getLong();
+    }
+
+    public static int chunkCrc(Frame chunk) throws ProtocolException {
+        return ByteBuffer.wrap(payload(chunk, CHUNK_HEADER_BYTES)).getInt(Long.BYTES);
+    }
+
+    /** Bytes del trozo, sin copiarlos. */
+    public static ByteBuffer chunkData(Frame chunk) throws ProtocolException {
+        byte[] payload = payload(chunk, CHUNK_HEADER_BYTES);
+        return ByteBuffer.wrap(payload, CHUNK_HEADER_BYTES, payload.length - CHUNK_HEADER_BYTES).slice();
+    }
+
+    /** Contenido de {@code PRESENCE}: versión base y una línea {@code +nombre} o {@code -nombre} por cambio. */
+    public static byte[] presence(long baseVersion, List<String> joined, List<String> left) {
+        StringBuilder changes = new StringBuilder();
+        for (String name : joined) {
+            changes.append('+').append(name).append('\n');
+        }
+        for (String name : left) {
+            changes.append('-').append(name).append('\n');
+        }
+        byte[] text = changes.toString().getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(Long.BYTES + text.length).putLong(baseVersion).put(text).array();
+    }
+
+    public static long presenceBase(Frame presence) throws ProtocolException {
+        return ByteBuffer.wrap(payload(presence, Long.BYTES)).getLong();
+    }
+
+    /** Cambios de {@code PRESENCE}, cada uno con su {@code '+'} o {@code '-'} delante. */
+    public static String[] presenceChanges(Frame presence) throws ProtocolException {
+        byte[] payload = payload(presence, Long.BYTES);
+        String text = new String(payload, Long.BYTES, payload.length - Long.BYTES, StandardCharsets.UTF_8);
+        return text.isEmpty() ? new String[0] : text.split("\n");
+    }
+
+    /** Contenido de {@code FILE_ACK}: posición desde la que seguir enviando. */
+    public static byte[] fileAck(long offset) {
+        return ByteBuffer.allocate(Long.BYTES).putLong(offset).array();
+    }
+
+    public static long ackOffset(Frame ack) {
+        return ByteBuffer.wrap(ack.getPayload()).getLong();
+    }
+
+    /** CRC32 de los bytes restantes del buffer, sin consumirlos. */
+    public static int crc(ByteBuffer data) {
+        CRC32 crc = new CRC32();
+        crc.update(data.duplicate());
+        return (int) crc.getValue();
+    }
+
+    /**
+     * Llena {@code buffer} con los bytes de {@code file} desde {@code position}, con lecturas
+     * posicionales (no mueve la posición del canal ni mapea el archivo). Deja el buffer listo para leer.
+     *
+     * @throws EOFException Si el archivo se acaba antes.
+     */
+    public static void readChunk(FileChannel file, long position, ByteBuffer buffer) throws IOException {
+        int start = buffer.position();
+        while (buffer.hasRemaining()) {
+            if (file.read(buffer, position + buffer.position() - start) < 0) {
+                throw new EOFException("El archivo se acortó durante el envío");
+            }
+        }
+        buffer.flip();
+        buffer.position(start);
+    }
+
+    /** Contenido de {@code HISTORY_PAGE}: número de registros y cada registro. */
+    public static byte[] writeHistory(List<HistoryRecord> records) {
+        try {
+            ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+            DataOutputStream out = new DataOutputStream(bytes);
+            out.writeInt(records.size());
+            for (HistoryRecord record : records) {
+                byte[] sender = record.sender().getBytes(StandardCharsets.UTF_8);
+                byte[] text = record.text().getBytes(StandardCharsets.UTF_8);
+                out.writeLong(record.id());
+                out.writeLong(record.timestamp());
+                out.writeShort(sender.length);
+                out.write(sender);
+                out.writeInt(text.length);
+                out.write(text);
+            }
+            return bytes.toByteArray();
+        } catch (IOException e) {
+            throw new IllegalStateException(e); // No ocurre al escribir en memoria
+        }
+    }
+
+    public static List<HistoryRecord> readHistory(byte[] payload) {
+        ByteBuffer in = ByteBuffer.wrap(payload);
+        int count = in.getInt();
+        List<HistoryRecord> records = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            long id = in.getLong();
+            long timestamp = in.getLong();
+            String sender = readString(in, in.getShort() & 0xFFFF);
+            String text = readString(in, in.getInt());
+            records.add(new HistoryRecord(id, timestamp, sender, text));
+        }
+        return records;
+    }
+
+    // Bytes de FILE_BEGIN antes del nombre: el tamaño y, de clientes anteriores, el hash
+    private static int fileHeaderBytes(Frame begin) {
+        return Long.BYTES + (begin.hasFlag(FLAG_HASH) ? HASH_BYTES : 0);
+    }
+
+    // Contenido de la trama, si tiene al menos los bytes fijos de su tipo
+    private static byte[] payload(Frame frame, int minLength) throws ProtocolException {
+        byte[] payload = frame.getPayload();
+        if (payload.length < minLength) {
+            throw new ProtocolException("Contenido de " + frame.getType() + " demasiado corto: " + payload.length + " bytes");
+        }
+        return payload;
+    }
+
+    private static void checkLength(int length) throws ProtocolException {
+        if (length < HEADER_BYTES || length > maxFrame()) {
+            throw new ProtocolException("Longitud de trama no válida: " + length);
+        }
+    }
+
+    private static FrameType type(int code) throws ProtocolException {
+        FrameType type = FrameType.fromCode(code);
+        if (type == null) {
+            throw new ProtocolException("Tipo de trama desconocido: " + code);
+        }
+        return type;
+    }
+
+    private static String readString(DataInputStream in, int length) throws IOException {
+        if (length == 0) {
+            return "";
+        }
+        byte[] bytes = new byte[length];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static String readString(ByteBuffer in, int length) {
+        if (length == 0) {
+            return "";
+        }
+        String text = new String(in.array(), in.arrayOffset() + in.position(), length, StandardCharsets.UTF_8);
+        in.position(in.position() + length);
+        return text;
+    }
+}
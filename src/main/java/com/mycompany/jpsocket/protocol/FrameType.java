@@ -0,0 +1,101 @@
+package com.mycompany.jpsocket.protocol;
+
+/**
+ * Tipos de trama del protocolo binario v2. El código es el byte que viaja en la cabecera.
+ * <ul>
+ * <li>{@code HELLO}: cliente → servidor, {@code payload} = nombre solicitado. Con
+ *     {@link Compression#FLAG_OFFER} ofrece compresión. Si el nombre no es válido (vacío, de más de
+ *     32 caracteres o con {@code ','}, {@code '|'} o caracteres de control) se responde un
+ *     {@code NOTICE} en lugar de {@code NAME} y el servidor cierra la conexión.</li>
+ * <li>{@code NAME}: servidor → cliente, {@code payload} = nombre asignado, {@code messageId} =
+ *     tramas que el cliente puede enviar antes del primer {@code CREDIT} (0: sin créditos). Con
+ *     {@link Compression#FLAG_OFFER} la acepta; desde entonces cualquier trama puede llegar
+ *     comprimida ({@link Compression#FLAG_DEFLATE}).</li>
+ * <li>{@code TEXT}: mensaje privado; {@code receiver} = destinatario, {@code payload} = texto.
+ *     Del servidor llega además con {@code messageId} y {@code sender}.</li>
+ * <li>{@code NOTICE}: aviso del servidor sin emisor, {@code payload} = texto.</li>
+ * <li>{@code USERLIST}: lista completa de usuarios conectados; {@code messageId} = versión,
+ *     {@code payload} = nombres separados por {@code '\n'}. Del cliente, sin contenido, pide
+ *     la lista completa (al detectar que le falta una versión).</li>
+ * <li>{@code PRESENCE}: cambios en los usuarios conectados; {@code messageId} = versión nueva,
+ *     {@code payload} = versión base (long) y líneas {@code +nombre} / {@code -nombre}. Solo se
+ *     aplica si la versión base es la que tiene el cliente.</li>
+ * <li>{@code HISTORY_REQUEST}: {@code payload} = {@code usuario|otro[|before=id][|after=id][|limit=n]};
+ *     {@code usuario} debe ser el nombre asignado a quien la envía.</li>
+ * <li>{@code HISTORY_PAGE}: bit 0 de {@code flags} = quedan más; {@code payload} = registros
+ *     {@link HistoryRecord} (ver {@link FrameCodec#writeHistory}).</li>
+ * <li>{@code FILE_BEGIN}: {@code messageId} = id de transferencia (lo elige quien sube),
+ *     {@code payload} = tamaño (long) y nombre. Los clientes anteriores marcan el bit 1 de
+ *     {@code flags} y envían además el SHA-256 tras el tamaño; el servidor lo salta y el archivo
+ *     se sube siempre completo.</li>
+ * <li>{@code FILE_CHUNK}: {@code messageId} = id de transferencia, {@code payload} = posición (long),
+ *     CRC32 del trozo (int) y bytes del archivo (ver {@link FrameCodec#fileChunk}).</li>
+ * <li>{@code FILE_END}: {@code messageId} = id de transferencia.</li>
+ * <li>{@code FILE_ACK}: servidor → quien sube, {@code messageId} = id de transferencia,
+ *     {@code payload} = posición (long) desde la que seguir. Responde a {@code FILE_BEGIN}
+ *     (0, o lo ya recibido si se reanuda), a un trozo erróneo (se reenvía desde ahí) y a
+ *     {@code FILE_END} (el tamaño total si el archivo llegó completo). Con -1 el servidor
+ *     rechaza la subida (demasiadas a la vez).</li>
+ * <li>{@code ROOM_JOIN} / {@code ROOM_LEAVE}: cliente → servidor, {@code payload} = nombre de
+ *     la sala. El servidor responde con un {@code NOTICE}.</li>
+ * <li>{@code ROOM_TEXT}: mensaje a una sala; {@code receiver} = sala, {@code payload} = texto.
+ *     Del servidor llega además con {@code messageId} y {@code sender}, a todos los miembros.</li>
+ * <li>{@code NODE_HELLO}: saludo entre dos nodos del clúster, en tres tramas con líneas separadas
+ *     por {@code '\n'}: quien conecta envía su id y un reto aleatorio; quien acepta responde con
+ *     su id, su propio reto y su firma; quien conecta cierra con su id y su firma. Cada firma es
+ *     el HMAC-SHA256 en hexadecimal, con el secreto del clúster, de su papel ({@code accept} o
+ *     {@code connect}), los dos ids y los dos retos; va vacía si el clúster no tiene secreto. Después, el nodo que abrió la conexión envía {@code USERLIST}
+ *     y {@code PRESENCE} con sus usuarios locales, y {@code TEXT} y {@code FILE_*} para los
+ *     usuarios del otro nodo, con el mismo formato que recibe un cliente.</li>
+ * <li>{@code NODE_PING}: entre nodos, sin contenido; mantiene viva la conexión cuando no hay tráfico.</li>
+ * <li>{@code CREDIT}: servidor → cliente, sin contenido; {@code messageId} = tramas más que el
+ *     cliente puede enviar. Si se le acaban, espera al siguiente en lugar de seguir escribiendo.</li>
+ * </ul>
+ */
+public enum FrameType {
+    HELLO(1),
+    NAME(2),
+    TEXT(3),
+    NOTICE(4),
+    USERLIST(5),
+    HISTORY_REQUEST(6),
+    HISTORY_PAGE(7),
+    FILE_BEGIN(8),
+    FILE_CHUNK(9),
+    FILE_END(10),
+    FILE_ACK(11),
+    PRESENCE(12),
+    ROOM_JOIN(13),
+    ROOM_LEAVE(14),
+    ROOM_TEXT(15),
+    NODE_HELLO(16),
+    NODE_PING(17),
+    CREDIT(18);
+
+    private static final FrameType[] BY_CODE = new FrameType[64];
+
+    static {
+        for (FrameType type : values()) {
+            BY_CODE[type.code] = type;
+        }
+    }
+
+    private final int code;
+
+    FrameType(int code) {
+        this.code = code;
+    }
+
+    public int code() {
+        return code;
+    }
+
+    /**
+     * Tipo correspondiente a un código recibido.
+     *
+     * @return El tipo, o {@code null} si el código no se conoce.
+     */
+    public static FrameType fromCode(int code) {
+        return code >= 0 && code < BY_CODE.length ? BY_CODE[code] : null;
+    }
+}
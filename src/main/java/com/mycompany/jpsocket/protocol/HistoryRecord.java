@@ -0,0 +1,12 @@
+package com.mycompany.jpsocket.protocol;
+
+/**
+ * Mensaje de historial tal como viaja en una trama {@code HISTORY_PAGE}.
+ *
+ * @param id Identificador del mensaje (cursor para pedir páginas).
+ * @param timestamp Hora de envío en milisegundos.
+ * @param sender Emisor del mensaje.
+ * @param text Texto del mensaje.
+ */
+public record HistoryRecord(long id, long timestamp, String sender, String text) {
+}
@@ -0,0 +1,346 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mycompany.jpsocket.ServerConfig;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+
+/**
+ * Almacén de adjuntos direccionado por contenido. Cada archivo se guarda una sola vez con su
+ * SHA-256 como nombre ({@code adjuntos/ab/abcd...}), así que el mismo archivo enviado a muchos
+ * usuarios ocupa lo mismo que enviado a uno y dos archivos con el mismo nombre no se pisan.
+ * <p>
+ * Cada {@link Blob} cuenta las referencias de quien lo está usando (un envío en curso); solo los
+ * que no tienen ninguna se pueden borrar. Si el almacén supera {@code attachments.max.bytes} se
+ * borran los menos usados recientemente. Los archivos pequeños
+ * ({@code attachments.cache.file.bytes}) que se vuelven a enviar se guardan además en memoria,
+ * hasta {@code attachments.cache.bytes} en total.
+ * <p>
+ * El índice se reconstruye al arrancar a partir de los archivos del directorio.
+ */
+public final class AttachmentStore {
+
+    /** Estadísticas del almacén en un instante dado. */
+    public record Stats(int blobs, long bytes, long dedupHits, long evictions, long cacheHits, long cacheBytes) {
+        @Override
+        public String toString() {
+            return "adjuntos=" + blobs + " bytes=" + bytes + " repetidos=" + dedupHits + " borrados=" + evictions
+                    + " aciertos_cache=" + cacheHits + " bytes_cache=" + cacheBytes;
+        }
+    }
+
+    private static final HexFormat HEX = HexFormat.of();
+    private static volatile AttachmentStore shared;
+
+    private final Path dir;
+    private final long maxBytes;
+    private final long cacheBytes;
+    private final int cacheFileBytes;
+    private final ReentrantLock lock = new ReentrantLock(); // Solo protege el índice, nunca durante E/S larga
+    private final ServerMetrics.LockWait lockWait = ServerMetrics.shared().attachmentLock();
+    private final LinkedHashMap<String, Blob> blobs = new LinkedHashMap<>(64, 0.75f, true); // Orden por último uso
+    private final LinkedHashMap<String, ByteBuffer> cache = new LinkedHashMap<>(16, 0.75f, true);
+
+    // Protegidos por lock
+    private long usedBytes;
+    private long cachedBytes;
+    private long dedupHits;
+    private long evictions;
+    private long cacheHits;
+
+    /**
+     * @param dir Directorio del almacén.
+     * @param maxBytes Tamaño máximo en disco.
+     * @param cacheBytes Memoria máxima para archivos pequeños.
+     * @param cacheFileBytes Tamaño máximo de un archivo para guardarlo en memoria.
+     */
+    public AttachmentStore(Path dir, long maxBytes, long cacheBytes, int cacheFileBytes) throws IOException {
+        this.dir = dir;
+        this.maxBytes = maxBytes;
+        this.cacheBytes = cacheBytes;
+        this.cacheFileBytes = cacheFileBytes;
+        Files.createDirectories(dir);
+        load();
+    }
+
+    /** Almacén compartido del proceso, configurado con {@link ServerConfig#get()}. */
+    public static AttachmentStore shared() throws IOException {
+        AttachmentStore store = shared;
+        if (store == null) {
+            synchronized (AttachmentStore.class) {
+                store = shared;
+                if (store == null) {
+                    ServerConfig config = ServerConfig.get();
+                    store = new AttachmentStore(
+                            Paths.get(config.getString("attachments.dir", "adjuntos")),
+                            config.getLong("attachments.max.bytes", 2L * 1024 * 1024 * 1024),
+                            config.getLong("attachments.cache.bytes", 32L * 1024 * 1024),
+                            config.getInt("attachments.cache.file.bytes", 256 * 1024));
+                    shared = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    /** Empieza a guardar un archivo que va llegando. */
+    public Writer newWriter() throws IOException {
+        return new Writer(Files.createTempFile(dir, "subida-", ".part"));
+    }
+
+    public Stats stats() {
+        lockWait.lock(lock);
+        try {
+            return new Stats(blobs.size(), usedBytes, dedupHits, evictions, cacheHits, cachedBytes);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Reconstruye el índice con los archivos guardados, del más antiguo al más reciente
+    private void load() throws IOException {
+        List<Path> files = new ArrayList<>();
+        try (DirectoryStream<Path> shards = Files.newDirectoryStream(dir)) {
+            for (Path entry : shards) {
+                if (entry.getFileName().toString().endsWith(".part")) {
+                    Files.deleteIfExists(entry); // Subida que no terminó antes de cerrar el servidor
+                } else if (Files.isDirectory(entry)) {
+                    try (DirectoryStream<Path> shard = Files.newDirectoryStream(entry)) {
+                        shard.forEach(files::add);
+                    }
+                }
+            }
+        }
+        files.sort((a, b) -> Long.compare(a.toFile().lastModified(), b.toFile().lastModified()));
+        for (Path file : files) {
+            String hash = file.getFileName().toString();
+            if (hash.length() == 64) {
+                Blob blob = new Blob(hash, file, Files.size(file));
+                blobs.put(hash, blob);
+                usedBytes += blob.size;
+            }
+        }
+        evictUntilUnderQuota();
+    }
+
+    // Ruta de un archivo según su hash; los dos primeros caracteres reparten en subdirectorios
+    private Path pathFor(String hash) {
+        return dir.resolve(hash.substring(0, 2)).resolve(hash);
+    }
+
+    // Borra los archivos sin referencias menos usados hasta volver bajo la cuota (llamar con el candado)
+    private void evictUntilUnderQuota() {
+        Iterator<Blob> it = blobs.values().iterator();
+        while (usedBytes > maxBytes && it.hasNext()) {
+            Blob blob = it.next();
+            if (blob.refs > 0) {
+                continue; // Se está enviando
+            }
+            it.remove();
+            usedBytes -= blob.size;
+            evictions++;
+            uncache(blob.hash);
+            try {
+                Files.deleteIfExists(blob.path);
+            } catch (IOException e) {
+                Log.warn("No se pudo borrar el adjunto", "ruta", blob.path, "error", e.getMessage());
+            }
+        }
+    }
+
+    private void uncache(String hash) {
+        ByteBuffer removed = cache.remove(hash);
+        if (removed != null) {
+            cachedBytes -= removed.capacity();
+        }
+    }
+
+    /** Escritura de un archivo entrante que calcula su SHA-256 mientras llega. */
+    public final class Writer {
+        private final Path temp;
+        private final FileChannel channel;
+        private final MessageDigest digest;
+        private long size;
+
+        private Writer(Path temp) throws IOException {
+            this.temp = temp;
+            this.channel = FileChannel.open(temp, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+            try {
+                this.digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e); // Todas las JVM incluyen SHA-256
+            }
+        }
+
+        /** Escribe los bytes restantes del buffer sin consumirlos. */
+        public void write(ByteBuffer data) throws IOException {
+            digest.update(data.duplicate());
+            ByteBuffer copy = data.duplicate();
+            while (copy.hasRemaining()) {
+                channel.write(copy);
+            }
+            size += data.remaining();
+        }
+
+        /**
+         * Termina la escritura y guarda el archivo por su hash; si ya existía se descarta la copia.
+         *
+         * @return El archivo, con una referencia para quien lo ha subido.
+         */
+        public Blob commit() throws IOException {
+            channel.close();
+            String hash = HEX.formatHex(digest.digest());
+            lockWait.lock(lock);
+            try {
+                Blob existing = blobs.get(hash);
+                if (existing != null) {
+                    Files.deleteIfExists(temp);
+                    existing.refs++;
+                    dedupHits++;
+                    return existing;
+                }
+                Path target = pathFor(hash);
+                Files.createDirectories(target.getParent());
+                try {
+                    Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE);
+                } catch (FileAlreadyExistsException e) {
+                    Files.deleteIfExists(temp); // Mismo contenido ya en disco aunque no en el índice
+                }
+                Blob blob = new Blob(hash, target, size);
+                blob.refs = 1;
+                blobs.put(hash, blob);
+                usedBytes += size;
+                evictUntilUnderQuota();
+                return blob;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Descarta un archivo que no llegó completo. */
+        public void discard() {
+            try {
+                channel.close();
+                Files.deleteIfExists(temp);
+            } catch (IOException ignored) {
+            }
+        }
+    }
+
+    /** Archivo guardado; mientras tenga referencias no se borra. */
+    public final class Blob {
+        private final String hash;
+        private final Path path;
+        private final long size;
+        private int refs; // Protegido por lock
+
+        private Blob(String hash, Path path, long size) {
+            this.hash = hash;
+            this.path = path;
+            this.size = size;
+        }
+
+        public String hash() {
+            return hash;
+        }
+
+        public Path path() {
+            return path;
+        }
+
+        public long size() {
+            return size;
+        }
+
+        /** Añade una referencia (otro envío del mismo archivo). */
+        public void retain() {
+            lockWait.lock(lock);
+            try {
+                refs++;
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /** Quita una referencia; si el almacén está lleno, el archivo ya se puede borrar. */
+        public void release() {
+            lockWait.lock(lock);
+            try {
+                refs--;
+                if (refs == 0 && usedBytes > maxBytes) {
+                    evictUntilUnderQuota();
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Envía el archivo con {@code protocol}: desde memoria si es pequeño, o con
+         * {@code transferTo} desde el disco si no.
+         */
+        public void writeTo(DataOutputStream out, ServerProtocol protocol, long transferId, String fileName,
+                String sender, String receiver) throws IOException {
+            ByteBuffer data = cached();
+            if (data != null) {
+                protocol.writeFile(out, transferId, data, fileName, sender, receiver, FrameCodec.FILE_CHUNK_SIZE);
+            } else {
+                protocol.writeFile(out, transferId, path.toFile(), fileName, sender, receiver, FrameCodec.FILE_CHUNK_SIZE);
+            }
+        }
+
+        /**
+         * Contenido en memoria si el archivo es pequeño; la primera vez se lee del disco.
+         *
+         * @return Un buffer de solo lectura, o {@code null} si el archivo es demasiado grande.
+         */
+        public ByteBuffer cached() throws IOException {
+            if (size > cacheFileBytes || size > cacheBytes) {
+                return null;
+            }
+            lockWait.lock(lock);
+            try {
+                ByteBuffer hit = cache.get(hash);
+                if (hit != null) {
+                    cacheHits++;
+                    return hit.asReadOnlyBuffer();
+                }
+            } finally {
+                lock.unlock();
+            }
+            ByteBuffer data = ByteBuffer.wrap(Files.readAllBytes(path)); // Fuera del candado
+            lockWait.lock(lock);
+            try {
+                if (cache.putIfAbsent(hash, data) == null) {
+                    cachedBytes += data.capacity();
+                    Iterator<ByteBuffer> it = cache.values().iterator();
+                    while (cachedBytes > cacheBytes && it.hasNext()) {
+                        cachedBytes -= it.next().capacity();
+                        it.remove();
+                    }
+                }
+            } finally {
+                lock.unlock();
+            }
+            return data.asReadOnlyBuffer();
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Buffer de salida de un cliente: acumula las escrituras pequeñas de un mensaje (cabeceras,
+ * {@code writeInt}, {@code writeUTF}...) y de varios mensajes seguidos, y las envía al socket
+ * en una sola escritura al hacer {@link #flush()} o cuando se llena. Las escrituras más
+ * grandes que el buffer van directas tras vaciarlo. No es seguro entre hilos: lo usa solo
+ * el hilo escritor del cliente.
+ */
+public final class BatchingOutputStream extends OutputStream {
+
+    private final OutputStream out;
+    private final byte[] buffer;
+    private final WriteStats stats;
+    private int count;
+
+    /**
+     * @param stats Contadores de escritura de la conexión.
+     */
+    public BatchingOutputStream(OutputStream out, int size, WriteStats stats) {
+        this.out = out;
+        this.buffer = new byte[size];
+        this.stats = stats;
+    }
+
+    /** Bytes acumulados pendientes de enviar. */
+    public int buffered() {
+        return count;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        stats.writes(1);
+        if (count == buffer.length) {
+            drain();
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        stats.writes(1);
+        if (len >= buffer.length) {
+            drain();
+            out.write(b, off, len);
+            stats.syscall(len);
+            return;
+        }
+        if (len > buffer.length - count) {
+            drain();
+        }
+        System.arraycopy(b, off, buffer, count, len);
+        count += len;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        drain();
+        out.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            out.close();
+        }
+    }
+
+    private void drain() throws IOException {
+        if (count > 0) {
+            out.write(buffer, 0, count);
+            stats.syscall(count);
+            count = 0;
+        }
+    }
+}
@@ -0,0 +1,151 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mycompany.jpsocket.protocol.Compression;
+import com.mycompany.jpsocket.protocol.Frame;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+import com.mycompany.jpsocket.protocol.FrameType;
+import com.mycompany.jpsocket.protocol.HistoryRecord;
+
+/**
+ * Protocolo binario v2: cada mensaje es una {@link Frame} con su emisor, receptor e id,
+ * y los textos no están limitados a los 64 KB de {@code writeUTF}. Las conexiones que
+ * acordaron compresión usan su propia instancia ({@link #compressed(Compression)}).
+ */
+public final class BinaryProtocol implements ServerProtocol {
+
+    public static final BinaryProtocol INSTANCE = new BinaryProtocol(null);
+
+    private static final byte[] NONE = new byte[0];
+    private static final int PAGE_MARGIN_BYTES = 1024; // Cabecera de la trama y recuento de registros
+
+    private static final Object ROOM_RAW = new Object(); // Formas de codificar un RoomMessage
+    private static final Object ROOM_DEFLATED = new Object();
+
+    private final Compression compression;
+
+    private BinaryProtocol(Compression compression) {
+        this.compression = compression;
+    }
+
+    /** Protocolo de una conexión que comprime sus tramas; {@code compression} lleva sus estadísticas. */
+    public static BinaryProtocol compressed(Compression compression) {
+        return new BinaryProtocol(compression);
+    }
+
+    @Override
+    public Compression compression() {
+        return compression;
+    }
+
+    @Override
+    public void writeText(DataOutputStream out, HistoryStore.Entry entry, String viewer) throws IOException {
+        write(out, Frame.text(FrameType.TEXT, entry.id(), entry.sender(), entry.receiver(), entry.text()));
+    }
+
+    @Override
+    public byte[] encodeRoomText(RoomMessage message) throws IOException {
+        // Todas las conexiones que comprimen comparten también la versión comprimida
+        return message.encoded(compression == null ? ROOM_RAW : ROOM_DEFLATED, out -> write(out,
+                Frame.text(FrameType.ROOM_TEXT, message.id(), message.sender(), message.room(), message.text())));
+    }
+
+    @Override
+    public void writeNotice(DataOutputStream out, String text) throws IOException {
+        write(out, Frame.text(FrameType.NOTICE, 0, null, null, text));
+    }
+
+    @Override
+    public void writeUserList(DataOutputStream out, Presence.Snapshot snapshot, String viewer) throws IOException {
+        List<String> names = new ArrayList<>(snapshot.names());
+        names.remove(viewer);
+        write(out, Frame.text(FrameType.USERLIST, snapshot.version(), null, null, String.join("\n", names)));
+    }
+
+    @Override
+    public void writePresence(DataOutputStream out, Presence.Delta delta, String viewer) throws IOException {
+        write(out, new Frame(FrameType.PRESENCE, 0, delta.version(), null, null, delta.payload()));
+    }
+
+    @Override
+    public void writeName(DataOutputStream out, String name, int credit) throws IOException {
+        // Sin comprimir: es la respuesta que confirma si se acepta la compresión
+        FrameCodec.write(out, new Frame(FrameType.NAME, compression != null ? Compression.FLAG_OFFER : 0, credit,
+                null, null, name.getBytes(StandardCharsets.UTF_8)));
+    }
+
+    @Override
+    public void writeCredit(DataOutputStream out, int frames) throws IOException {
+        write(out, new Frame(FrameType.CREDIT, 0, frames, null, null, null));
+    }
+
+    @Override
+    public void writeHistoryPage(DataOutputStream out, HistoryStore.Page page, String viewer, boolean forward) throws IOException {
+        List<HistoryStore.Entry> entries = page.entries();
+        int from = 0;
+        int end = entries.size();
+        long budget = FrameCodec.maxFrame() - PAGE_MARGIN_BYTES; // La página tiene que caber en una trama
+        // Si la página es demasiado grande se recorta por el lado opuesto al cursor
+        for (int n = 0; n < entries.size(); n++) {
+            int i = forward ? n : entries.size() - 1 - n;
+            budget -= 32 + 3L * (entries.get(i).sender().length() + entries.get(i).text().length());
+            if (budget < 0) {
+                if (forward) {
+                    end = i;
+                } else {
+                    from = i + 1;
+                }
+                break;
+            }
+        }
+        List<HistoryRecord> records = new ArrayList<>(end - from);
+        for (HistoryStore.Entry entry : entries.subList(from, end)) {
+            records.add(new HistoryRecord(entry.id(), entry.timestamp(), entry.sender(), entry.text()));
+        }
+        boolean hasMore = page.hasMore() || from > 0 || end < entries.size();
+        write(out, new Frame(FrameType.HISTORY_PAGE, hasMore ? FrameCodec.FLAG_HAS_MORE : 0, 0,
+                null, viewer, FrameCodec.writeHistory(records)));
+    }
+
+    @Override
+    public void writeFileHeader(DataOutputStream out, long transferId, String fileName, String sender, String receiver, long size) throws IOException {
+        write(out, new Frame(FrameType.FILE_BEGIN, 0, transferId, sender, receiver, FrameCodec.fileBegin(size, fileName)));
+    }
+
+    @Override
+    public void writeFileChunkHeader(DataOutputStream out, long transferId, long offset, int crc, int length) throws IOException {
+        FrameCodec.writeHeader(out, FrameType.FILE_CHUNK, 0, transferId, NONE, NONE, FrameCodec.CHUNK_HEADER_BYTES + length);
+        out.writeLong(offset);
+        out.writeInt(crc);
+    }
+
+    @Override
+    public void writeDeflatedChunkHeader(DataOutputStream out, long transferId, int length) throws IOException {
+        FrameCodec.writeHeader(out, FrameType.FILE_CHUNK, Compression.FLAG_DEFLATE, transferId, NONE, NONE, length);
+    }
+
+    @Override
+    public void writeFileAck(DataOutputStream out, long transferId, long offset) throws IOException {
+        write(out, new Frame(FrameType.FILE_ACK, 0, transferId, null, null, FrameCodec.fileAck(offset)));
+    }
+
+    @Override
+    public boolean interleavesFiles() {
+        return true;
+    }
+
+    @Override
+    public void writeFileEnd(DataOutputStream out, long transferId) throws IOException {
+        write(out, new Frame(FrameType.FILE_END, 0, transferId, null, null, null));
+    }
+
+    // Escribe la trama, comprimida si se acordó y compensa
+    private void write(DataOutputStream out, Frame frame) throws IOException {
+        FrameCodec.write(out, compression == null ? frame : compression.compress(frame));
+    }
+}
@@ -0,0 +1,58 @@
+package com.mycompany.jpsocket.server;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import com.mycompany.jpsocket.protocol.Compression;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+
+/**
+ * Comprime los trozos de un archivo reenviado una sola vez para todos los receptores que
+ * acordaron compresión, que comparten el resultado. Si los primeros bytes del archivo indican
+ * un formato ya comprimido (imágenes, ZIP, vídeo...) no se intenta con ningún trozo.
+ * Se usa solo desde el hilo que recibe el archivo.
+ */
+public final class ChunkDeflater {
+
+    private static final int MAGIC_BYTES = 16; // Suficientes para reconocer los formatos de Compression
+
+    private final List<Compression> targets = new ArrayList<>();
+    private Boolean compressible; // Se decide con el primer trozo
+
+    /** @param protocols Protocolos de los receptores; solo cuentan los que comprimen. */
+    public ChunkDeflater(List<ServerProtocol> protocols) {
+        for (ServerProtocol protocol : protocols) {
+            if (protocol.compression() != null) {
+                targets.add(protocol.compression());
+            }
+        }
+    }
+
+    /**
+     * Comprime el contenido de un {@code FILE_CHUNK} sin consumir {@code data}. El primer
+     * receptor paga la CPU; a los demás solo se les cuentan los bytes.
+     *
+     * @return Contenido comprimido, o {@code null} si el trozo se envía tal cual.
+     */
+    public byte[] deflate(long offset, int crc, ByteBuffer data) {
+        if (targets.isEmpty()) {
+            return null;
+        }
+        if (compressible == null) {
+            byte[] head = new byte[Math.min(MAGIC_BYTES, data.remaining())];
+            data.duplicate().get(head);
+            compressible = !Compression.isCompressed(head, 0, head.length);
+        }
+        if (!compressible || data.remaining() < Compression.MIN_BYTES) {
+            return null;
+        }
+        byte[] payload = FrameCodec.fileChunk(offset, crc, data);
+        byte[] deflated = targets.get(0).deflate(payload, 0, payload.length);
+        int wire = deflated == null ? payload.length : deflated.length;
+        for (int i = 1; i < targets.size(); i++) {
+            targets.get(i).recordShared(payload.length, wire);
+        }
+        return deflated;
+    }
+}
@@ -0,0 +1,509 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+
+import com.mycompany.jpsocket.ServerConfig;
+import com.mycompany.jpsocket.protocol.Frame;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+import com.mycompany.jpsocket.protocol.FrameType;
+
+/**
+ * Modo clúster: varios procesos servidor atienden clientes a la vez y se reparten los mensajes.
+ * <p>
+ * Cada nodo escucha a los demás en {@code cluster.port} y abre una conexión ({@link NodeLink}) a
+ * cada dirección de {@code cluster.peers}; la lista puede incluir al propio nodo, así que todos
+ * pueden arrancar con la misma. Entre cada par de nodos hay dos conexiones, una por sentido: por
+ * la que abre un nodo envía sus usuarios locales (lista completa al conectar y después altas y
+ * bajas) y los mensajes y archivos para los usuarios del otro; por la que acepta solo recibe.
+ * <p>
+ * Los usuarios de los demás nodos entran en la {@link Presence} local, de modo que la lista de
+ * usuarios de cada cliente incluye a todo el clúster. Un mensaje privado para un usuario remoto
+ * se guarda en el historial de los dos nodos y se entrega desde el del receptor; un archivo se
+ * reenvía completo desde el {@link AttachmentStore} en cuanto termina de subirse. Si se corta
+ * la conexión con un nodo, sus usuarios salen de la lista hasta que vuelve.
+ * <p>
+ * Los nombres son únicos dentro de cada nodo y no se pueden registrar los que ya usa otro; si
+ * dos nodos aceptan el mismo nombre a la vez, cada uno entrega los mensajes a su usuario local.
+ * Las salas no se comparten entre nodos.
+ * <p>
+ * El puerto del clúster escucha en {@code cluster.host} (por defecto solo en {@code 127.0.0.1}).
+ * Al conectar, cada nodo envía un reto aleatorio y, con {@code cluster.secret}, el otro lo firma
+ * con HMAC-SHA256 junto con el suyo y los dos ids; si la firma no coincide se corta la conexión.
+ * Sin secreto, solo se aceptan conexiones desde las direcciones de {@code cluster.peers}. Un nodo
+ * solo puede enviar mensajes y archivos de los usuarios que ha anunciado por esa conexión.
+ */
+public final class Cluster {
+
+    /** Entrega a los clientes conectados a este nodo lo que llega de otros nodos. */
+    public interface Local {
+        /** Indica si hay un cliente con ese nombre conectado a este nodo. */
+        boolean isConnected(String name);
+
+        /** Entrega un mensaje privado a su receptor, si está conectado aquí. */
+        void deliverText(HistoryStore.Entry entry);
+
+        /** Entrega un archivo a su receptor, si está conectado aquí; suelta la referencia de {@code blob}. */
+        void deliverFile(AttachmentStore.Blob blob, String sender, String fileName, String receiver);
+    }
+
+    private static final Cluster DISABLED = new Cluster(null, null, null);
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final String nodeId;
+    private final Presence presence;
+    private final Local local;
+    private final Set<String> localUsers = new LinkedHashSet<>(); // Protegido por el propio conjunto
+    private final List<NodeLink> links = new ArrayList<>(); // Conexiones salientes, una por dirección
+    private final Map<String, NodeLink> routes = new ConcurrentHashMap<>(); // Id de nodo -> conexión conectada
+    private final Map<String, Peer> remoteUsers = new ConcurrentHashMap<>(); // Usuario remoto -> conexión por la que se anunció
+    private final Map<String, Peer> peers = new ConcurrentHashMap<>(); // Id de nodo -> conexión entrante
+    private final AtomicLong transferIds = new AtomicLong();
+    private final Set<InetAddress> allowed = new HashSet<>(); // Direcciones de cluster.peers, si no hay secreto
+    private final byte[] secret; // null sin cluster.secret
+    private final int heartbeatMillis;
+
+    private Cluster(ServerConfig config, Presence presence, Local local) {
+        this.nodeId = config == null ? null : config.getString("cluster.node", "nodo-" + config.getPort());
+        this.presence = presence;
+        this.local = local;
+        this.heartbeatMillis = config == null ? 0 : Math.max(100, config.getInt("cluster.heartbeat.ms", 1000));
+        String key = config == null ? "" : config.getString("cluster.secret", "");
+        this.secret = key.isEmpty() ? null : key.getBytes(StandardCharsets.UTF_8);
+    }
+
+    /** Nodo sin clúster: no hay usuarios remotos y no se reenvía nada. */
+    public static Cluster disabled() {
+        return DISABLED;
+    }
+
+    /**
+     * Arranca el clúster si {@code cluster.port} es mayor que 0: acepta a los demás nodos en ese
+     * puerto y conecta con los de {@code cluster.peers} ({@code host:puerto} separados por comas).
+     *
+     * @param presence Usuarios del motor local, donde se añaden los de otros nodos.
+     * @return El clúster en marcha, o {@link #disabled()} si no se ha pedido o no se pudo abrir el puerto.
+     */
+    public static Cluster start(ServerConfig config, Presence presence, Local local) {
+        int port = config.getInt("cluster.port", 0);
+        if (port <= 0) {
+            return DISABLED;
+        }
+        Cluster cluster = new Cluster(config, presence, local);
+        ServerSocket server;
+        try {
+            server = new ServerSocket();
+            server.setReuseAddress(true);
+            server.bind(new InetSocketAddress(config.getString("cluster.host", "127.0.0.1"), port));
+        } catch (IOException e) {
+            Log.error("No se pudo abrir el puerto del clúster, el nodo queda aislado", "puerto", port, "error", e.getMessage());
+            return DISABLED;
+        }
+        daemon(() -> cluster.accept(server), "cluster-accept");
+        for (String peer : config.getString("cluster.peers", "").split(",")) {
+            int colon = peer.lastIndexOf(':');
+            if (colon <= 0) {
+                continue;
+            }
+            InetSocketAddress address = new InetSocketAddress(peer.substring(0, colon).trim(),
+                    Integer.parseInt(peer.substring(colon + 1).trim()));
+            if (!address.isUnresolved()) {
+                cluster.allowed.add(address.getAddress());
+            }
+            NodeLink link = new NodeLink(cluster, address, config);
+            cluster.links.add(link);
+            daemon(link, "cluster-link-" + peer.trim());
+        }
+        if (cluster.secret == null) {
+            Log.warn("Clúster sin cluster.secret: solo se aceptan nodos desde las direcciones de cluster.peers");
+        }
+        Log.info("Nodo del clúster iniciado", "nodo", cluster.nodeId, "puerto", port, "vecinos", cluster.links.size());
+        return cluster;
+    }
+
+    public boolean isEnabled() {
+        return nodeId != null;
+    }
+
+    String nodeId() {
+        return nodeId;
+    }
+
+    int heartbeatMillis() {
+        return heartbeatMillis;
+    }
+
+    /**
+     * Saludo del nodo que abre la conexión ({@link NodeLink}): envía su id y un reto, comprueba la
+     * firma con la que responde el otro nodo y firma a su vez el reto de este.
+     *
+     * @return El id del otro nodo, ya comprobado.
+     * @throws IOException Si el otro nodo no responde con un {@code NODE_HELLO} válido.
+     */
+    String connectHello(DataInputStream in, DataOutputStream out) throws IOException {
+        String challenge = challenge();
+        writeHello(out, nodeId, challenge);
+        String[] reply = readHello(in, 3); // Id, reto y firma
+        String peerId = reply[0];
+        verify(reply[2], "accept", nodeId, peerId, challenge, reply[1]);
+        writeHello(out, nodeId, sign("connect", nodeId, peerId, challenge, reply[1]));
+        return peerId;
+    }
+
+    /**
+     * Saludo del nodo que acepta la conexión ({@link Peer}): responde al reto del otro nodo con
+     * el suyo propio y comprueba que lo firma con el mismo id.
+     *
+     * @return El id del otro nodo, ya comprobado.
+     * @throws IOException Si el otro nodo no envía un {@code NODE_HELLO} válido.
+     */
+    private String acceptHello(DataInputStream in, DataOutputStream out) throws IOException {
+        String[] hello = readHello(in, 2); // Id y reto
+        String peerId = hello[0];
+        String challenge = challenge();
+        writeHello(out, nodeId, challenge, sign("accept", peerId, nodeId, hello[1], challenge));
+        String[] proof = readHello(in, 2); // Id y firma
+        if (!proof[0].equals(peerId)) {
+            throw new IOException("El nodo cambió de id durante el saludo");
+        }
+        verify(proof[1], "connect", peerId, nodeId, hello[1], challenge);
+        return peerId;
+    }
+
+    private static void writeHello(DataOutputStream out, String... lines) throws IOException {
+        FrameCodec.write(out, Frame.text(FrameType.NODE_HELLO, 0, null, null, String.join("\n", lines)));
+        out.flush();
+    }
+
+    private static String[] readHello(DataInputStream in, int lines) throws IOException {
+        Frame hello = FrameCodec.read(in);
+        if (hello.getType() != FrameType.NODE_HELLO) {
+            throw new IOException("Se esperaba NODE_HELLO y llegó " + hello.getType());
+        }
+        String[] parts = hello.text().split("\n", -1);
+        if (parts.length != lines || parts[0].isEmpty()) {
+            throw new IOException("NODE_HELLO mal formado");
+        }
+        return parts;
+    }
+
+    // Reto de un solo uso: una firma capturada no sirve para otra conexión
+    private static String challenge() {
+        byte[] nonce = new byte[16];
+        RANDOM.nextBytes(nonce);
+        return HexFormat.of().formatHex(nonce);
+    }
+
+    private void verify(String signature, String role, String connector, String acceptor,
+            String connectorChallenge, String acceptorChallenge) throws IOException {
+        String expected = sign(role, connector, acceptor, connectorChallenge, acceptorChallenge);
+        if (!MessageDigest.isEqual(expected.getBytes(StandardCharsets.US_ASCII), signature.getBytes(StandardCharsets.US_ASCII))) {
+            String peerId = role.equals("accept") ? acceptor : connector;
+            Log.warn("Nodo rechazado: la firma no coincide con cluster.secret", "nodo", peerId);
+            throw new IOException("Firma de NODE_HELLO incorrecta");
+        }
+    }
+
+    // Firma de un saludo: el papel de quien firma, los dos ids y los dos retos; vacía sin cluster.secret
+    private String sign(String role, String connector, String acceptor, String connectorChallenge, String acceptorChallenge) {
+        if (secret == null) {
+            return "";
+        }
+        String text = String.join("\n", role, connector, acceptor, connectorChallenge, acceptorChallenge);
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(secret, "HmacSHA256"));
+            return HexFormat.of().formatHex(mac.doFinal(text.getBytes(StandardCharsets.UTF_8)));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("HmacSHA256 no disponible", e);
+        }
+    }
+
+    /** Indica si hay un usuario con ese nombre en otro nodo; sirve para no registrarlo aquí. */
+    public boolean isRemote(String name) {
+        return name != null && remoteUsers.containsKey(name);
+    }
+
+    /** Alta de un cliente de este nodo; se anuncia a los demás. */
+    public void joined(String name) {
+        if (!isEnabled()) {
+            return;
+        }
+        synchronized (localUsers) {
+            localUsers.add(name);
+            byte[] change = FrameCodec.presence(0, List.of(name), List.of());
+            for (NodeLink link : routes.values()) {
+                link.send((out, p) -> FrameCodec.write(out, new Frame(FrameType.PRESENCE, 0, 0, null, null, change)));
+            }
+        }
+    }
+
+    /** Baja de un cliente de este nodo. */
+    public void left(String name) {
+        if (!isEnabled() || name == null) {
+            return;
+        }
+        synchronized (localUsers) {
+            localUsers.remove(name);
+            byte[] change = FrameCodec.presence(0, List.of(), List.of(name));
+            for (NodeLink link : routes.values()) {
+                link.send((out, p) -> FrameCodec.write(out, new Frame(FrameType.PRESENCE, 0, 0, null, null, change)));
+            }
+        }
+    }
+
+    /**
+     * Reenvía un mensaje privado al nodo de su receptor si no está conectado aquí.
+     *
+     * @return {@code true} si se ha encolado para otro nodo.
+     */
+    public boolean forwardText(HistoryStore.Entry entry) {
+        NodeLink link = route(entry.receiver());
+        return link != null && link.send((out, p) -> p.writeText(out, entry, entry.receiver()));
+    }
+
+    /**
+     * Reenvía un archivo completo al nodo de su receptor si no está conectado aquí. Mantiene su
+     * propia referencia de {@code blob} hasta haberlo enviado; el llamante conserva la suya.
+     *
+     * @return {@code true} si se ha encolado para otro nodo.
+     */
+    public boolean forwardFile(AttachmentStore.Blob blob, String sender, String fileName, String receiver) {
+        NodeLink link = route(receiver);
+        if (link == null) {
+            return false;
+        }
+        long transferId = transferIds.incrementAndGet();
+        return link.sendFile(blob, (out, p) -> blob.writeTo(out, p, transferId, fileName, sender, receiver));
+    }
+
+    // Conexión con el nodo del receptor; null si está aquí, no se conoce o su nodo no está conectado
+    private NodeLink route(String receiver) {
+        if (!isEnabled() || receiver == null || local.isConnected(receiver)) {
+            return null;
+        }
+        Peer peer = remoteUsers.get(receiver);
+        return peer == null ? null : routes.get(peer.nodeId);
+    }
+
+    // Una conexión saliente ya saludada: empieza por la lista completa de usuarios locales
+    void linkUp(NodeLink link, String peerId) {
+        synchronized (localUsers) {
+            String names = String.join("\n", localUsers);
+            link.send((out, p) -> FrameCodec.write(out, Frame.text(FrameType.USERLIST, 0, null, null, names)));
+            routes.put(peerId, link);
+        }
+        Log.info("Conectado con el nodo", "nodo", peerId);
+    }
+
+    void linkDown(NodeLink link, String peerId) {
+        if (routes.remove(peerId, link)) {
+            Log.warn("Desconectado del nodo", "nodo", peerId);
+        }
+    }
+
+    // Hilo que acepta las conexiones de los demás nodos; cada una se lee en su propio hilo
+    private void accept(ServerSocket server) {
+        try (server) {
+            while (true) {
+                Socket socket = server.accept();
+                if (secret == null && !allowed.contains(socket.getInetAddress())) {
+                    Log.warn("Conexión rechazada: la dirección no está en cluster.peers", "origen", socket.getRemoteSocketAddress());
+                    try {
+                        socket.close();
+                    } catch (IOException ignored) {
+                    }
+                    continue;
+                }
+                daemon(() -> new Peer(socket).run(), "cluster-peer-" + socket.getRemoteSocketAddress());
+            }
+        } catch (IOException e) {
+            Log.error("Error aceptando nodos del clúster", "error", e.getMessage());
+        }
+    }
+
+    private static void daemon(Runnable task, String name) {
+        Thread thread = new Thread(task, name);
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Conexión entrante desde otro nodo: aplica sus altas y bajas y entrega a los clientes locales
+     * lo que envía. Si no llega nada (ni {@code NODE_PING}) en tres latidos, se da por caída.
+     */
+    private final class Peer {
+        private final Socket socket;
+        private String nodeId;
+        private AttachmentStore.Writer file; // Archivo que está llegando, con su cabecera
+        private long fileId;
+        private String fileName;
+        private String fileSender;
+        private String fileReceiver;
+
+        Peer(Socket socket) {
+            this.socket = socket;
+        }
+
+        void run() {
+            try (socket) {
+                socket.setSoTimeout(heartbeatMillis * 3);
+                socket.setTcpNoDelay(true);
+                DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream(), 64 * 1024));
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(socket.getOutputStream()));
+                nodeId = acceptHello(in, out); // Desde aquí la conexión queda ligada a este id
+                if (nodeId.equals(Cluster.this.nodeId)) {
+                    return; // Es este mismo nodo, que aparece en su propia lista de vecinos
+                }
+                Peer previous = peers.put(nodeId, this);
+                if (previous != null) {
+                    previous.close(); // El nodo se ha reconectado antes de que caducara la conexión anterior
+                }
+                while (true) {
+                    handle(FrameCodec.read(in));
+                }
+            } catch (SocketTimeoutException e) {
+                Log.warn("El nodo no responde", "nodo", nodeId);
+            } catch (EOFException e) {
+                Log.info("El nodo cerró la conexión", "nodo", nodeId);
+            } catch (IOException e) {
+                if (nodeId != null) {
+                    Log.info("Conexión del nodo cerrada", "nodo", nodeId, "error", e.getMessage());
+                }
+            } finally {
+                if (file != null) {
+                    file.discard();
+                }
+                if (nodeId != null) {
+                    peers.remove(nodeId, this);
+                    for (Map.Entry<String, Peer> user : remoteUsers.entrySet()) {
+                        if (user.getValue() == this) {
+                            removeUser(user.getKey());
+                        }
+                    }
+                }
+            }
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+            }
+        }
+
+        private void handle(Frame frame) throws IOException {
+            switch (frame.getType()) {
+                case NODE_PING:
+                    break;
+                case USERLIST: // Lista completa del nodo: sustituye a lo que se sabía de él
+                    Set<String> names = new HashSet<>();
+                    for (String name : frame.text().split("\n")) {
+                        if (!name.isEmpty()) {
+                            names.add(name);
+                            addUser(name);
+                        }
+                    }
+                    for (Map.Entry<String, Peer> user : remoteUsers.entrySet()) {
+                        if (user.getValue() == this && !names.contains(user.getKey())) {
+                            removeUser(user.getKey());
+                        }
+                    }
+                    break;
+                case PRESENCE:
+                    for (String change : FrameCodec.presenceChanges(frame)) {
+                        if (change.startsWith("+")) {
+                            addUser(change.substring(1));
+                        } else if (change.startsWith("-")) {
+                            removeUser(change.substring(1));
+                        }
+                    }
+                    break;
+                case TEXT: // Se guarda también en el historial de este nodo, que es el que consulta el receptor
+                    if (announced(frame)) {
+                        local.deliverText(HistoryStore.shared().append(frame.getSender(), frame.getReceiver(), frame.text()));
+                    }
+                    break;
+                case FILE_BEGIN:
+                    if (file != null) {
+                        file.discard();
+                        file = null;
+                    }
+                    if (!announced(frame)) {
+                        break; // Sin archivo abierto, sus trozos también se ignoran
+                    }
+                    file = AttachmentStore.shared().newWriter();
+                    fileId = frame.getMessageId();
+                    fileName = FrameCodec.fileName(frame);
+                    fileSender = frame.getSender();
+                    fileReceiver = frame.getReceiver();
+                    break;
+                case FILE_CHUNK:
+                    if (file != null && frame.getMessageId() == fileId) {
+                        if (FrameCodec.crc(FrameCodec.chunkData(frame)) != FrameCodec.chunkCrc(frame)) {
+                            throw new IOException("Trozo dañado de " + fileName);
+                        }
+                        file.write(FrameCodec.chunkData(frame));
+                    }
+                    break;
+                case FILE_END:
+                    if (file != null && frame.getMessageId() == fileId) {
+                        AttachmentStore.Blob blob = file.commit();
+                        file = null;
+                        local.deliverFile(blob, fileSender, fileName, fileReceiver);
+                    }
+                    break;
+                default:
+                    Log.warn("Trama de nodo ignorada", "nodo", nodeId, "trama", frame);
+            }
+        }
+
+        // Un nodo solo puede enviar en nombre de los usuarios que él mismo ha anunciado
+        private boolean announced(Frame frame) {
+            String sender = frame.getSender();
+            if (sender != null && remoteUsers.get(sender) == this) {
+                return true;
+            }
+            Log.warn("Trama de nodo rechazada: el emisor no es un usuario de ese nodo", "nodo", nodeId, "emisor", sender);
+            return false;
+        }
+
+        private void addUser(String name) {
+            if (remoteUsers.put(name, this) == null) {
+                presence.join(name);
+            }
+        }
+
+        private void removeUser(String name) {
+            // Solo si el usuario sigue anunciado por esta conexión y no hay otro con su nombre aquí
+            if (remoteUsers.remove(name, this) && !local.isConnected(name)) {
+                presence.leave(name);
+            }
+        }
+    }
+}
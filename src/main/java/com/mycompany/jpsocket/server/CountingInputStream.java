@@ -0,0 +1,42 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Flujo de entrada que suma a {@link ServerMetrics} los bytes leídos del socket de un cliente.
+ */
+public final class CountingInputStream extends FilterInputStream {
+
+    private final ServerMetrics metrics = ServerMetrics.shared();
+
+    public CountingInputStream(InputStream in) {
+        super(in);
+    }
+
+    @Override
+    public int read() throws IOException {
+        int b = in.read();
+        if (b >= 0) {
+            metrics.bytesReceived(1);
+        }
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        int n = in.read(b, off, len);
+        if (n > 0) {
+            metrics.bytesReceived(n);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        long skipped = in.skip(n);
+        metrics.bytesReceived(skipped);
+        return skipped;
+    }
+}
@@ -0,0 +1,180 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.mycompany.jpsocket.ServerConfig;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+
+/**
+ * Subida de un archivo en curso, común a los dos motores. Comprueba que cada trozo llega en
+ * orden y con su CRC, entrega al {@link Sink} solo los trozos correctos e indica desde dónde
+ * debe reenviar el cliente cuando algo falla.
+ * <p>
+ * Si la conexión de quien sube se corta, la subida queda aparcada {@code transfer.resume.minutes}
+ * (10 por defecto); si el mismo usuario vuelve a empezar la transferencia con el mismo id, se
+ * reanuda desde lo ya recibido y los receptores siguen recibiendo el mismo archivo. Cada usuario
+ * puede tener como mucho {@code limit.transfers} subidas entre la que está en curso y las aparcadas.
+ */
+public final class FileTransfer {
+
+    /** Destino de los trozos ya comprobados (el reenvío a los receptores). */
+    public interface Sink {
+        void chunk(ByteBuffer data, int crc) throws IOException;
+
+        void finish() throws IOException;
+
+        void abort();
+    }
+
+    private static final Map<String, FileTransfer> PARKED = new ConcurrentHashMap<>();
+
+    private final String owner;
+    private final long id;
+    private final String fileName;
+    private final long size;
+    private final Sink sink;
+    private long expected; // Siguiente posición que se acepta
+    private boolean rewindSent; // Ya se pidió reenviar desde expected; se ignoran trozos hasta entonces
+    private long parkedAt;
+
+    public FileTransfer(String owner, long id, String fileName, long size, Sink sink) {
+        this.owner = owner;
+        this.id = id;
+        this.fileName = fileName;
+        this.size = size;
+        this.sink = sink;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public String fileName() {
+        return fileName;
+    }
+
+    public long size() {
+        return size;
+    }
+
+    public Sink sink() {
+        return sink;
+    }
+
+    /** Bytes recibidos y comprobados. */
+    public long received() {
+        return expected;
+    }
+
+    /**
+     * Procesa un trozo.
+     *
+     * @return La posición desde la que el cliente debe reenviar, o -1 si el trozo se aceptó
+     *         (o se ignoró por estar ya pedido el reenvío).
+     */
+    public long chunk(long offset, int crc, ByteBuffer data) throws IOException {
+        int length = data.remaining();
+        if (offset != expected || expected + length > size || FrameCodec.crc(data) != crc) {
+            if (offset != expected && rewindSent) {
+                return -1; // Trozos que ya estaban en camino antes de pedir el reenvío
+            }
+            Log.warn("Trozo erróneo, se pide reenviar", "archivo", fileName, "posicion", offset, "desde", expected);
+            rewindSent = true;
+            return expected;
+        }
+        rewindSent = false;
+        sink.chunk(data, crc);
+        expected += length;
+        ServerMetrics.shared().fileBytes(length);
+        return -1;
+    }
+
+    /**
+     * Fin de la subida.
+     *
+     * @return {@link #size()} si el archivo está completo (y se entregó), o la posición desde
+     *         la que hay que reenviar.
+     */
+    public long end() throws IOException {
+        if (expected != size) {
+            rewindSent = true;
+            return expected;
+        }
+        sink.finish();
+        ServerMetrics.shared().fileCompleted();
+        return size;
+    }
+
+    /** Aparca la subida de una conexión que se cerró, para poder reanudarla. */
+    public void park() {
+        purgeExpired();
+        parkedAt = System.currentTimeMillis();
+        FileTransfer previous = PARKED.put(key(owner, id), this);
+        if (previous != null && previous != this) {
+            previous.sink.abort();
+        }
+        Log.info("Subida interrumpida", "archivo", fileName, "recibidos", expected, "bytes", size);
+    }
+
+    /**
+     * Recupera una subida aparcada del mismo usuario y id.
+     *
+     * @return La subida, o {@code null} si no hay ninguna (o no coincide el archivo).
+     */
+    public static FileTransfer resume(String owner, long id, String fileName, long size) {
+        purgeExpired();
+        FileTransfer parked = PARKED.remove(key(owner, id));
+        if (parked == null) {
+            return null;
+        }
+        if (parked.size != size || !parked.fileName.equals(fileName)) {
+            parked.sink.abort(); // El mismo id para otro archivo: se empieza de nuevo
+            return null;
+        }
+        parked.rewindSent = false;
+        Log.info("Subida reanudada", "archivo", fileName, "desde", parked.expected);
+        return parked;
+    }
+
+    /**
+     * Indica si {@code owner} puede empezar la subida {@code id}: como mucho {@code limit} entre
+     * la que tiene en curso y las aparcadas. Reanudar una aparcada siempre se admite.
+     *
+     * @param uploading Tiene otra subida en curso, que se aparcará al empezar esta.
+     */
+    public static boolean canStart(String owner, long id, boolean uploading, int limit) {
+        if (limit <= 0 || PARKED.containsKey(key(owner, id))) {
+            return true;
+        }
+        purgeExpired();
+        int count = uploading ? 1 : 0;
+        for (FileTransfer parked : PARKED.values()) {
+            if (parked.owner.equals(owner)) {
+                count++;
+            }
+        }
+        return count < limit;
+    }
+
+    // Cancela las subidas aparcadas que nadie reanudó a tiempo
+    private static void purgeExpired() {
+        long ttl = ServerConfig.get().getLong("transfer.resume.minutes", 10) * 60_000L;
+        long now = System.currentTimeMillis();
+        Iterator<FileTransfer> it = PARKED.values().iterator();
+        while (it.hasNext()) {
+            FileTransfer transfer = it.next();
+            if (now - transfer.parkedAt > ttl) {
+                it.remove();
+                transfer.sink.abort();
+            }
+        }
+    }
+
+    private static String key(String owner, long id) {
+        return owner + '\u0000' + id;
+    }
+}
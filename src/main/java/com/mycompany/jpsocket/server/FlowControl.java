@@ -0,0 +1,202 @@
+package com.mycompany.jpsocket.server;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mycompany.jpsocket.ServerConfig;
+
+/**
+ * Límites de lo que puede enviar cada cliente, comunes a los dos motores. Nada se descarta: a
+ * quien va demasiado rápido se le deja de leer el tiempo necesario y TCP lo frena.
+ * <ul>
+ * <li>Dos cubos de fichas por conexión: {@code limit.messages.per.second} mensajes (con ráfagas
+ *     de {@code limit.messages.burst}) y {@code limit.bytes.per.second} bytes (ráfagas de
+ *     {@code limit.bytes.burst}). Cada trama se procesa al llegar y deja el cubo en deuda;
+ *     {@link #admit(boolean, int)} dice cuánto esperar antes de leer la siguiente.</li>
+ * <li>Créditos para los clientes v2: {@code NAME} lleva {@code limit.credit} tramas que el
+ *     cliente puede enviar y {@code CREDIT} devuelve las ya procesadas, solo cuando el cubo lo
+ *     permite. El cliente espera en lugar de llenar el socket.</li>
+ * <li>{@code limit.transfers} subidas a la vez por usuario, contando las aparcadas
+ *     (ver {@link FileTransfer#canStart}), de como mucho {@code limit.file.bytes} cada una.</li>
+ * <li>Admisión en todo el servidor: si los archivos en tránsito suman más de
+ *     {@code limit.inflight.bytes} sin enviar a sus receptores, no se lee nada más de quienes
+ *     suben hasta que bajen de la mitad.</li>
+ * </ul>
+ * Con 0 se desactiva cada límite. Cada instancia la usa solo el hilo (o bucle) que lee de su
+ * conexión; la parte estática, cualquier hilo.
+ */
+public final class FlowControl {
+
+    private static final long WARN_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(10); // Como mucho un aviso cada 10 s
+
+    private static final AtomicLong INFLIGHT = new AtomicLong(); // Bytes de archivo recibidos y aún no reenviados
+    private static final Queue<Runnable> WAITING = new ConcurrentLinkedQueue<>(); // Lecturas pausadas por admisión
+
+    // Se lee al primer uso, con la configuración ya cargada
+    private static final class Admission {
+        static final long MAX = ServerConfig.get().getLong("limit.inflight.bytes", 256L * 1024 * 1024);
+    }
+
+    // Cubo de fichas que admite deuda: lo que no cabe se paga esperando
+    private static final class Bucket {
+        private final double perNano;
+        private final double burst;
+        private double tokens;
+        private long last = System.nanoTime();
+
+        Bucket(long perSecond, long burst) {
+            this.perNano = perSecond / 1e9;
+            this.burst = Math.max(burst, perSecond);
+            this.tokens = this.burst;
+        }
+
+        // Nanosegundos hasta salir de la deuda
+        long take(long amount) {
+            if (perNano <= 0) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            tokens = Math.min(burst, tokens + (now - last) * perNano);
+            last = now;
+            tokens -= amount;
+            return tokens >= 0 ? 0 : (long) Math.ceil(-tokens / perNano);
+        }
+    }
+
+    private final Bucket messages;
+    private final Bucket bytes;
+    private final int transfers;
+    private final long maxFileBytes; // limit.file.bytes; 0 sin límite
+    private final int credit; // 0 si la conexión no usa créditos
+    private int consumed; // Tramas recibidas desde el último CREDIT
+    private boolean waited; // La última trama dejó el cubo en deuda
+    private long warnedAt = System.nanoTime() - WARN_INTERVAL_NANOS;
+
+    /**
+     * @param credits El cliente entiende {@code CREDIT} (protocolo v2).
+     */
+    public FlowControl(ServerConfig config, boolean credits) {
+        this.messages = new Bucket(config.getInt("limit.messages.per.second", 200), config.getInt("limit.messages.burst", 400));
+        this.bytes = new Bucket(config.getLong("limit.bytes.per.second", 16L * 1024 * 1024),
+                config.getLong("limit.bytes.burst", 16L * 1024 * 1024));
+        this.transfers = config.getInt("limit.transfers", 4);
+        this.maxFileBytes = config.getLong("limit.file.bytes", 1024L * 1024 * 1024);
+        this.credit = credits ? Math.max(0, config.getInt("limit.credit", 256)) : 0;
+    }
+
+    /** Tramas que el cliente puede enviar antes del primer {@code CREDIT}, o 0 si no se usan créditos. */
+    public int initialCredit() {
+        return credit;
+    }
+
+    /** Subidas a la vez que admite la conexión (0: sin límite). */
+    public int transfers() {
+        return transfers;
+    }
+
+    /** Indica si se admite una subida de ese tamaño; uno negativo nunca. */
+    public boolean acceptsFile(long size) {
+        return size >= 0 && (maxFileBytes == 0 || size <= maxFileBytes);
+    }
+
+    /**
+     * Cuenta una trama ya recibida.
+     *
+     * @param message Es un mensaje (los trozos de archivo solo cuentan bytes).
+     * @return Milisegundos que hay que esperar antes de leer la siguiente; 0 si no hay que esperar.
+     */
+    public long admit(boolean message, int length) {
+        consumed++;
+        long nanos = Math.max(message ? messages.take(1) : 0, bytes.take(length));
+        waited = nanos > 0;
+        if (!waited) {
+            return 0;
+        }
+        ServerMetrics.shared().throttled();
+        return Math.max(1, TimeUnit.NANOSECONDS.toMillis(nanos));
+    }
+
+    /**
+     * Créditos que hay que devolver al cliente tras la espera de {@link #admit}: se devuelven
+     * de golpe cuando ha gastado la mitad.
+     *
+     * @return Tramas que puede enviar además de las que le quedaban, o 0 si aún no toca.
+     */
+    public int grant() {
+        if (credit == 0 || consumed < Math.max(1, credit / 2)) {
+            return 0;
+        }
+        int granted = consumed;
+        consumed = 0;
+        return granted;
+    }
+
+    /** Indica si hay que avisar al cliente de que se le frena (tras esperar, como mucho cada 10 s). */
+    public boolean shouldWarn() {
+        long now = System.nanoTime();
+        if (!waited || now - warnedAt < WARN_INTERVAL_NANOS) {
+            return false;
+        }
+        warnedAt = now;
+        return true;
+    }
+
+    /** Bytes de archivo que entran ({@code delta > 0}) o salen hacia sus receptores. */
+    public static void inflight(long delta) {
+        long now = INFLIGHT.addAndGet(delta);
+        if (delta < 0 && now <= Admission.MAX / 2 && !WAITING.isEmpty()) {
+            wakeWaiting();
+        }
+    }
+
+    public static long inflightBytes() {
+        return Math.max(0, INFLIGHT.get());
+    }
+
+    /** Indica si se ha superado {@code limit.inflight.bytes}; quien sube debe dejar de leer. */
+    public static boolean overloaded() {
+        return Admission.MAX > 0 && INFLIGHT.get() > Admission.MAX;
+    }
+
+    /**
+     * Ejecuta {@code resume} (en el hilo que suelta bytes) cuando los archivos en tránsito bajen
+     * de la mitad del límite; en el acto si ya han bajado. Se llama después de pausar la lectura.
+     */
+    public static void whenAdmitted(Runnable resume) {
+        WAITING.add(resume);
+        if (INFLIGHT.get() <= Admission.MAX / 2) {
+            wakeWaiting(); // Se vaciaron mientras se pausaba
+        }
+    }
+
+    /**
+     * Para el motor de hilos: espera como mucho {@code timeout} a que se admitan más bytes.
+     *
+     * @return {@code true} si se pueden leer.
+     */
+    public static boolean awaitAdmission(long timeout, TimeUnit unit) throws InterruptedException {
+        if (!overloaded()) {
+            return true;
+        }
+        CountDownLatch admitted = new CountDownLatch(1);
+        Runnable resume = admitted::countDown;
+        whenAdmitted(resume);
+        try {
+            return admitted.await(timeout, unit) || !overloaded();
+        } finally {
+            if (admitted.getCount() > 0) {
+                WAITING.remove(resume); // Se agotó la espera: no se deja en la cola, el reintento añade otro
+            }
+        }
+    }
+
+    private static void wakeWaiting() {
+        Runnable resume;
+        while ((resume = WAITING.poll()) != null) {
+            resume.run();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package com.mycompany.jpsocket.server;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cuándo se vacía hacia el socket lo acumulado en el buffer de salida de un cliente. Agrupar
+ * varios mensajes en una sola escritura ahorra llamadas al sistema y segmentos TCP a cambio de
+ * retrasar un poco los mensajes.
+ *
+ * @param mode Política.
+ * @param maxDelayNanos Espera máxima de un mensaje en el buffer con {@link Mode#MAX_DELAY}.
+ * @param maxBytes Bytes acumulados a partir de los cuales se vacía siempre; es también el
+ *        tamaño del buffer.
+ */
+public record FlushPolicy(Mode mode, long maxDelayNanos, int maxBytes) {
+
+    public enum Mode {
+        IMMEDIATE, // Tras cada mensaje
+        MAX_DELAY, // Cuando el mensaje más antiguo del buffer lleva maxDelay esperando
+        MAX_BYTES  // Cuando no quedan mensajes en la cola o el buffer se llena
+    }
+
+    /**
+     * Siguiente trama que se añade al lote en curso del hilo escritor.
+     *
+     * @param buffered Bytes ya acumulados en el lote.
+     * @param batchStart {@link System#nanoTime()} de la primera trama del lote.
+     * @return La trama, o {@code null} si hay que vaciar el buffer ya.
+     */
+    public OutboundFrame next(OutboundQueue queue, int buffered, long batchStart) throws InterruptedException {
+        if (mode == Mode.IMMEDIATE || buffered >= maxBytes) {
+            return null;
+        }
+        long wait = mode == Mode.MAX_DELAY ? batchStart + maxDelayNanos - System.nanoTime() : 0;
+        return queue.poll(wait, TimeUnit.NANOSECONDS);
+    }
+}
@@ -0,0 +1,122 @@
+package com.mycompany.jpsocket.server;
+
+import java.util.List;
+
+import com.mycompany.jpsocket.ServerConfig;
+
+/**
+ * Formato de las peticiones y respuestas de historial paginado.
+ * <p>
+ * Petición: {@code HISTORY_REQUEST:usuario|otro[|before=id][|after=id][|limit=n]}.
+ * Sin cursor se devuelve la página más reciente. {@code usuario} tiene que ser quien pide la
+ * página: nadie puede leer conversaciones ajenas.
+ * <p>
+ * Respuesta, en una sola trama: {@code HISTORY_PAGE:<1|0>} (quedan más o no) seguido, por cada
+ * mensaje en orden ascendente, de {@code RS id US texto}, donde RS es {@code \u001E} y US
+ * {@code \u001F}. Si la página no cabe en una trama de {@code writeUTF} se recorta por el lado
+ * opuesto al cursor y se marca que quedan más.
+ */
+public final class HistoryPaging {
+
+    public static final String REQUEST = "HISTORY_REQUEST:";
+    public static final String PAGE = "HISTORY_PAGE:";
+    public static final char RECORD_SEPARATOR = '\u001E';
+    public static final char UNIT_SEPARATOR = '\u001F';
+
+    private static final int MAX_FRAME_BYTES = 60_000; // Margen bajo el límite de 65535 de writeUTF
+
+    /** Petición de una página. */
+    public record Request(String user, String peer, long beforeId, long afterId, int limit) {
+    }
+
+    private HistoryPaging() {
+    }
+
+    /**
+     * Interpreta el cuerpo de una petición (sin el prefijo {@code HISTORY_REQUEST:}).
+     *
+     * @return La petición o {@code null} si no tiene los dos usuarios.
+     */
+    public static Request parse(String body) {
+        String[] parts = body.split("\\|");
+        if (parts.length < 2) {
+            return null;
+        }
+        ServerConfig config = ServerConfig.get();
+        int limit = config.getInt("history.page.size", 50);
+        int maxLimit = config.getInt("history.page.max", 200);
+        long before = 0;
+        long after = 0;
+        for (int i = 2; i < parts.length; i++) {
+            String part = parts[i].trim();
+            try {
+                if (part.startsWith("before=")) {
+                    before = Long.parseLong(part.substring(7));
+                } else if (part.startsWith("after=")) {
+                    after = Long.parseLong(part.substring(6));
+                } else if (part.startsWith("limit=")) {
+                    limit = Integer.parseInt(part.substring(6));
+                }
+            } catch (NumberFormatException ignored) {
+                // Parámetro inválido: se usa el valor por defecto
+            }
+        }
+        limit = Math.max(1, Math.min(limit, maxLimit));
+        return new Request(parts[0].trim(), parts[1].trim(), before, after, limit);
+    }
+
+    /**
+     * Obtiene la página pedida del historial y anota cuánto tardó en {@link ServerMetrics}.
+     *
+     * @param owner Usuario de la sesión que la pide; si no es el de la petición se devuelve una
+     *        página vacía (y no nada, para que el cliente siga emparejando respuestas y peticiones).
+     */
+    public static HistoryStore.Page fetch(HistoryStore store, Request request, String owner) {
+        if (!request.user().equals(owner)) {
+            Log.warn("Historial ajeno denegado", "cliente", owner, "pedido", request.user() + "|" + request.peer());
+            return new HistoryStore.Page(List.of(), false);
+        }
+        long start = System.nanoTime();
+        HistoryStore.Page page = store.page(request.user(), request.peer(), request.beforeId(), request.afterId(), request.limit());
+        ServerMetrics.shared().historyRequest(System.nanoTime() - start);
+        return page;
+    }
+
+    /**
+     * Codifica una página en una trama {@code HISTORY_PAGE:}.
+     *
+     * @param page Página a enviar.
+     * @param viewer Usuario que la pide (sus mensajes se muestran como {@code [Yo]}).
+     * @param forward Si la petición era hacia delante ({@code after=}); decide qué lado se recorta.
+     */
+    public static String encode(HistoryStore.Page page, String viewer, boolean forward) {
+        List<HistoryStore.Entry> entries = page.entries();
+        String[] records = new String[entries.size()];
+        int budget = MAX_FRAME_BYTES;
+        int from = 0;
+        int end = entries.size();
+        boolean truncated = false;
+        // Se añaden primero los mensajes más cercanos al cursor
+        for (int n = 0; n < entries.size(); n++) {
+            int i = forward ? n : entries.size() - 1 - n;
+            HistoryStore.Entry entry = entries.get(i);
+            String record = RECORD_SEPARATOR + Long.toString(entry.id()) + UNIT_SEPARATOR + entry.render(viewer);
+            budget -= ModifiedUtf8.encodedLength(record);
+            if (budget < 0) {
+                truncated = true;
+                if (forward) {
+                    end = i;
+                } else {
+                    from = i + 1;
+                }
+                break;
+            }
+            records[i] = record;
+        }
+        StringBuilder frame = new StringBuilder(PAGE).append(page.hasMore() || truncated ? '1' : '0');
+        for (int i = from; i < end; i++) {
+            frame.append(records[i]);
+        }
+        return frame.toString();
+    }
+}
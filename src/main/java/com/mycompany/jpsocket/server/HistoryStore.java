@@ -0,0 +1,329 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.IOException;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.mycompany.jpsocket.ServerConfig;
+
+/**
+ * Historial de conversaciones compartido por todo el servidor.
+ * <p>
+ * Las conversaciones se reparten en franjas ({@code stripes}) según su clave, cada una con su
+ * propio candado, para que dos conversaciones distintas rara vez compitan. Cada conversación
+ * guarda como mucho {@code history.capacity} mensajes (búfer circular) y descarta los que superan
+ * {@code history.max.age.minutes}. Además hay un tope global aproximado de memoria
+ * ({@code history.max.bytes}); al superarlo se eliminan los mensajes más antiguos de las
+ * conversaciones usadas hace más tiempo.
+ * <p>
+ * Si tiene un {@link MessageJournal}, cada mensaje se escribe también en disco y las
+ * conversaciones que no están en memoria (tras reiniciar o por el tope) se recargan de él.
+ */
+public class HistoryStore {
+
+    static final DateTimeFormatter FORMATTER = DateTimeFormatter.ofPattern("HH:mm").withZone(ZoneId.systemDefault());
+
+    /** Mensaje guardado; se muestra con {@code [Yo]} o con el nombre del emisor según quién lo lea. */
+    public record Entry(long id, long timestamp, String sender, String receiver, String text) {
+
+        public String render(String viewer) {
+            String time = FORMATTER.format(Instant.ofEpochMilli(timestamp));
+            return "[" + time + "] " + (sender.equals(viewer) ? "[Yo] " : "[" + sender + "] ") + text;
+        }
+
+        /** Tamaño aproximado en memoria, usado para el tope global. */
+        long estimatedBytes() {
+            return 64 + 2L * (sender.length() + receiver.length() + text.length());
+        }
+    }
+
+    /** Página de historial en orden ascendente; {@code hasMore} indica si quedan más en esa dirección. */
+    public record Page(List<Entry> entries, boolean hasMore) {
+    }
+
+    private static final class Conversation {
+        final ArrayDeque<Entry> entries = new ArrayDeque<>();
+    }
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        final LinkedHashMap<String, Conversation> conversations = new LinkedHashMap<>(16, 0.75f, true); // Orden por último acceso
+    }
+
+    private static volatile HistoryStore shared;
+
+    private final Stripe[] stripes;
+    private final int capacity;
+    private final long maxAgeMillis;
+    private final long maxBytes;
+    private final AtomicLong usedBytes = new AtomicLong();
+    private final AtomicLong nextId;
+    private final MessageJournal journal;
+    private final AtomicInteger evictCursor = new AtomicInteger();
+    private final ServerMetrics.LockWait lockWait = ServerMetrics.shared().historyLock();
+
+    /**
+     * @param stripes Número de franjas (se redondea a potencia de dos).
+     * @param capacity Mensajes máximos por conversación.
+     * @param maxAgeMillis Antigüedad máxima de un mensaje, o 0 para no caducar.
+     * @param maxBytes Memoria aproximada máxima de todo el historial.
+     * @param journal Diario persistente, o {@code null} para guardar solo en memoria.
+     */
+    public HistoryStore(int stripes, int capacity, long maxAgeMillis, long maxBytes, MessageJournal journal) {
+        int count = 1;
+        while (count < stripes) {
+            count <<= 1;
+        }
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            this.stripes[i] = new Stripe();
+        }
+        this.capacity = capacity;
+        this.maxAgeMillis = maxAgeMillis;
+        this.maxBytes = maxBytes;
+        this.journal = journal;
+        this.nextId = new AtomicLong(journal == null ? 1 : journal.lastId() + 1); // Los ids siguen tras reiniciar
+    }
+
+    /** Historial compartido del proceso, configurado con {@link ServerConfig#get()}. */
+    public static HistoryStore shared() {
+        HistoryStore store = shared;
+        if (store == null) {
+            synchronized (HistoryStore.class) {
+                store = shared;
+                if (store == null) {
+                    ServerConfig config = ServerConfig.get();
+                    store = new HistoryStore(
+                            config.getInt("history.stripes", 16),
+                            config.getInt("history.capacity", 500),
+                            config.getLong("history.max.age.minutes", 7 * 24 * 60) * 60_000L,
+                            config.getLong("history.max.bytes", 64L * 1024 * 1024),
+                            openJournal(config));
+                    shared = store;
+                }
+            }
+        }
+        return store;
+    }
+
+    private static MessageJournal openJournal(ServerConfig config) {
+        if (!config.getBoolean("journal.enabled", true)) {
+            return null;
+        }
+        try {
+            return new MessageJournal(
+                    Paths.get(config.getString("journal.dir", "historial")),
+                    config.getLong("journal.segment.bytes", 16L * 1024 * 1024),
+                    config.getLong("journal.retention.days", 30) * 24 * 60 * 60_000L,
+                    config.getLong("journal.max.bytes", 1024L * 1024 * 1024),
+                    config.getLong("journal.fsync.ms", 50),
+                    config.getInt("journal.fsync.batch", 256));
+        } catch (IOException e) {
+            Log.warn("No se pudo abrir el historial en disco, solo se guardará en memoria", "error", e.getMessage());
+            return null;
+        }
+    }
+
+    /** Clave única para el par de usuarios (ordenada alfabéticamente). */
+    public static String conversationKey(String a, String b) {
+        return a.compareTo(b) < 0 ? a + "|" + b : b + "|" + a;
+    }
+
+    /**
+     * Guarda un mensaje privado en el historial de la pareja.
+     *
+     * @return La entrada creada, con su identificador y hora.
+     */
+    public Entry append(String sender, String receiver, String text) {
+        String key = conversationKey(sender, receiver);
+        Stripe stripe = stripeFor(key);
+        Entry entry;
+        lockWait.lock(stripe.lock);
+        try {
+            // Id y hora dentro del candado: en cada conversación (memoria y diario) los ids crecen en orden de escritura
+            entry = new Entry(nextId.getAndIncrement(), System.currentTimeMillis(), sender, receiver, text);
+            Conversation conversation = stripe.conversations.computeIfAbsent(key, k -> new Conversation());
+            if (conversation.entries.size() >= capacity) {
+                release(conversation.entries.pollFirst()); // Búfer circular: sale el más antiguo
+            }
+            conversation.entries.addLast(entry);
+            usedBytes.addAndGet(entry.estimatedBytes());
+            expire(conversation, entry.timestamp());
+            persist(entry); // Dentro del candado: el diario conserva el orden de la conversación
+        } finally {
+            stripe.lock.unlock();
+        }
+        if (usedBytes.get() > maxBytes) {
+            evictUntilUnderCap();
+        }
+        return entry;
+    }
+
+    /**
+     * Mensajes guardados de la conversación entre dos usuarios, del más antiguo al más reciente.
+     *
+     * @return Una copia; nunca {@code null}.
+     */
+    public List<Entry> history(String a, String b) {
+        String key = conversationKey(a, b);
+        Stripe stripe = stripeFor(key);
+        lockWait.lock(stripe.lock);
+        try {
+            Conversation conversation = stripe.conversations.get(key);
+            if (conversation == null) {
+                conversation = load(a, b);
+                if (conversation == null) {
+                    return new ArrayList<>();
+                }
+                stripe.conversations.put(key, conversation);
+            }
+            expire(conversation, System.currentTimeMillis());
+            return new ArrayList<>(conversation.entries);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    /**
+     * Página de la conversación entre dos usuarios a partir de un cursor.
+     * Se sirve de memoria cuando la conversación en memoria cubre el rango pedido y,
+     * si no, del diario en disco.
+     *
+     * @param beforeId Mensajes con id menor que este (0 = los más recientes).
+     * @param afterId Mensajes con id mayor que este (0 = sin cursor hacia delante).
+     * @param limit Tamaño máximo de la página.
+     * @return La página, nunca {@code null}.
+     */
+    public Page page(String a, String b, long beforeId, long afterId, int limit) {
+        List<Entry> cached = history(a, b); // Sufijo más reciente de la conversación
+        try {
+            if (afterId > 0) {
+                if (journal != null && (cached.isEmpty() || cached.get(0).id() > afterId)) {
+                    return journal.readAfter(a, b, afterId, limit); // Puede faltar un tramo en memoria
+                }
+                int from = 0;
+                while (from < cached.size() && cached.get(from).id() <= afterId) {
+                    from++;
+                }
+                int end = Math.min(cached.size(), from + limit);
+                return new Page(new ArrayList<>(cached.subList(from, end)), end < cached.size());
+            }
+            long before = beforeId > 0 ? beforeId : Long.MAX_VALUE;
+            int end = cached.size();
+            while (end > 0 && cached.get(end - 1).id() >= before) {
+                end--;
+            }
+            int from = Math.max(0, end - limit);
+            if (end - from < limit && journal != null) {
+                return journal.readBefore(a, b, before, limit); // La memoria no tiene suficientes
+            }
+            boolean hasMore = from > 0;
+            if (!hasMore && journal != null && from < end) {
+                hasMore = !journal.readBefore(a, b, cached.get(from).id(), 1).entries().isEmpty();
+            }
+            return new Page(new ArrayList<>(cached.subList(from, end)), hasMore);
+        } catch (IOException e) {
+            Log.error("Error al leer el historial en disco", "error", e.getMessage());
+            return new Page(new ArrayList<>(), false);
+        }
+    }
+
+    /** Memoria aproximada ocupada por el historial. */
+    public long usedBytes() {
+        return usedBytes.get();
+    }
+
+    private void persist(Entry entry) {
+        if (journal == null) {
+            return;
+        }
+        try {
+            journal.append(entry);
+        } catch (IOException e) {
+            Log.error("Error al guardar el mensaje en disco", "error", e.getMessage());
+        }
+    }
+
+    // Recupera del diario los últimos mensajes de una conversación que no está en memoria
+    private Conversation load(String a, String b) {
+        if (journal == null) {
+            return null;
+        }
+        try {
+            List<Entry> stored = journal.readLast(a, b, capacity);
+            if (stored.isEmpty()) {
+                return null;
+            }
+            Conversation conversation = new Conversation();
+            for (Entry entry : stored) {
+                conversation.entries.addLast(entry);
+                usedBytes.addAndGet(entry.estimatedBytes());
+            }
+            return conversation;
+        } catch (IOException e) {
+            Log.error("Error al leer el historial en disco", "error", e.getMessage());
+            return null;
+        }
+    }
+
+    private Stripe stripeFor(String key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16); // Mezcla los bits altos para repartir mejor
+        return stripes[h & (stripes.length - 1)];
+    }
+
+    // Descarta los mensajes caducados del principio de la conversación (llamar con el candado)
+    private void expire(Conversation conversation, long now) {
+        if (maxAgeMillis <= 0) {
+            return;
+        }
+        Entry oldest;
+        while ((oldest = conversation.entries.peekFirst()) != null && now - oldest.timestamp() > maxAgeMillis) {
+            release(conversation.entries.pollFirst());
+        }
+    }
+
+    private void release(Entry entry) {
+        if (entry != null) {
+            usedBytes.addAndGet(-entry.estimatedBytes());
+        }
+    }
+
+    // Recorre las franjas por turnos quitando el mensaje más antiguo de la conversación menos usada
+    private void evictUntilUnderCap() {
+        int idle = 0;
+        while (usedBytes.get() > maxBytes && idle < stripes.length) {
+            Stripe stripe = stripes[evictCursor.getAndIncrement() & (stripes.length - 1)];
+            if (!stripe.lock.tryLock()) {
+                idle++; // Otro hilo está usando la franja; se prueba con la siguiente
+                continue;
+            }
+            try {
+                Iterator<Map.Entry<String, Conversation>> it = stripe.conversations.entrySet().iterator();
+                if (!it.hasNext()) {
+                    idle++;
+                    continue;
+                }
+                idle = 0;
+                Conversation eldest = it.next().getValue();
+                release(eldest.entries.pollFirst());
+                if (eldest.entries.isEmpty()) {
+                    it.remove();
+                }
+            } finally {
+                stripe.lock.unlock();
+            }
+        }
+    }
+}
@@ -0,0 +1,114 @@
+package com.mycompany.jpsocket.server;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Histograma de latencias en nanosegundos con cubos logarítmico-lineales, como HdrHistogram:
+ * cada potencia de dos se divide en 64 cubos, así que cualquier percentil tiene un error menor
+ * del 1,6 % con memoria fija (unos 30 KB) desde 1 ns hasta horas. Se puede registrar desde
+ * varios hilos a la vez sin candados.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BITS = 6; // 64 cubos por potencia de dos
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int LINEAR = 2 * SUB_COUNT; // Valores exactos por debajo de 128 ns
+    private static final int BUCKETS = LINEAR + (64 - SUB_BITS - 1) * SUB_COUNT;
+
+    private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+    /** Registra una latencia; los valores negativos cuentan como 0. */
+    public void record(long nanos) {
+        long value = Math.max(0, nanos);
+        counts.incrementAndGet(index(value));
+        total.increment();
+        sum.add(value);
+        max.accumulate(value);
+    }
+
+    /** Suma a este histograma los valores de {@code other}. */
+    public void add(LatencyHistogram other) {
+        for (int i = 0; i < BUCKETS; i++) {
+            long count = other.counts.get(i);
+            if (count != 0) {
+                counts.addAndGet(i, count);
+            }
+        }
+        total.add(other.total.sum());
+        sum.add(other.sum.sum());
+        max.accumulate(other.max.get());
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKETS; i++) {
+            counts.set(i, 0);
+        }
+        total.reset();
+        sum.reset();
+        max.reset();
+    }
+
+    public long count() {
+        return total.sum();
+    }
+
+    public long max() {
+        return max.get();
+    }
+
+    /** Suma de todos los valores registrados. */
+    public long sum() {
+        return sum.sum();
+    }
+
+    public double mean() {
+        long count = total.sum();
+        return count == 0 ? 0 : (double) sum.sum() / count;
+    }
+
+    /**
+     * Valor por debajo del cual queda la fracción {@code quantile} de las muestras
+     * (el extremo superior de su cubo, nunca por encima del máximo).
+     *
+     * @param quantile Entre 0 y 1, por ejemplo 0.999.
+     */
+    public long percentile(double quantile) {
+        long count = total.sum();
+        if (count == 0) {
+            return 0;
+        }
+        long rank = Math.max(1, (long) Math.ceil(quantile * count));
+        long seen = 0;
+        for (int i = 0; i < BUCKETS; i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestInBucket(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    // Cubo de un valor: exacto por debajo de LINEAR, y luego 64 cubos por potencia de dos
+    private static int index(long value) {
+        if (value < LINEAR) {
+            return (int) value;
+        }
+        int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BITS; // >= 1
+        int sub = (int) (value >>> shift) - SUB_COUNT; // 0..63
+        return LINEAR + (shift - 1) * SUB_COUNT + sub;
+    }
+
+    private static long highestInBucket(int index) {
+        if (index < LINEAR) {
+            return index;
+        }
+        int shift = (index - LINEAR) / SUB_COUNT + 1;
+        long sub = (index - LINEAR) % SUB_COUNT + SUB_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
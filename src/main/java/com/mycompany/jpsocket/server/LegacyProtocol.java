@@ -0,0 +1,92 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Protocolo original de cadenas {@code writeUTF} ({@code USERLIST:}, {@code NAME:},
+ * {@code HISTORY_PAGE:}, {@code FILE}...). Se mantiene para los clientes antiguos.
+ */
+public final class LegacyProtocol implements ServerProtocol {
+
+    public static final LegacyProtocol INSTANCE = new LegacyProtocol();
+
+    private static final int MAX_UTF_BYTES = 0xFFFF;
+
+    private LegacyProtocol() {
+    }
+
+    @Override
+    public void writeText(DataOutputStream out, HistoryStore.Entry entry, String viewer) throws IOException {
+        out.writeUTF(fit(entry.render(viewer)));
+    }
+
+    @Override
+    public byte[] encodeRoomText(RoomMessage message) throws IOException {
+        return message.encoded(this, out -> out.writeUTF(fit(message.render())));
+    }
+
+    @Override
+    public void writeNotice(DataOutputStream out, String text) throws IOException {
+        out.writeUTF(fit(text));
+    }
+
+    @Override
+    public void writeUserList(DataOutputStream out, Presence.Snapshot snapshot, String viewer) throws IOException {
+        StringBuilder list = new StringBuilder("USERLIST:");
+        for (String name : snapshot.names()) {
+            if (!name.equals(viewer)) {
+                if (list.length() > "USERLIST:".length()) {
+                    list.append(',');
+                }
+                list.append(name);
+            }
+        }
+        out.writeUTF(fit(list.toString()));
+    }
+
+    @Override
+    public void writeName(DataOutputStream out, String name, int credit) throws IOException {
+        out.writeUTF("NAME:" + name);
+    }
+
+    @Override
+    public void writeHistoryPage(DataOutputStream out, HistoryStore.Page page, String viewer, boolean forward) throws IOException {
+        out.writeUTF(HistoryPaging.encode(page, viewer, forward));
+    }
+
+    @Override
+    public void writeFileHeader(DataOutputStream out, long transferId, String fileName, String sender, String receiver, long size) throws IOException {
+        out.writeUTF("FILE");
+        out.writeUTF(fileName);
+        out.writeUTF(sender);
+        out.writeLong(size);
+    }
+
+    @Override
+    public void writeFileChunkHeader(DataOutputStream out, long transferId, long offset, int crc, int length) {
+        // Los bytes van seguidos, sin cabecera
+    }
+
+    @Override
+    public void writeFileAck(DataOutputStream out, long transferId, long offset) {
+        // El protocolo antiguo no confirma ni reanuda subidas
+    }
+
+    @Override
+    public void writeFileEnd(DataOutputStream out, long transferId) {
+        // El tamaño enviado en la cabecera marca el final
+    }
+
+    /** Recorta los textos que no caben en una trama {@code writeUTF} (los del protocolo v2 pueden ser mayores). */
+    static String fit(String text) {
+        if (text.length() * 3 <= MAX_UTF_BYTES || ModifiedUtf8.encodedLength(text) <= MAX_UTF_BYTES) {
+            return text;
+        }
+        int end = text.length();
+        while (ModifiedUtf8.encodedLength(text.substring(0, end)) > MAX_UTF_BYTES - 3) {
+            end = end * 9 / 10; // Se reduce en pasos del 10% para no recorrer carácter a carácter
+        }
+        return text.substring(0, end) + "…";
+    }
+}
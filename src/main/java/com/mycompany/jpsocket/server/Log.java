@@ -0,0 +1,380 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+import com.mycompany.jpsocket.ServerConfig;
+
+/**
+ * Registro del servidor con niveles y campos estructurados ({@code clave=valor} o JSON).
+ * <p>
+ * Quien registra un evento no escribe en la consola ni construye el texto: solo guarda el
+ * mensaje y las referencias a sus campos en un buffer circular de casillas reservadas al
+ * arrancar, y un único hilo ({@code log-appender}) les da formato y los escribe por lotes.
+ * Si el buffer está lleno el evento se descarta y se cuenta ({@link #dropped()}); los hilos
+ * de los clientes nunca esperan por la consola. Los valores de los campos se convierten a
+ * texto en ese hilo, así que deben ser inmutables (textos, números, registros de estadísticas).
+ * <p>
+ * Se configura al cargar la clase con {@code log.level} (DEBUG, INFO, WARN, ERROR),
+ * {@code log.format} ({@code text} o {@code json}), {@code log.buffer} (eventos, 8192 por
+ * defecto) y {@code log.message.sample}: los eventos de cada mensaje de chat solo se registran
+ * uno de cada tantos (100 por defecto; 1 los registra todos y 0 ninguno), ver {@link #sampleMessage()}.
+ */
+public final class Log {
+
+    public enum Level {
+        DEBUG, INFO, WARN, ERROR
+    }
+
+    // Casilla del buffer; sequence indica de quién es el turno (ver publish y drain)
+    private static final class Slot {
+        volatile long sequence;
+        Level level;
+        long time;
+        String thread;
+        String message;
+        String key1;
+        Object value1;
+        String key2;
+        Object value2;
+        String key3;
+        Object value3;
+    }
+
+    private static final int BATCH = 256;
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS", Locale.ROOT)
+            .withZone(ZoneId.systemDefault());
+
+    private static final Level threshold;
+    private static final boolean json;
+    private static final int messageSample;
+    private static final Slot[] slots;
+    private static final int mask;
+    private static final AtomicLong tail = new AtomicLong(); // Siguiente posición libre para los productores
+    private static final LongAdder dropped = new LongAdder();
+    private static final PrintStream out = System.out;
+    private static final Thread appender;
+    private static volatile boolean closing;
+    private static long head; // Siguiente posición que lee el hilo de escritura (solo él la toca)
+
+    static {
+        ServerConfig config = ServerConfig.get();
+        threshold = Level.valueOf(config.getString("log.level", "INFO").trim().toUpperCase(Locale.ROOT));
+        json = config.getString("log.format", "text").trim().equalsIgnoreCase("json");
+        messageSample = Math.max(0, config.getInt("log.message.sample", 100));
+        int capacity = Integer.highestOneBit(Math.max(2, config.getInt("log.buffer", 8192) - 1)) << 1; // Potencia de 2
+        slots = new Slot[capacity];
+        for (int i = 0; i < capacity; i++) {
+            slots[i] = new Slot();
+            slots[i].sequence = i;
+        }
+        mask = capacity - 1;
+        appender = new Thread(Log::drain, "log-appender");
+        appender.setDaemon(true);
+        appender.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::close, "log-close"));
+    }
+
+    private Log() {
+    }
+
+    public static boolean enabled(Level level) {
+        return level.compareTo(threshold) >= 0;
+    }
+
+    /**
+     * Decide si se registra el evento de un mensaje de chat: cierto para uno de cada
+     * {@code log.message.sample}, y solo si INFO está activo. Se consulta antes de reunir los
+     * campos, para que los mensajes no registrados no cuesten nada:
+     * <pre>{@code if (Log.sampleMessage()) { Log.info("Mensaje recibido", "de", socket.getRemoteSocketAddress()); }}</pre>
+     */
+    public static boolean sampleMessage() {
+        if (messageSample == 0 || !enabled(Level.INFO)) {
+            return false;
+        }
+        return messageSample == 1 || ThreadLocalRandom.current().nextInt(messageSample) == 0;
+    }
+
+    /** Eventos descartados desde el arranque por tener el buffer lleno. */
+    public static long dropped() {
+        return dropped.sum();
+    }
+
+    public static void debug(String message) {
+        publish(Level.DEBUG, message, null, null, null, null, null, null);
+    }
+
+    public static void debug(String message, String key1, Object value1) {
+        publish(Level.DEBUG, message, key1, value1, null, null, null, null);
+    }
+
+    public static void debug(String message, String key1, Object value1, String key2, Object value2) {
+        publish(Level.DEBUG, message, key1, value1, key2, value2, null, null);
+    }
+
+    public static void debug(String message, String key1, Object value1, String key2, Object value2,
+            String key3, Object value3) {
+        publish(Level.DEBUG, message, key1, value1, key2, value2, key3, value3);
+    }
+
+    public static void info(String message) {
+        publish(Level.INFO, message, null, null, null, null, null, null);
+    }
+
+    public static void info(String message, String key1, Object value1) {
+        publish(Level.INFO, message, key1, value1, null, null, null, null);
+    }
+
+    public static void info(String message, String key1, Object value1, String key2, Object value2) {
+        publish(Level.INFO, message, key1, value1, key2, value2, null, null);
+    }
+
+    public static void info(String message, String key1, Object value1, String key2, Object value2,
+            String key3, Object value3) {
+        publish(Level.INFO, message, key1, value1, key2, value2, key3, value3);
+    }
+
+    public static void warn(String message) {
+        publish(Level.WARN, message, null, null, null, null, null, null);
+    }
+
+    public static void warn(String message, String key1, Object value1) {
+        publish(Level.WARN, message, key1, value1, null, null, null, null);
+    }
+
+    public static void warn(String message, String key1, Object value1, String key2, Object value2) {
+        publish(Level.WARN, message, key1, value1, key2, value2, null, null);
+    }
+
+    public static void warn(String message, String key1, Object value1, String key2, Object value2,
+            String key3, Object value3) {
+        publish(Level.WARN, message, key1, value1, key2, value2, key3, value3);
+    }
+
+    public static void error(String message) {
+        publish(Level.ERROR, message, null, null, null, null, null, null);
+    }
+
+    public static void error(String message, String key1, Object value1) {
+        publish(Level.ERROR, message, key1, value1, null, null, null, null);
+    }
+
+    public static void error(String message, String key1, Object value1, String key2, Object value2) {
+        publish(Level.ERROR, message, key1, value1, key2, value2, null, null);
+    }
+
+    public static void error(String message, String key1, Object value1, String key2, Object value2,
+            String key3, Object value3) {
+        publish(Level.ERROR, message, key1, value1, key2, value2, key3, value3);
+    }
+
+    // Reserva una casilla con un CAS sobre tail; la casilla es libre cuando su sequence coincide
+    // con la posición. Al terminar de rellenarla se publica con sequence = posición + 1.
+    private static void publish(Level level, String message, String key1, Object value1,
+            String key2, Object value2, String key3, Object value3) {
+        if (!enabled(level)) {
+            return;
+        }
+        long position;
+        Slot slot;
+        while (true) {
+            position = tail.get();
+            slot = slots[(int) (position & mask)];
+            long diff = slot.sequence - position;
+            if (diff == 0) {
+                if (tail.compareAndSet(position, position + 1)) {
+                    break;
+                }
+            } else if (diff < 0) { // El hilo de escritura aún no ha vaciado esta casilla: buffer lleno
+                dropped.increment();
+                return;
+            }
+            // diff > 0: otro hilo ocupó la posición antes; se reintenta con la siguiente
+        }
+        slot.level = level;
+        slot.time = System.currentTimeMillis();
+        slot.thread = Thread.currentThread().getName();
+        slot.message = message;
+        slot.key1 = key1;
+        slot.value1 = value1;
+        slot.key2 = key2;
+        slot.value2 = value2;
+        slot.key3 = key3;
+        slot.value3 = value3;
+        slot.sequence = position + 1;
+    }
+
+    // Bucle del hilo de escritura: vacía hasta BATCH eventos, los escribe de una vez y, si no
+    // había nada, duerme 1 ms. Los productores no lo despiertan para no pagar esa llamada.
+    private static void drain() {
+        StringBuilder text = new StringBuilder(16 * 1024);
+        Slot notice = new Slot();
+        long reported = 0;
+        while (true) {
+            int count = 0;
+            while (count < BATCH) {
+                Slot slot = slots[(int) (head & mask)];
+                if (slot.sequence != head + 1) {
+                    break;
+                }
+                format(text, slot);
+                slot.thread = null;
+                slot.message = null;
+                slot.value1 = null;
+                slot.value2 = null;
+                slot.value3 = null;
+                slot.sequence = head + slots.length;
+                head++;
+                count++;
+            }
+            long lost = dropped.sum();
+            if (lost > reported) {
+                notice.level = Level.WARN;
+                notice.time = System.currentTimeMillis();
+                notice.thread = "log-appender";
+                notice.message = "Eventos de log descartados por tener el buffer lleno";
+                notice.key1 = "eventos";
+                notice.value1 = lost - reported;
+                format(text, notice);
+                reported = lost;
+            }
+            if (text.length() > 0) {
+                out.print(text);
+                out.flush();
+                if (text.capacity() > 1024 * 1024) {
+                    text = new StringBuilder(16 * 1024); // No retener el buffer de un pico
+                } else {
+                    text.setLength(0);
+                }
+            } else if (count == 0) {
+                if (closing) {
+                    return;
+                }
+                LockSupport.parkNanos(1_000_000);
+            }
+        }
+    }
+
+    // Al cerrar la JVM se escriben los eventos pendientes, esperando como mucho un segundo
+    private static void close() {
+        closing = true;
+        LockSupport.unpark(appender);
+        try {
+            appender.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void format(StringBuilder text, Slot slot) {
+        if (json) {
+            text.append("{\"time\":\"");
+            TIME.formatTo(Instant.ofEpochMilli(slot.time), text);
+            text.append("\",\"level\":\"").append(slot.level).append("\",\"thread\":");
+            jsonString(text, slot.thread);
+            text.append(",\"msg\":");
+            jsonString(text, slot.message);
+            jsonField(text, slot.key1, slot.value1);
+            jsonField(text, slot.key2, slot.value2);
+            jsonField(text, slot.key3, slot.value3);
+            text.append("}\n");
+            return;
+        }
+        TIME.formatTo(Instant.ofEpochMilli(slot.time), text);
+        text.append(' ').append(slot.level);
+        for (int i = slot.level.name().length(); i < 5; i++) {
+            text.append(' ');
+        }
+        text.append(" [").append(slot.thread).append("] ").append(slot.message);
+        textField(text, slot.key1, slot.value1);
+        textField(text, slot.key2, slot.value2);
+        textField(text, slot.key3, slot.value3);
+        text.append('\n');
+    }
+
+    // clave=valor, con comillas si el valor tiene espacios, '=' o comillas
+    private static void textField(StringBuilder text, String key, Object value) {
+        if (key == null) {
+            return;
+        }
+        String string = String.valueOf(value);
+        text.append(' ').append(key).append('=');
+        boolean quote = string.isEmpty();
+        for (int i = 0; i < string.length() && !quote; i++) {
+            char c = string.charAt(i);
+            quote = c == ' ' || c == '=' || c == '"' || c < 0x20;
+        }
+        if (!quote) {
+            text.append(string);
+            return;
+        }
+        text.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                text.append('\\').append(c);
+            } else if (c < 0x20) {
+                text.append(' ');
+            } else {
+                text.append(c);
+            }
+        }
+        text.append('"');
+    }
+
+    private static void jsonField(StringBuilder text, String key, Object value) {
+        if (key == null) {
+            return;
+        }
+        text.append(',');
+        jsonString(text, key);
+        text.append(':');
+        if (value instanceof Number || value instanceof Boolean) {
+            text.append(value);
+        } else {
+            jsonString(text, value == null ? null : value.toString());
+        }
+    }
+
+    private static void jsonString(StringBuilder text, String string) {
+        if (string == null) {
+            text.append("null");
+            return;
+        }
+        text.append('"');
+        for (int i = 0; i < string.length(); i++) {
+            char c = string.charAt(i);
+            switch (c) {
+                case '"':
+                    text.append("\\\"");
+                    break;
+                case '\\':
+                    text.append("\\\\");
+                    break;
+                case '\n':
+                    text.append("\\n");
+                    break;
+                case '\r':
+                    text.append("\\r");
+                    break;
+                case '\t':
+                    text.append("\\t");
+                    break;
+                default:
+                    if (c < 0x20) {
+                        text.append(String.format(Locale.ROOT, "\\u%04x", (int) c));
+                    } else {
+                        text.append(c);
+                    }
+            }
+        }
+        text.append('"');
+    }
+}
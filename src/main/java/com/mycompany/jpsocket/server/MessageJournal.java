@@ -0,0 +1,505 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.zip.CRC32;
+
+/**
+ * Diario persistente de mensajes: ficheros de segmento de solo anexado (los cerrados se leen con
+ * {@link MappedByteBuffer}, el activo con lecturas posicionales) y un índice en memoria de clave de conversación a posiciones
+ * para servir los últimos N mensajes de una pareja sin recorrer los ficheros.
+ * <p>
+ * Cada registro es {@code [int longitud][int crc32][cuerpo]} y el cuerpo contiene id, hora,
+ * emisor, receptor y texto en UTF-8. El {@code fsync} se agrupa en un hilo aparte cada
+ * {@code fsyncMillis} o cuando se acumulan {@code fsyncBatch} registros. Al arrancar se
+ * recorren los segmentos, se trunca un final a medio escribir y se reconstruye el índice.
+ */
+public class MessageJournal implements Closeable {
+
+    private static final int HEADER = 8; // Longitud + CRC
+    private static final int OFFSET_BITS = 40; // Dirección = (segmento << 40) | desplazamiento
+    private static final long OFFSET_MASK = (1L << OFFSET_BITS) - 1;
+
+    private final Path dir;
+    private final long segmentBytes;
+    private final long retentionMillis;
+    private final long maxBytes;
+    private final long fsyncMillis;
+    private final int fsyncBatch;
+
+    private final ReentrantReadWriteLock lock = new ReentrantReadWriteLock();
+    private final TreeMap<Long, Segment> segments = new TreeMap<>(); // Por número de secuencia
+    private final Map<String, AddressList> index = new HashMap<>();
+    private Segment active;
+    private long lastId;
+    private int unsynced; // Registros escritos desde el último fsync (con el candado)
+    private volatile boolean closed;
+    private final Thread flusher;
+
+    /**
+     * Abre (o crea) el diario y reconstruye su índice.
+     *
+     * @param dir Directorio de los segmentos.
+     * @param segmentBytes Tamaño a partir del cual se abre un segmento nuevo.
+     * @param retentionMillis Antigüedad máxima de un segmento cerrado, o 0 para no caducar.
+     * @param maxBytes Tamaño total máximo de los segmentos.
+     * @param fsyncMillis Intervalo máximo entre {@code fsync}.
+     * @param fsyncBatch Registros pendientes que fuerzan un {@code fsync} inmediato.
+     * @throws IOException Si no se puede leer o crear el directorio.
+     */
+    public MessageJournal(Path dir, long segmentBytes, long retentionMillis, long maxBytes,
+                          long fsyncMillis, int fsyncBatch) throws IOException {
+        this.dir = dir;
+        this.segmentBytes = segmentBytes;
+        this.retentionMillis = retentionMillis;
+        this.maxBytes = maxBytes;
+        this.fsyncMillis = fsyncMillis;
+        this.fsyncBatch = fsyncBatch;
+        Files.createDirectories(dir);
+        recover();
+        this.flusher = new Thread(this::flushLoop, "journal-fsync");
+        flusher.setDaemon(true);
+        flusher.start();
+    }
+
+    /** Mayor id de mensaje encontrado en disco (0 si está vacío). */
+    public long lastId() {
+        lock.readLock().lock();
+        try {
+            return lastId;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Anexa un mensaje al segmento activo y lo indexa. No espera al {@code fsync}.
+     *
+     * @param entry Mensaje a guardar.
+     * @throws IOException Si falla la escritura.
+     */
+    public void append(HistoryStore.Entry entry) throws IOException {
+        ByteBuffer record = encode(entry);
+        lock.writeLock().lock();
+        try {
+            if (active.size > 0 && active.size + record.remaining() > segmentBytes) {
+                roll();
+            }
+            long offset = active.size;
+            while (record.hasRemaining()) {
+                active.channel.write(record, active.size + record.position());
+            }
+            active.size += record.limit();
+            active.lastTimestamp = entry.timestamp();
+            lastId = Math.max(lastId, entry.id());
+            index.computeIfAbsent(HistoryStore.conversationKey(entry.sender(), entry.receiver()), k -> new AddressList())
+                    .add(address(active.seq, offset));
+            if (++unsynced >= fsyncBatch) {
+                LockSupport.unpark(flusher); // Lote lleno: fsync sin esperar al intervalo
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    /**
+     * Últimos mensajes de la conversación entre dos usuarios, del más antiguo al más reciente.
+     *
+     * @param a Un usuario.
+     * @param b El otro usuario.
+     * @param limit Número máximo de mensajes.
+     * @return Lista nueva, vacía si no hay mensajes.
+     * @throws IOException Si un segmento no se puede mapear.
+     */
+    public List<HistoryStore.Entry> readLast(String a, String b, int limit) throws IOException {
+        lock.readLock().lock();
+        try {
+            AddressList addresses = index.get(HistoryStore.conversationKey(a, b));
+            if (addresses == null) {
+                return new ArrayList<>();
+            }
+            long[] last = addresses.last(limit);
+            List<HistoryStore.Entry> entries = new ArrayList<>(last.length);
+            for (long address : last) {
+                if (segments.containsKey(address >>> OFFSET_BITS)) {
+                    entries.add(decode(recordAt(address), 0));
+                }
+            }
+            return entries;
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Página de mensajes anteriores a un id, usando búsqueda binaria sobre el índice.
+     *
+     * @param beforeId Solo mensajes con id menor; {@code Long.MAX_VALUE} para los más recientes.
+     * @param limit Número máximo de mensajes.
+     * @return Los mensajes en orden ascendente y si quedan más antiguos.
+     * @throws IOException Si un segmento no se puede mapear.
+     */
+    public HistoryStore.Page readBefore(String a, String b, long beforeId, int limit) throws IOException {
+        lock.readLock().lock();
+        try {
+            AddressList addresses = addressesOf(a, b);
+            int end = lowerBound(addresses, beforeId); // Primer mensaje con id >= beforeId
+            int from = Math.max(0, end - limit);
+            return new HistoryStore.Page(decodeRange(addresses, from, end), from > 0);
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    /**
+     * Página de mensajes posteriores a un id.
+     *
+     * @param afterId Solo mensajes con id mayor.
+     * @param limit Número máximo de mensajes.
+     * @return Los mensajes en orden ascendente y si quedan más recientes.
+     * @throws IOException Si un segmento no se puede mapear.
+     */
+    public HistoryStore.Page readAfter(String a, String b, long afterId, int limit) throws IOException {
+        lock.readLock().lock();
+        try {
+            AddressList addresses = addressesOf(a, b);
+            int from = lowerBound(addresses, afterId + 1);
+            int end = (int) Math.min(addresses.size(), (long) from + limit);
+            return new HistoryStore.Page(decodeRange(addresses, from, end), end < addresses.size());
+        } finally {
+            lock.readLock().unlock();
+        }
+    }
+
+    // Direcciones de una conversación, sin copiarlas (usar con el candado de lectura)
+    private AddressList addressesOf(String a, String b) {
+        AddressList addresses = index.get(HistoryStore.conversationKey(a, b));
+        return addresses == null ? new AddressList() : addresses;
+    }
+
+    // Primer índice cuyo mensaje tiene id >= id; los ids crecen en orden de escritura
+    private int lowerBound(AddressList addresses, long id) throws IOException {
+        int low = 0;
+        int high = addresses.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (idAt(addresses.get(mid)) < id) {
+                low = mid + 1;
+            } else {
+                high = mid;
+            }
+        }
+        return low;
+    }
+
+    private long idAt(long address) throws IOException {
+        return recordAt(address).getLong(HEADER);
+    }
+
+    // Registro completo de una dirección, desde la posición 0 (con el candado de lectura). El
+    // segmento activo se lee del fichero en lugar de volver a mapearlo tras cada escritura
+    private ByteBuffer recordAt(long address) throws IOException {
+        Segment segment = segments.get(address >>> OFFSET_BITS);
+        int offset = (int) (address & OFFSET_MASK);
+        if (segment != active) {
+            ByteBuffer map = segment.view();
+            return map.slice(offset, HEADER + map.getInt(offset));
+        }
+        ByteBuffer header = ByteBuffer.allocate(HEADER);
+        readFully(segment.channel, offset, header);
+        ByteBuffer record = ByteBuffer.allocate(HEADER + header.getInt(0));
+        readFully(segment.channel, offset, record);
+        return record;
+    }
+
+    private static void readFully(FileChannel channel, long position, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, position + buffer.position()) < 0) {
+                throw new IOException("Registro del historial incompleto");
+            }
+        }
+    }
+
+    private List<HistoryStore.Entry> decodeRange(AddressList addresses, int from, int end) throws IOException {
+        List<HistoryStore.Entry> entries = new ArrayList<>(Math.max(0, end - from));
+        for (int i = from; i < end; i++) {
+            entries.add(decode(recordAt(addresses.get(i)), 0));
+        }
+        return entries;
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(flusher);
+        lock.writeLock().lock();
+        try {
+            for (Segment segment : segments.values()) {
+                if (segment == active) {
+                    segment.channel.force(false);
+                }
+                segment.channel.close();
+            }
+        } finally {
+            lock.writeLock().unlock();
+        }
+    }
+
+    // Cierra el segmento activo y abre uno nuevo; aplica la retención (con el candado de escritura)
+    private void roll() throws IOException {
+        active.channel.force(false);
+        unsynced = 0;
+        active = openSegment(active.seq + 1);
+        segments.put(active.seq, active);
+        applyRetention();
+    }
+
+    // Borra los segmentos más antiguos que caducan o exceden el tamaño total y compacta el índice
+    private void applyRetention() throws IOException {
+        long total = 0;
+        for (Segment segment : segments.values()) {
+            total += segment.size;
+        }
+        long now = System.currentTimeMillis();
+        boolean removed = false;
+        while (segments.size() > 1) {
+            Segment oldest = segments.firstEntry().getValue();
+            boolean expired = retentionMillis > 0 && now - oldest.lastTimestamp > retentionMillis;
+            if (!expired && total <= maxBytes) {
+                break;
+            }
+            segments.pollFirstEntry();
+            total -= oldest.size;
+            oldest.channel.close();
+            Files.deleteIfExists(oldest.path);
+            removed = true;
+            Log.info("Segmento de historial eliminado", "segmento", oldest.path.getFileName());
+        }
+        if (removed) {
+            long firstValid = address(segments.firstKey(), 0);
+            Iterator<AddressList> it = index.values().iterator();
+            while (it.hasNext()) {
+                AddressList addresses = it.next();
+                addresses.dropBefore(firstValid);
+                if (addresses.isEmpty()) {
+                    it.remove();
+                }
+            }
+        }
+    }
+
+    // Recorre los segmentos existentes, trunca registros incompletos y reconstruye el índice
+    private void recover() throws IOException {
+        List<Long> seqs = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.log")) {
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                try {
+                    seqs.add(Long.parseLong(name.substring(0, name.length() - 4)));
+                } catch (NumberFormatException ignored) {
+                    // No es un segmento del diario
+                }
+            }
+        }
+        seqs.sort(null);
+        for (Long seq : seqs) {
+            Segment segment = openSegment(seq);
+            segments.put(seq, segment);
+            scan(segment);
+        }
+        if (segments.isEmpty()) {
+            segments.put(0L, openSegment(0));
+        }
+        active = segments.lastEntry().getValue();
+        applyRetention();
+    }
+
+    private void scan(Segment segment) throws IOException {
+        long fileSize = segment.channel.size();
+        segment.size = fileSize;
+        MappedByteBuffer map = segment.channel.map(FileChannel.MapMode.READ_ONLY, 0, fileSize);
+        int position = 0;
+        CRC32 crc = new CRC32();
+        while (position + HEADER <= fileSize) {
+            int length = map.getInt(position);
+            int checksum = map.getInt(position + 4);
+            if (length <= 0 || position + HEADER + (long) length > fileSize) {
+                break; // Registro a medio escribir
+            }
+            ByteBuffer body = map.duplicate().position(position + HEADER).limit(position + HEADER + length);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                break; // Registro dañado
+            }
+            HistoryStore.Entry entry = decode(map, position);
+            index.computeIfAbsent(HistoryStore.conversationKey(entry.sender(), entry.receiver()), k -> new AddressList())
+                    .add(address(segment.seq, position));
+            lastId = Math.max(lastId, entry.id());
+            segment.lastTimestamp = entry.timestamp();
+            position += HEADER + length;
+        }
+        if (position < fileSize) {
+            Log.warn("Historial: se truncan bytes dañados", "bytes", fileSize - position, "segmento", segment.path.getFileName());
+            segment.channel.truncate(position);
+            segment.size = position;
+        }
+    }
+
+    private Segment openSegment(long seq) throws IOException {
+        Path path = dir.resolve(String.format("%010d.log", seq));
+        FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        Segment segment = new Segment(seq, path, channel);
+        segment.size = channel.size();
+        return segment;
+    }
+
+    private void flushLoop() {
+        while (!closed) {
+            LockSupport.parkNanos(TimeUnit.MILLISECONDS.toNanos(fsyncMillis));
+            FileChannel channel;
+            lock.writeLock().lock(); // Solo para leer y reiniciar el contador, el fsync va fuera
+            try {
+                if (unsynced == 0) {
+                    continue;
+                }
+                channel = active.channel;
+                unsynced = 0;
+            } finally {
+                lock.writeLock().unlock();
+            }
+            try {
+                channel.force(false); // Fuera del candado: no frena a los que escriben
+            } catch (ClosedChannelException ignored) {
+                // El segmento se cerró al rotar; roll() ya hizo su fsync
+            } catch (IOException e) {
+                Log.error("Error al sincronizar el historial", "error", e.getMessage());
+            }
+        }
+    }
+
+    private static long address(long seq, long offset) {
+        return (seq << OFFSET_BITS) | offset;
+    }
+
+    private static ByteBuffer encode(HistoryStore.Entry entry) {
+        byte[] sender = entry.sender().getBytes(StandardCharsets.UTF_8);
+        byte[] receiver = entry.receiver().getBytes(StandardCharsets.UTF_8);
+        byte[] text = entry.text().getBytes(StandardCharsets.UTF_8);
+        int length = 8 + 8 + 2 + sender.length + 2 + receiver.length + 4 + text.length;
+        ByteBuffer buffer = ByteBuffer.allocate(HEADER + length);
+        buffer.putInt(length).putInt(0);
+        buffer.putLong(entry.id()).putLong(entry.timestamp());
+        buffer.putShort((short) sender.length).put(sender);
+        buffer.putShort((short) receiver.length).put(receiver);
+        buffer.putInt(text.length).put(text);
+        CRC32 crc = new CRC32();
+        crc.update(buffer.array(), HEADER, length);
+        buffer.putInt(4, (int) crc.getValue());
+        buffer.flip();
+        return buffer;
+    }
+
+    private static HistoryStore.Entry decode(ByteBuffer map, int position) {
+        ByteBuffer in = map.duplicate();
+        in.position(position + HEADER);
+        long id = in.getLong();
+        long timestamp = in.getLong();
+        String sender = readString(in, in.getShort() & 0xFFFF);
+        String receiver = readString(in, in.getShort() & 0xFFFF);
+        String text = readString(in, in.getInt());
+        return new HistoryStore.Entry(id, timestamp, sender, receiver, text);
+    }
+
+    private static String readString(ByteBuffer in, int length) {
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static final class Segment {
+        final long seq;
+        final Path path;
+        final FileChannel channel;
+        long size;
+        long lastTimestamp;
+        private volatile MappedByteBuffer map;
+
+        Segment(long seq, Path path, FileChannel channel) {
+            this.seq = seq;
+            this.path = path;
+            this.channel = channel;
+        }
+
+        // Vista mapeada de todo lo escrito; solo para segmentos cerrados, que ya no crecen
+        ByteBuffer view() throws IOException {
+            MappedByteBuffer current = map;
+            if (current == null || current.capacity() < size) {
+                current = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+                map = current;
+            }
+            return current;
+        }
+    }
+
+    /** Lista creciente de direcciones de una conversación, en orden de escritura. */
+    private static final class AddressList {
+        private long[] values = new long[8];
+        private int start;
+        private int end;
+
+        void add(long address) {
+            if (end == values.length) {
+                int live = end - start;
+                long[] grown = live * 2 > values.length ? new long[values.length * 2] : values;
+                System.arraycopy(values, start, grown, 0, live); // Crece o compacta el hueco del principio
+                values = grown;
+                start = 0;
+                end = live;
+            }
+            values[end++] = address;
+        }
+
+        int size() {
+            return end - start;
+        }
+
+        long get(int i) {
+            return values[start + i];
+        }
+
+        long[] last(int limit) {
+            int from = (int) Math.max(start, (long) end - limit);
+            return Arrays.copyOfRange(values, from, end);
+        }
+
+        void dropBefore(long address) {
+            while (start < end && values[start] < address) {
+                start++;
+            }
+        }
+
+        boolean isEmpty() {
+            return start == end;
+        }
+    }
+}
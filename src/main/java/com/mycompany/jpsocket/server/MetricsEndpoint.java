@@ -0,0 +1,81 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.Executors;
+
+import com.mycompany.jpsocket.ServerConfig;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Servidor HTTP mínimo que publica {@link ServerMetrics} en {@code /metrics} con el formato de
+ * texto de Prometheus. Escucha solo en {@code metrics.host} (127.0.0.1 por defecto) y atiende
+ * las peticiones en un único hilo, así que no compite con los clientes del chat.
+ */
+public final class MetricsEndpoint {
+
+    private static final String CONTENT_TYPE = "text/plain; version=0.0.4; charset=utf-8";
+
+    private final HttpServer server;
+
+    private MetricsEndpoint(HttpServer server) {
+        this.server = server;
+    }
+
+    /**
+     * Registra las métricas en JMX (salvo con {@code metrics.jmx=false}) y arranca el
+     * endpoint si {@code metrics.port} es mayor que 0.
+     *
+     * @return El endpoint en marcha, o {@code null} si no se ha pedido o no se pudo abrir.
+     */
+    public static MetricsEndpoint start(ServerConfig config) {
+        ServerMetrics metrics = ServerMetrics.shared();
+        if (config.getBoolean("metrics.jmx", true)) {
+            metrics.registerMBean();
+        }
+        int port = config.getInt("metrics.port", 0);
+        if (port <= 0) {
+            return null;
+        }
+        String host = config.getString("metrics.host", "127.0.0.1");
+        try {
+            HttpServer server = HttpServer.create(new InetSocketAddress(host, port), 0);
+            server.createContext("/metrics", exchange -> respond(exchange, metrics));
+            server.setExecutor(Executors.newSingleThreadExecutor(task -> {
+                Thread thread = new Thread(task, "metrics-http");
+                thread.setDaemon(true);
+                return thread;
+            }));
+            server.start();
+            Log.info("Métricas publicadas", "url", "http://" + host + ":" + port + "/metrics");
+            return new MetricsEndpoint(server);
+        } catch (IOException e) {
+            Log.error("No se pudo abrir el puerto de métricas", "puerto", port, "error", e.getMessage());
+            return null;
+        }
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    private static void respond(HttpExchange exchange, ServerMetrics metrics) throws IOException {
+        try (exchange) {
+            if (!exchange.getRequestMethod().equals("GET")) {
+                exchange.sendResponseHeaders(405, -1);
+                return;
+            }
+            StringBuilder text = new StringBuilder(4096);
+            metrics.writePrometheus(text);
+            byte[] body = text.toString().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", CONTENT_TYPE);
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.UTFDataFormatException;
+import java.nio.ByteBuffer;
+
+/**
+ * Codificación compatible con {@code DataOutputStream.writeUTF}: dos bytes de longitud
+ * seguidos de UTF-8 modificado. Permite leer y escribir las tramas del protocolo
+ * directamente sobre {@link ByteBuffer} sin pasar por streams bloqueantes.
+ */
+public final class ModifiedUtf8 {
+
+    private ModifiedUtf8() {
+    }
+
+    /**
+     * Codifica un texto como lo haría {@code writeUTF}, incluyendo el prefijo de longitud.
+     *
+     * @param text Texto a codificar.
+     * @return Buffer listo para escribir (posición 0, límite al final).
+     * @throws UTFDataFormatException Si el texto codificado supera los 65535 bytes.
+     */
+    public static ByteBuffer encode(String text) throws UTFDataFormatException {
+        int length = encodedLength(text);
+        if (length > 0xFFFF) {
+            throw new UTFDataFormatException("Texto demasiado largo: " + length + " bytes");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(2 + length);
+        buffer.putShort((short) length);
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                buffer.put((byte) c);
+            } else if (c <= 0x07FF) {
+                buffer.put((byte) (0xC0 | ((c >> 6) & 0x1F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            } else {
+                buffer.put((byte) (0xE0 | ((c >> 12) & 0x0F)));
+                buffer.put((byte) (0x80 | ((c >> 6) & 0x3F)));
+                buffer.put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+        buffer.flip();
+        return buffer;
+    }
+
+    /** Número de bytes que ocupa el texto en UTF-8 modificado, sin el prefijo. */
+    public static int encodedLength(String text) {
+        int length = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c >= 0x0001 && c <= 0x007F) {
+                length++;
+            } else if (c <= 0x07FF) {
+                length += 2;
+            } else {
+                length += 3;
+            }
+        }
+        return length;
+    }
+
+    /**
+     * Intenta leer una cadena completa del buffer (en modo lectura).
+     * Si todavía no han llegado todos los bytes, no consume nada y devuelve {@code null}.
+     *
+     * @param buffer Buffer con los datos recibidos.
+     * @return La cadena decodificada o {@code null} si la trama está incompleta.
+     * @throws IOException Si los bytes no son UTF-8 modificado válido.
+     */
+    public static String tryDecode(ByteBuffer buffer) throws IOException {
+        if (buffer.remaining() < 2) {
+            return null;
+        }
+        int start = buffer.position();
+        int length = buffer.getShort(start) & 0xFFFF;
+        if (buffer.remaining() < 2 + length) {
+            return null;
+        }
+        // Camino rápido: la gran mayoría de los mensajes son ASCII
+        char[] chars = new char[length];
+        for (int i = 0; i < length; i++) {
+            byte b = buffer.get(start + 2 + i);
+            if (b <= 0) { // Byte multibyte o cero: se delega en el decodificador completo
+                return decodeSlow(buffer, start, length);
+            }
+            chars[i] = (char) b;
+        }
+        buffer.position(start + 2 + length);
+        return new String(chars);
+    }
+
+    private static String decodeSlow(ByteBuffer buffer, int start, int length) throws IOException {
+        byte[] bytes = new byte[2 + length];
+        buffer.get(start, bytes);
+        buffer.position(start + 2 + length);
+        return DataInputStream.readUTF(new DataInputStream(new ByteArrayInputStream(bytes)));
+    }
+}
@@ -0,0 +1,140 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Collection;
+import java.util.List;
+
+import com.mycompany.jpsocket.ServerConfig;
+
+/**
+ * Servidor de chat no bloqueante. Un hilo acepta conexiones con un {@link ServerSocketChannel}
+ * y las reparte entre un grupo fijo de {@link NioEventLoop}, de modo que el número de hilos
+ * no crece con el número de clientes conectados. Habla el mismo protocolo que
+ * {@link com.mycompany.jpsocket.client.ClientHandler}. Con {@code cluster.port} forma parte de
+ * un {@link Cluster} y recibe de los demás nodos los mensajes para sus clientes.
+ */
+public class NioChatServer implements Cluster.Local {
+
+    private final ServerConfig config;
+    private final SessionRegistry<NioSession> sessions = new SessionRegistry<>(); // Clientes conectados por nombre
+    private final HistoryStore history = HistoryStore.shared(); // Historial compartido con el modo de hilos
+    private final Presence presence = new Presence(this::publishPresence); // Altas y bajas agrupadas
+    private final Rooms<NioSession> rooms = new Rooms<>(); // Salas y sus miembros
+    private Cluster cluster = Cluster.disabled(); // Otros nodos, si se arranca en modo clúster
+    private NioEventLoop[] loops;
+
+    public NioChatServer(ServerConfig config) {
+        this.config = config;
+    }
+
+    /**
+     * Arranca los bucles de eventos y acepta conexiones en el hilo actual.
+     *
+     * @throws IOException Si no se puede abrir el puerto.
+     */
+    public void start() throws IOException {
+        cluster = Cluster.start(config, presence, this);
+        loops = new NioEventLoop[Math.max(1, config.getEventLoops())];
+        for (int i = 0; i < loops.length; i++) {
+            loops[i] = new NioEventLoop(this, config.getFlushPolicy());
+            Thread thread = new Thread(loops[i], "nio-loop-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        try (ServerSocketChannel serverChannel = ServerSocketChannel.open();
+             Selector acceptSelector = Selector.open()) {
+            serverChannel.bind(new InetSocketAddress(config.getPort()), 1024);
+            serverChannel.configureBlocking(false);
+            serverChannel.register(acceptSelector, SelectionKey.OP_ACCEPT);
+            Log.info("Servidor NIO iniciado", "puerto", config.getPort(), "hilos", loops.length);
+
+            int next = 0;
+            while (true) { // Bucle infinito para aceptar conexiones de clientes
+                acceptSelector.select();
+                acceptSelector.selectedKeys().clear();
+                SocketChannel channel;
+                while ((channel = serverChannel.accept()) != null) {
+                    loops[next].register(channel); // Reparto round-robin entre los bucles
+                    next = (next + 1) % loops.length;
+                }
+            }
+        }
+    }
+
+    /** Registra la sesión y devuelve el nombre asignado (con sufijo si estaba repetido). */
+    String addSession(String requestedName, NioSession session) {
+        String name = sessions.register(requestedName, session, cluster::isRemote);
+        presence.join(name);
+        cluster.joined(name);
+        return name;
+    }
+
+    void removeSession(NioSession session) {
+        rooms.leaveAll(session);
+        if (sessions.remove(session.getClientName(), session)) {
+            presence.leave(session.getClientName());
+            cluster.left(session.getClientName());
+        }
+    }
+
+    /** Sesión conectada con ese nombre, o {@code null}. */
+    NioSession lookup(String name) {
+        return sessions.lookup(name);
+    }
+
+    /** Clientes conectados; la vista se recorre sin candados. */
+    Collection<NioSession> snapshot() {
+        return sessions.sessions();
+    }
+
+    HistoryStore history() {
+        return history;
+    }
+
+    Presence presence() {
+        return presence;
+    }
+
+    Rooms<NioSession> rooms() {
+        return rooms;
+    }
+
+    Cluster cluster() {
+        return cluster;
+    }
+
+    @Override
+    public boolean isConnected(String name) {
+        return sessions.lookup(name) != null;
+    }
+
+    @Override
+    public void deliverText(HistoryStore.Entry entry) {
+        NioSession target = sessions.lookup(entry.receiver());
+        if (target != null) {
+            String viewer = target.getClientName();
+            target.send((out, p) -> p.writeText(out, entry, viewer));
+            ServerMetrics.shared().messagesDelivered(1);
+        }
+    }
+
+    @Override
+    public void deliverFile(AttachmentStore.Blob blob, String sender, String fileName, String receiver) {
+        NioSession target = sessions.lookup(receiver);
+        NioFileRelay.sendStored(blob, target == null ? List.of() : List.of(target), sender, fileName, receiver);
+    }
+
+    // Envía a todos los clientes el mismo cambio; cada protocolo lo codifica a su manera
+    private void publishPresence(Presence.Delta delta) {
+        for (NioSession session : snapshot()) {
+            String viewer = session.getClientName();
+            session.send((out, p) -> p.writePresence(out, delta, viewer));
+        }
+    }
+}
@@ -0,0 +1,175 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.PriorityQueue;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hilo de bucle de eventos: atiende con un único {@link Selector} la lectura y escritura
+ * de muchas conexiones. Todo el estado de una {@link NioSession} se modifica solo desde
+ * el hilo de su bucle; otros hilos le encargan trabajo mediante {@link #execute(Runnable)}.
+ * <p>
+ * Las sesiones con mensajes nuevos se vacían al final de cada vuelta (o tras el retardo de
+ * la {@link FlushPolicy}), de modo que todo lo que recibe un cliente en una vuelta sale en
+ * una sola escritura agrupada. Las tareas de {@link #schedule(Runnable, long)} se ejecutan en
+ * la primera vuelta tras su plazo.
+ */
+public class NioEventLoop implements Runnable {
+
+    private final Selector selector;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>(); // Tareas enviadas desde otros hilos
+    private final NioChatServer server;
+    private final FlushPolicy flushPolicy;
+    private final ArrayDeque<NioSession> dirty = new ArrayDeque<>(); // Sesiones por vaciar, solo desde el bucle
+    private long flushDeadline; // nanoTime a partir del cual se vacían las sesiones de dirty
+    private final PriorityQueue<Timer> timers = new PriorityQueue<>(Comparator.comparingLong(Timer::deadline)); // Solo desde el bucle
+    private volatile Thread thread;
+
+    public NioEventLoop(NioChatServer server, FlushPolicy flushPolicy) throws IOException {
+        this.server = server;
+        this.flushPolicy = flushPolicy;
+        this.selector = Selector.open();
+    }
+
+    FlushPolicy flushPolicy() {
+        return flushPolicy;
+    }
+
+    /** Vacía la sesión cuando toque según la política; solo desde el bucle. */
+    void scheduleFlush(NioSession session) {
+        if (dirty.isEmpty()) {
+            long delay = flushPolicy.mode() == FlushPolicy.Mode.MAX_DELAY ? flushPolicy.maxDelayNanos() : 0;
+            flushDeadline = System.nanoTime() + delay;
+        }
+        dirty.add(session);
+    }
+
+    private record Timer(long deadline, Runnable task) {
+    }
+
+    /** Ejecuta la tarea en el bucle dentro de {@code millis}; solo desde el bucle. */
+    void schedule(Runnable task, long millis) {
+        timers.add(new Timer(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(millis), task));
+    }
+
+    /**
+     * Registra una conexión recién aceptada en este bucle.
+     *
+     * @param channel Canal del cliente, todavía en modo bloqueante.
+     */
+    public void register(SocketChannel channel) {
+        execute(() -> {
+            try {
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ);
+                NioSession session = new NioSession(server, this, channel, key);
+                key.attach(session);
+            } catch (IOException e) {
+                Log.error("Error al registrar cliente", "error", e.getMessage());
+                closeQuietly(channel);
+            }
+        });
+    }
+
+    /** Ejecuta la tarea en el hilo del bucle (inmediatamente si ya estamos en él). */
+    public void execute(Runnable task) {
+        if (Thread.currentThread() == thread) {
+            task.run();
+            return;
+        }
+        tasks.add(task);
+        selector.wakeup(); // Despierta el select() para que procese la tarea
+    }
+
+    @Override
+    public void run() {
+        thread = Thread.currentThread();
+        while (!Thread.currentThread().isInterrupted()) {
+            try {
+                if (dirty.isEmpty() && timers.isEmpty()) {
+                    selector.select();
+                } else {
+                    long wait = nextDeadline() - System.nanoTime();
+                    if (wait > 0) {
+                        selector.select(Math.max(1, TimeUnit.NANOSECONDS.toMillis(wait)));
+                    } else {
+                        selector.selectNow();
+                    }
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    NioSession session = (NioSession) key.attachment();
+                    if (session == null || !key.isValid()) {
+                        continue;
+                    }
+                    try {
+                        if (key.isReadable()) {
+                            session.onReadable();
+                        }
+                        if (key.isValid() && key.isWritable()) {
+                            session.onWritable();
+                        }
+                    } catch (IOException | RuntimeException e) { // Un error en un cliente no debe tumbar el bucle
+                        session.close();
+                    }
+                }
+                Runnable task;
+                while ((task = tasks.poll()) != null) {
+                    runSafely(task);
+                }
+                long now = System.nanoTime();
+                while (!timers.isEmpty() && now - timers.peek().deadline() >= 0) {
+                    runSafely(timers.poll().task());
+                }
+                if (!dirty.isEmpty() && System.nanoTime() - flushDeadline >= 0) {
+                    NioSession session;
+                    while ((session = dirty.poll()) != null) {
+                        try {
+                            session.flush();
+                        } catch (RuntimeException e) {
+                            session.close();
+                        }
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                Log.error("Error en el bucle de eventos", "error", e.toString());
+            }
+        }
+    }
+
+    // Una tarea o temporizador que falla no debe tumbar el bucle ni saltarse las siguientes
+    private static void runSafely(Runnable task) {
+        try {
+            task.run();
+        } catch (RuntimeException e) {
+            Log.error("Error en una tarea del bucle de eventos", "error", e.toString());
+        }
+    }
+
+    // El plazo más próximo entre el vaciado de dirty y los temporizadores
+    private long nextDeadline() {
+        if (timers.isEmpty()) {
+            return flushDeadline;
+        }
+        long timer = timers.peek().deadline();
+        return dirty.isEmpty() || timer - flushDeadline < 0 ? timer : flushDeadline;
+    }
+
+    static void closeQuietly(SocketChannel channel) {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+}
@@ -0,0 +1,155 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mycompany.jpsocket.ServerConfig;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+
+/**
+ * Archivo que el servidor NIO reenvía mientras lo recibe. Los receptores v2 reciben cada trozo
+ * en cuanto llega, compartiendo el mismo array (o la misma copia comprimida, ver
+ * {@link ChunkDeflater}); a la vez se guarda en el {@link AttachmentStore},
+ * del que lo reciben al terminar los antiguos, que necesitan el archivo completo. Si quien sube se
+ * reconecta y reanuda la subida, {@link #attach(NioSession)} lo cambia por la nueva sesión.
+ * <p>
+ * Si los receptores acumulan más de {@code relay.window.bytes} sin enviar, se deja de leer del
+ * emisor hasta que bajen de la mitad; lo mismo si se supera el límite de todo el servidor
+ * ({@link FlowControl#overloaded()}). Se usa solo desde el bucle del emisor salvo
+ * {@link #released(long)}, que llaman los bucles de los receptores.
+ */
+final class NioFileRelay implements FileTransfer.Sink {
+
+
+    private volatile NioSession uploader;
+    private final String sender;
+    private final String fileName;
+    private final String receiver;
+    private final List<NioSession> streamed = new ArrayList<>();
+    private final List<Long> transferIds = new ArrayList<>();
+    private final List<NioSession> spooled = new ArrayList<>();
+    private final AttachmentStore.Writer stored;
+    private final ChunkDeflater deflater;
+    private final long window;
+    private final AtomicLong inFlight = new AtomicLong(); // Bytes encolados en receptores y aún no enviados
+    private long received;
+
+    NioFileRelay(NioSession uploader, List<NioSession> recipients, String fileName, long size, String receiver) throws IOException {
+        this.uploader = uploader;
+        this.fileName = fileName;
+        this.receiver = receiver;
+        this.sender = uploader.getClientName();
+        this.window = Math.max(FrameCodec.FILE_CHUNK_SIZE,
+                ServerConfig.get().getInt("relay.window.bytes", 1024 * 1024));
+        for (NioSession session : recipients) {
+            if (session.protocol().interleavesFiles()) {
+                long transferId = NioSession.TRANSFER_IDS.incrementAndGet();
+                streamed.add(session);
+                transferIds.add(transferId);
+                session.send((out, p) -> p.writeFileHeader(out, transferId, fileName, sender, receiver, size));
+            } else {
+                spooled.add(session);
+            }
+        }
+        List<ServerProtocol> protocols = new ArrayList<>();
+        for (NioSession session : streamed) {
+            protocols.add(session.protocol());
+        }
+        deflater = new ChunkDeflater(protocols);
+        stored = AttachmentStore.shared().newWriter();
+    }
+
+    /** Quien sube se reconectó y sigue la misma subida desde otra sesión. */
+    void attach(NioSession session) {
+        uploader = session;
+    }
+
+    /** Reenvía un trozo; los receptores comparten {@code data}, que no debe reutilizarse. */
+    @Override
+    public void chunk(ByteBuffer data, int crc) throws IOException {
+        int length = data.remaining();
+        long offset = received;
+        received += length;
+        stored.write(data);
+        if (!streamed.isEmpty()) {
+            NioSession uploader = this.uploader;
+            byte[] deflated = deflater.deflate(offset, crc, data); // Una vez para todos los que comprimen
+            for (int i = 0; i < streamed.size(); i++) {
+                long transferId = transferIds.get(i);
+                inFlight.addAndGet(length);
+                FlowControl.inflight(length);
+                streamed.get(i).sendChunk(transferId, offset, crc, data.duplicate(), deflated, this);
+            }
+            if (inFlight.get() > window) {
+                uploader.pauseReading(NioSession.PAUSE_RELAY); // Los receptores no dan abasto: TCP frena al emisor
+                if (inFlight.get() < window / 2) {
+                    uploader.resumeReading(NioSession.PAUSE_RELAY); // Se vaciaron mientras se pausaba
+                }
+            }
+            if (FlowControl.overloaded()) {
+                uploader.pauseReading(NioSession.PAUSE_ADMISSION);
+                FlowControl.whenAdmitted(() -> uploader.resumeReading(NioSession.PAUSE_ADMISSION));
+            }
+        }
+    }
+
+    /** Un receptor envió (o descartó al cerrarse) un trozo de {@code bytes}. */
+    void released(long bytes) {
+        FlowControl.inflight(-bytes);
+        if (inFlight.addAndGet(-bytes) < window / 2) {
+            uploader.resumeReading(NioSession.PAUSE_RELAY);
+        }
+    }
+
+    @Override
+    public void finish() throws IOException {
+        Log.info("Archivo recibido", "archivo", fileName, "bytes", received);
+        for (int i = 0; i < streamed.size(); i++) {
+            long transferId = transferIds.get(i);
+            NioSession session = streamed.get(i);
+            String chatMessage = notice(session);
+            session.send((out, p) -> {
+                p.writeFileEnd(out, transferId);
+                p.writeNotice(out, chatMessage);
+            });
+            Log.info("Archivo enviado", "archivo", fileName, "a", session.getClientName());
+        }
+        AttachmentStore.Blob blob = stored.commit();
+        uploader.server().cluster().forwardFile(blob, sender, fileName, receiver); // Receptor en otro nodo
+        sendStored(blob, spooled, sender, fileName, receiver);
+    }
+
+    /**
+     * Envía un archivo ya guardado a {@code recipients} y suelta la referencia de {@code blob};
+     * cada envío pendiente mantiene la suya hasta salir por el socket.
+     */
+    static void sendStored(AttachmentStore.Blob blob, List<NioSession> recipients, String sender, String fileName, String receiver) {
+        for (NioSession session : recipients) {
+            blob.retain();
+            session.sendStored(blob, fileName, sender, notice(session, sender, fileName, receiver));
+        }
+        blob.release();
+    }
+
+    @Override
+    public void abort() {
+        for (NioSession session : streamed) {
+            session.send((out, p) -> p.writeNotice(out, "[Transferencia cancelada: " + fileName + "]"));
+        }
+        stored.discard();
+        uploader.resumeReading(NioSession.PAUSE_RELAY);
+    }
+
+    private String notice(NioSession session) {
+        return notice(session, sender, fileName, receiver);
+    }
+
+    private static String notice(NioSession session, String sender, String fileName, String receiver) {
+        return session.getClientName().equals(receiver)
+                ? "[Archivo recibido de " + sender + ": " + fileName + "]"
+                : "[Archivo enviado: " + fileName + "]";
+    }
+}
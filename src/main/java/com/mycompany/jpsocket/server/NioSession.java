@@ -0,0 +1,891 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.mycompany.jpsocket.ServerConfig;
+import com.mycompany.jpsocket.protocol.Compression;
+import com.mycompany.jpsocket.protocol.Frame;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+import com.mycompany.jpsocket.protocol.FrameType;
+
+/**
+ * Estado de un cliente en el servidor NIO. Interpreta el protocolo de {@code writeUTF}
+ * ({@code USERLIST:}, {@code RECEIVER:}, {@code FILE}, {@code HISTORY_REQUEST:}) a partir de
+ * buffers no bloqueantes y mantiene una cola de escrituras pendientes para el canal.
+ * Si el cliente abre con {@link FrameCodec#HANDSHAKE} pasa a leer tramas del protocolo v2.
+ * Si supera sus límites ({@link FlowControl}) deja de leer de él hasta que le toque, sin
+ * procesar lo que ya esté en el buffer de lectura.
+ * Todos los métodos salvo los {@code send*} se ejecutan en el hilo de su {@link NioEventLoop}.
+ */
+public class NioSession {
+
+    private static final int INITIAL_BUFFER = 4096;
+    private static final int GATHER = 64; // Buffers como máximo por escritura agrupada
+    private static final int MAX_FRAME = 2 + 0xFFFF; // Longitud máxima de una trama writeUTF
+    static final AtomicLong TRANSFER_IDS = new AtomicLong(); // Ids de los archivos reenviados, también los de NioFileRelay
+
+    // Motivos para dejar de leer del cliente; se vuelve a leer cuando no queda ninguno
+    static final int PAUSE_RELAY = 1; // Los receptores de su archivo no dan abasto
+    static final int PAUSE_RATE = 2; // Superó sus límites de mensajes o bytes
+    static final int PAUSE_ADMISSION = 4; // Demasiados bytes de archivo en tránsito en el servidor
+
+    private enum State { NAME, COMMAND, FILE_NAME, FILE_SIZE, FILE_BODY, HELLO, BINARY }
+
+    private final NioChatServer server;
+    private final NioEventLoop loop;
+    private final SocketChannel channel;
+    private final SelectionKey key;
+    private final ArrayDeque<Outbound> pending = new ArrayDeque<>(); // Escrituras pendientes, solo desde el bucle
+    private final ByteBuffer[] gather = new ByteBuffer[GATHER]; // Buffers de una escritura agrupada
+    private final WriteStats writeStats = new WriteStats(); // De esta conexión; se suman también al total
+    private boolean writeBlocked; // Socket lleno, esperando OP_WRITE
+    private boolean flushScheduled; // El bucle vaciará pending al final de la vuelta (o tras el retardo)
+    private int unflushed; // Bytes encolados desde la última escritura
+
+    private ByteBuffer readBuffer = ByteBuffer.allocate(INITIAL_BUFFER);
+    private State state = State.NAME;
+    private volatile String clientName;
+    private String currentReceiver;
+    private String currentRoom; // Sala del siguiente mensaje (protocolo antiguo)
+    private boolean closed;
+    private volatile ServerProtocol protocol = LegacyProtocol.INSTANCE; // Protocolo negociado al conectar
+    private FlowControl flow; // Desde que se registra el nombre
+    private boolean throttled; // Esperando a que le toque: no se procesa más del buffer
+
+    // Estado de la subida de archivo en curso
+    private String fileName;
+    private FileTransfer upload;
+    private long fileRemaining;
+    private final AtomicInteger pausedBy = new AtomicInteger(); // Motivos PAUSE_*; sin OP_READ mientras haya alguno
+
+    NioSession(NioChatServer server, NioEventLoop loop, SocketChannel channel, SelectionKey key) {
+        this.server = server;
+        this.loop = loop;
+        this.channel = channel;
+        this.key = key;
+        ServerMetrics.shared().connectionOpened();
+    }
+
+    public String getClientName() {
+        return clientName;
+    }
+
+    void onReadable() throws IOException {
+        int read = channel.read(readBuffer);
+        if (read == -1) {
+            close();
+            return;
+        }
+        ServerMetrics.shared().bytesReceived(read);
+        processBuffer();
+    }
+
+    private void processBuffer() throws IOException {
+        readBuffer.flip();
+        while (!closed && !throttled && process()) {
+            // Se procesan todas las tramas completas que haya en el buffer
+        }
+        if (closed) {
+            return;
+        }
+        readBuffer.compact();
+        ensureCapacity();
+    }
+
+    /** Procesa una unidad del protocolo; devuelve false si faltan bytes. */
+    private boolean process() throws IOException {
+        switch (state) {
+            case NAME: {
+                String name = ModifiedUtf8.tryDecode(readBuffer);
+                if (name == null) return false;
+                if (name.equals(FrameCodec.HANDSHAKE)) {
+                    enqueue(new BufferOutbound(ModifiedUtf8.encode(FrameCodec.HANDSHAKE_OK)));
+                    protocol = BinaryProtocol.INSTANCE;
+                    state = State.HELLO;
+                    return true;
+                }
+                if (!register(name, false)) return false;
+                state = State.COMMAND;
+                return true;
+            }
+            case HELLO: {
+                Frame hello = FrameCodec.tryDecode(readBuffer);
+                if (hello == null) return false;
+                if (hello.getType() != FrameType.HELLO) {
+                    throw new IOException("Se esperaba HELLO y llegó " + hello.getType());
+                }
+                if (SessionRegistry.checkName(hello.text()) == null // El aviso de rechazo va sin comprimir
+                        && hello.hasFlag(Compression.FLAG_OFFER) && ServerConfig.get().getBoolean("compression.enabled", true)) {
+                    protocol = BinaryProtocol.compressed(new Compression()); // NAME confirmará que se acepta
+                }
+                if (!register(hello.text(), true)) return false;
+                state = State.BINARY;
+                return true;
+            }
+            case BINARY: {
+                int start = readBuffer.position();
+                Frame frame = FrameCodec.tryDecode(readBuffer);
+                if (frame == null) return false;
+                ServerMetrics.shared().messageReceived();
+                handleFrame(Compression.decode(frame, protocol.compression()));
+                if (closed) return false;
+                throttle(frame.getType() != FrameType.FILE_CHUNK, readBuffer.position() - start);
+                return true;
+            }
+            case COMMAND: {
+                int start = readBuffer.position();
+                String message = ModifiedUtf8.tryDecode(readBuffer);
+                if (message == null) return false;
+                ServerMetrics.shared().messageReceived();
+                handleMessage(message);
+                throttle(true, readBuffer.position() - start);
+                return true;
+            }
+            case FILE_NAME: {
+                String name = ModifiedUtf8.tryDecode(readBuffer);
+                if (name == null) return false;
+                fileName = name;
+                state = State.FILE_SIZE;
+                return true;
+            }
+            case FILE_SIZE: {
+                if (readBuffer.remaining() < Long.BYTES) return false;
+                fileRemaining = readBuffer.getLong();
+                if (!startFile(fileName, fileRemaining, currentReceiver)) return false;
+                currentReceiver = null;
+                state = State.FILE_BODY;
+                if (fileRemaining == 0) finishFile();
+                return true;
+            }
+            case FILE_BODY: {
+                if (!readBuffer.hasRemaining()) return false;
+                int chunk = (int) Math.min(readBuffer.remaining(), fileRemaining);
+                ByteBuffer data = ByteBuffer.allocate(chunk); // Copia propia: el buffer de lectura se reutiliza
+                ByteBuffer slice = readBuffer.slice();
+                slice.limit(chunk);
+                data.put(slice).flip();
+                upload.chunk(upload.received(), FrameCodec.crc(data), data); // Se reenvía en cuanto llega
+                readBuffer.position(readBuffer.position() + chunk);
+                fileRemaining -= chunk;
+                if (fileRemaining == 0) finishFile();
+                throttle(false, chunk);
+                return true;
+            }
+            default:
+                return false;
+        }
+    }
+
+    /** Registra el nombre pedido; si no es válido avisa con un {@code NOTICE}, cierra y devuelve false. */
+    private boolean register(String requestedName, boolean alwaysSendName) throws IOException {
+        String invalid = SessionRegistry.checkName(requestedName);
+        if (invalid != null) {
+            Log.warn("Nombre rechazado", "motivo", invalid);
+            enqueue(new BufferOutbound(encode((out, p) -> p.writeNotice(out, "[Nombre no válido: " + invalid + "]"), protocol)));
+            flush(); // Conexión recién abierta: el aviso cabe en el socket
+            close();
+            return false;
+        }
+        clientName = server.addSession(requestedName, this);
+        flow = new FlowControl(ServerConfig.get(), alwaysSendName); // Solo los clientes v2 usan créditos
+        if (alwaysSendName || !clientName.equals(requestedName)) { // En v1 solo si el nombre estaba repetido
+            String name = clientName;
+            int credit = flow.initialCredit();
+            send((out, p) -> p.writeName(out, name, credit));
+        }
+        sendUserList();
+        return true;
+    }
+
+    // Tras cada trama: si va demasiado rápido deja de leer (y de procesar el buffer) hasta que le toque
+    private void throttle(boolean message, int length) {
+        long wait = flow.admit(message, length);
+        if (wait == 0) {
+            sendCredit();
+            return;
+        }
+        if (flow.shouldWarn()) {
+            Log.warn("Cliente frenado por sus límites", "cliente", clientName, "ms", wait);
+            send((out, p) -> p.writeNotice(out, "[Vas demasiado rápido: el servidor frena tus envíos]"));
+        }
+        throttled = true;
+        pauseReading(PAUSE_RATE);
+        loop.schedule(this::endThrottle, wait);
+    }
+
+    private void endThrottle() {
+        if (closed) {
+            return;
+        }
+        throttled = false;
+        sendCredit();
+        try {
+            processBuffer(); // Lo que ya estaba leído; puede volver a frenar
+        } catch (IOException | RuntimeException e) {
+            close();
+            return;
+        }
+        if (!throttled) {
+            resumeReading(PAUSE_RATE);
+        }
+    }
+
+    // Devuelve al cliente v2 los créditos de lo ya procesado, cuando toca
+    private void sendCredit() {
+        int frames = flow.grant();
+        if (frames > 0) {
+            send((out, p) -> p.writeCredit(out, frames));
+        }
+    }
+
+    private void handleFrame(Frame frame) throws IOException {
+        switch (frame.getType()) {
+            case TEXT:
+                broadcastOnebyOne(frame.text(), clientName, frame.getReceiver()); // Mensaje privado en una sola trama
+                break;
+            case HISTORY_REQUEST:
+                sendHistoryPage(frame.text());
+                break;
+            case USERLIST: // Al cliente le falta una versión de la lista
+                sendUserList();
+                break;
+            case ROOM_JOIN:
+                joinRoom(frame.text());
+                break;
+            case ROOM_LEAVE:
+                leaveRoom(frame.text());
+                break;
+            case ROOM_TEXT:
+                sendToRoom(frame.getReceiver(), frame.text());
+                break;
+            case FILE_BEGIN:
+                beginUpload(frame);
+                break;
+            case FILE_CHUNK:
+                if (upload != null && upload.id() == frame.getMessageId()) {
+                    sendAck(upload.chunk(FrameCodec.chunkOffset(frame), FrameCodec.chunkCrc(frame), FrameCodec.chunkData(frame)));
+                }
+                break;
+            case FILE_END:
+                if (upload != null && upload.id() == frame.getMessageId()) {
+                    long offset = upload.end();
+                    sendAck(offset);
+                    if (offset == upload.size()) upload = null;
+                }
+                break;
+            default:
+                Log.warn("Trama ignorada", "cliente", clientName, "trama", frame);
+        }
+    }
+
+    private void handleMessage(String message) throws IOException {
+        if (message.equals("FILE")) {
+            state = State.FILE_NAME;
+            return;
+        }
+        if (message.startsWith("RECEIVER:")) {
+            currentReceiver = message.substring(9).trim(); // Guarda el receptor temporalmente
+            return;
+        }
+        if (message.startsWith(HistoryPaging.REQUEST)) {
+            sendHistoryPage(message.substring(HistoryPaging.REQUEST.length()));
+            return;
+        }
+        if (message.startsWith("JOIN:")) {
+            joinRoom(message.substring(5));
+            return;
+        }
+        if (message.startsWith("LEAVE:")) {
+            leaveRoom(message.substring(6));
+            return;
+        }
+        if (message.startsWith("ROOM:")) {
+            currentRoom = message.substring(5); // El siguiente mensaje va a la sala
+            return;
+        }
+        if (currentRoom != null) {
+            sendToRoom(currentRoom, message);
+            currentRoom = null;
+            return;
+        }
+        if (currentReceiver != null) {
+            broadcastOnebyOne(message, clientName, currentReceiver);
+            currentReceiver = null; // Limpiar receptor después de enviar
+        }
+    }
+
+    private void sendHistoryPage(String body) {
+        HistoryPaging.Request request = HistoryPaging.parse(body);
+        if (request != null) {
+            String viewer = clientName;
+            HistoryStore.Page page = HistoryPaging.fetch(server.history(), request, viewer);
+            send((out, p) -> p.writeHistoryPage(out, page, viewer, request.afterId() > 0));
+        }
+    }
+
+    private void broadcastOnebyOne(String message, String sender, String receiver) {
+        if (SessionRegistry.checkName(receiver) != null) {
+            return; // Ningún usuario puede llamarse así; no se guarda con una clave de conversación ambigua
+        }
+        HistoryStore.Entry entry = server.history().append(sender, receiver, message);
+        List<NioSession> targets = recipients(receiver);
+        for (NioSession session : targets) {
+            String viewer = session.getClientName();
+            session.send((out, p) -> p.writeText(out, entry, viewer));
+        }
+        ServerMetrics.shared().messagesDelivered(targets.size());
+        server.cluster().forwardText(entry); // Si el receptor está en otro nodo
+    }
+
+    // Entra en una sala (la crea si no existe) y confirma con los miembros que tiene
+    private void joinRoom(String name) {
+        String room = Rooms.normalize(name);
+        if (room == null) {
+            send((out, p) -> p.writeNotice(out, "[Nombre de sala no válido]"));
+            return;
+        }
+        server.rooms().join(room, this);
+        int members = server.rooms().members(room).size();
+        send((out, p) -> p.writeNotice(out, "[Sala #" + room + ": " + members + " miembros]"));
+    }
+
+    private void leaveRoom(String name) {
+        String room = Rooms.normalize(name);
+        if (room != null && server.rooms().leave(room, this)) {
+            send((out, p) -> p.writeNotice(out, "[Has salido de la sala #" + room + "]"));
+        }
+    }
+
+    // Reparte el mensaje a todos los miembros con los mismos bytes, codificados una vez por protocolo
+    private void sendToRoom(String name, String text) {
+        Rooms<NioSession> rooms = server.rooms();
+        String room = Rooms.normalize(name);
+        if (room == null || !rooms.isMember(room, this)) {
+            send((out, p) -> p.writeNotice(out, "[No estás en la sala #" + name + "]"));
+            return;
+        }
+        RoomMessage message = rooms.message(room, clientName, text);
+        long start = System.nanoTime();
+        int count = sendRoomText(message, rooms.members(room));
+        long nanos = System.nanoTime() - start;
+        rooms.recordFanout(count, nanos);
+        ServerMetrics.shared().messagesDelivered(count);
+        if (Log.sampleMessage()) {
+            Log.info("Mensaje a una sala", "sala", room, "miembros", count, "us", nanos / 1000);
+        }
+    }
+
+    /** Destinatario (buscado por nombre en O(1)) y el propio emisor. */
+    private List<NioSession> recipients(String receiver) {
+        List<NioSession> targets = new ArrayList<>(2);
+        NioSession target = server.lookup(receiver);
+        if (target != null && target != this) {
+            targets.add(target);
+        }
+        targets.add(this);
+        return targets;
+    }
+
+    // Subida con el protocolo antiguo: los bytes siguen a la cabecera; false si se ha rechazado y cerrado
+    private boolean startFile(String name, long size, String receiver) throws IOException {
+        fileName = Paths.get(name).getFileName().toString(); // Evita rutas ajenas en el nombre
+        if (!flow.acceptsFile(size)) {
+            rejectFile(fileName, size);
+            return false;
+        }
+        upload = new FileTransfer(clientName, 0, fileName, size, new NioFileRelay(this, recipients(receiver), fileName, size, receiver));
+        return true;
+    }
+
+    // Tamaño negativo o por encima de limit.file.bytes: se avisa y se cierra, antes de crear la subida
+    private void rejectFile(String name, long size) throws IOException {
+        Log.warn("Archivo rechazado por su tamaño", "cliente", clientName, "archivo", name, "bytes", size);
+        enqueue(new BufferOutbound(encode((out, p) -> p.writeNotice(out, "[Archivo rechazado por su tamaño: " + name + " (" + size + " bytes)]"), protocol)));
+        flush();
+        close();
+    }
+
+    // Subida con el protocolo v2: nueva, o la continuación de una que se cortó
+    private void beginUpload(Frame frame) throws IOException {
+        String name = Paths.get(FrameCodec.fileName(frame)).getFileName().toString(); // Evita rutas ajenas en el nombre
+        long size = FrameCodec.fileSize(frame);
+        if (!flow.acceptsFile(size)) {
+            rejectFile(name, size);
+            return;
+        }
+        long id = frame.getMessageId();
+        if (!FileTransfer.canStart(clientName, id, upload != null && upload.id() != id, flow.transfers())) {
+            ServerMetrics.shared().transferRejected();
+            Log.warn("Demasiadas subidas a la vez", "cliente", clientName, "archivo", name);
+            send((out, p) -> {
+                p.writeNotice(out, "[Demasiadas subidas a la vez: " + name + "]");
+                p.writeFileAck(out, id, -1); // Rechazada: el cliente no envía los trozos
+            });
+            return;
+        }
+        if (upload != null) {
+            upload.park(); // Otra subida a medias: se puede retomar después
+        }
+        upload = FileTransfer.resume(clientName, id, name, size);
+        if (upload != null) {
+            ((NioFileRelay) upload.sink()).attach(this);
+        } else {
+            String receiver = frame.getReceiver();
+            // Siempre se sube completo: conocer el hash de un archivo guardado no da acceso a él.
+            // Si el contenido ya estaba, el almacén lo comparte al terminar (Writer.commit)
+            upload = new FileTransfer(clientName, id, name, size,
+                    new NioFileRelay(this, recipients(receiver), name, size, receiver));
+        }
+        if (upload.received() == size) {
+            sendAck(upload.end()); // Nada que recibir: el tamaño total confirma que está completo
+            upload = null;
+            return;
+        }
+        sendAck(upload.received());
+    }
+
+    // Indica a quien sube desde dónde seguir (nada si offset es -1)
+    private void sendAck(long offset) {
+        if (offset >= 0) {
+            long id = upload.id();
+            send((out, p) -> p.writeFileAck(out, id, offset));
+        }
+    }
+
+    private void finishFile() throws IOException {
+        state = State.COMMAND;
+        FileTransfer finished = upload;
+        upload = null;
+        finished.end();
+    }
+
+    ServerProtocol protocol() {
+        return protocol;
+    }
+
+    NioChatServer server() {
+        return server;
+    }
+
+    /** Deja de leer del cliente hasta {@link #resumeReading(int)} con el mismo motivo; solo desde el bucle. */
+    void pauseReading(int reason) {
+        if (!closed && pausedBy.getAndUpdate(paused -> paused | reason) == 0) {
+            key.interestOps(key.interestOps() & ~SelectionKey.OP_READ);
+        }
+    }
+
+    /** Quita un motivo de pausa y vuelve a leer si no queda ninguno; puede llamarse desde cualquier hilo. */
+    void resumeReading(int reason) {
+        if (pausedBy.getAndUpdate(paused -> paused & ~reason) == reason) {
+            loop.execute(() -> {
+                if (!closed && pausedBy.get() == 0) {
+                    key.interestOps(key.interestOps() | SelectionKey.OP_READ);
+                }
+            });
+        }
+    }
+
+    /**
+     * Envía un mensaje al cliente codificado con su protocolo; puede llamarse desde cualquier hilo.
+     * Se codifica en el hilo que llama y el bucle solo encola los bytes.
+     */
+    public void send(OutboundFrame frame) {
+        ByteBuffer bytes;
+        try {
+            bytes = encode(frame, protocol);
+        } catch (IOException e) {
+            Log.error("No se pudo codificar un mensaje", "cliente", clientName, "error", e.getMessage());
+            return;
+        }
+        loop.execute(() -> enqueue(new BufferOutbound(bytes)));
+    }
+
+    /**
+     * Envía un mensaje de sala a {@code members}. El array codificado es el mismo para todos los
+     * miembros con el mismo protocolo y solo se envuelve, sin copiarlo; cada bucle recibe una
+     * sola tarea con todos sus miembros en lugar de una por miembro. Puede llamarse desde
+     * cualquier hilo.
+     *
+     * @return A cuántos miembros se ha enviado.
+     */
+    static int sendRoomText(RoomMessage message, Collection<NioSession> members) {
+        Map<NioEventLoop, List<NioSession>> targets = new HashMap<>();
+        Map<NioEventLoop, List<byte[]>> encoded = new HashMap<>();
+        for (NioSession member : members) {
+            try {
+                byte[] bytes = member.protocol.encodeRoomText(message); // Solo codifica el primero de cada protocolo
+                targets.computeIfAbsent(member.loop, l -> new ArrayList<>()).add(member);
+                encoded.computeIfAbsent(member.loop, l -> new ArrayList<>()).add(bytes);
+            } catch (IOException e) {
+                Log.error("No se pudo codificar un mensaje", "cliente", member.clientName, "error", e.getMessage());
+            }
+        }
+        int count = 0;
+        for (Map.Entry<NioEventLoop, List<NioSession>> group : targets.entrySet()) {
+            List<NioSession> sessions = group.getValue();
+            List<byte[]> bytes = encoded.get(group.getKey());
+            group.getKey().execute(() -> {
+                for (int i = 0; i < sessions.size(); i++) {
+                    sessions.get(i).enqueue(new BufferOutbound(ByteBuffer.wrap(bytes.get(i))));
+                }
+            });
+            count += sessions.size();
+        }
+        return count;
+    }
+
+    private static ByteBuffer encode(OutboundFrame frame, ServerProtocol protocol) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(128);
+        frame.writeTo(new DataOutputStream(bytes), protocol);
+        return ByteBuffer.wrap(bytes.toByteArray());
+    }
+
+    /** Envía la lista completa de los demás usuarios conectados (al conectar o si la pide). */
+    void sendUserList() {
+        String viewer = clientName;
+        server.presence().snapshot(snapshot -> send((out, p) -> p.writeUserList(out, snapshot, viewer)));
+    }
+
+    /**
+     * Envía un trozo de un archivo en tránsito; avisa a {@code relay} cuando sus bytes han
+     * salido por el socket o se han descartado. Puede llamarse desde cualquier hilo.
+     *
+     * @param deflated El trozo ya comprimido, o {@code null}; solo se usa si el cliente comprime.
+     */
+    void sendChunk(long transferId, long offset, int crc, ByteBuffer data, byte[] deflated, NioFileRelay relay) {
+        int length = data.remaining();
+        ServerProtocol protocol = this.protocol;
+        boolean compressed = deflated != null && protocol.compression() != null;
+        ByteBuffer header;
+        try {
+            header = compressed
+                    ? encode((out, p) -> p.writeDeflatedChunkHeader(out, transferId, deflated.length), protocol)
+                    : encode((out, p) -> p.writeFileChunkHeader(out, transferId, offset, crc, length), protocol);
+        } catch (IOException e) {
+            relay.released(length);
+            return;
+        }
+        ByteBuffer body = compressed ? ByteBuffer.wrap(deflated) : data;
+        loop.execute(() -> {
+            enqueue(new BufferOutbound(header));
+            enqueue(new BufferOutbound(body, () -> relay.released(length)));
+        });
+    }
+
+    /**
+     * Reenvía un archivo ya guardado en disco usando {@code transferTo}.
+     *
+     * @param onDone Se ejecuta cuando el archivo se ha enviado o ya no se va a enviar.
+     */
+    void sendFile(Path path, String name, String sender, long size, String chatMessage, Runnable onDone) {
+        loop.execute(() -> {
+            try {
+                long transferId = TRANSFER_IDS.incrementAndGet();
+                ServerProtocol p = protocol;
+                String receiver = clientName;
+                enqueue(new BufferOutbound(encode((out, q) -> q.writeFileHeader(out, transferId, name, sender, receiver, size), p)));
+                enqueue(new FileOutbound(path, size, p, transferId, onDone));
+                enqueue(new BufferOutbound(encode((out, q) -> {
+                    q.writeFileEnd(out, transferId);
+                    q.writeNotice(out, chatMessage);
+                }, p)));
+                Log.info("Archivo enviado", "archivo", name, "a", clientName);
+            } catch (IOException e) {
+                Log.error("Error al enviar archivo", "a", clientName, "error", e.getMessage());
+                onDone.run();
+            }
+        });
+    }
+
+    /**
+     * Envía un archivo del {@link AttachmentStore}: desde memoria si es pequeño, o con
+     * {@code transferTo} si no. Suelta la referencia de {@code blob} al terminar.
+     */
+    void sendStored(AttachmentStore.Blob blob, String name, String sender, String chatMessage) {
+        ByteBuffer data;
+        try {
+            data = blob.cached();
+        } catch (IOException e) {
+            data = null; // Se intenta desde el disco
+        }
+        if (data == null) {
+            sendFile(blob.path(), name, sender, blob.size(), chatMessage, blob::release);
+            return;
+        }
+        ByteBuffer content = data;
+        String receiver = clientName;
+        ByteBuffer bytes;
+        try {
+            bytes = encode((out, p) -> {
+                p.writeFile(out, TRANSFER_IDS.incrementAndGet(), content, name, sender, receiver, FrameCodec.FILE_CHUNK_SIZE);
+                p.writeNotice(out, chatMessage);
+            }, protocol);
+        } catch (IOException e) {
+            blob.release();
+            return;
+        }
+        loop.execute(() -> enqueue(new BufferOutbound(bytes, blob::release)));
+        Log.info("Archivo enviado", "archivo", name, "a", receiver);
+    }
+
+    private void enqueue(Outbound outbound) {
+        if (closed) {
+            outbound.release();
+            return;
+        }
+        pending.add(outbound);
+        ServerMetrics.shared().queued(1);
+        if (writeBlocked) {
+            return; // Se escribirá con OP_WRITE
+        }
+        FlushPolicy policy = loop.flushPolicy();
+        if (outbound instanceof BufferOutbound buffer) {
+            unflushed += buffer.buffer.remaining();
+        }
+        if (policy.mode() == FlushPolicy.Mode.IMMEDIATE || unflushed >= policy.maxBytes()
+                || !(outbound instanceof BufferOutbound)) {
+            flush(); // Intenta escribir directamente antes de esperar a OP_WRITE
+        } else if (!flushScheduled) {
+            flushScheduled = true;
+            loop.scheduleFlush(this); // Se agrupa con lo que llegue en esta vuelta del bucle
+        }
+    }
+
+    /** Escribe lo pendiente; lo llama el bucle según su {@link FlushPolicy}. */
+    void flush() {
+        flushScheduled = false;
+        if (closed || writeBlocked) {
+            return;
+        }
+        try {
+            onWritable();
+        } catch (IOException e) {
+            close();
+        }
+    }
+
+    void onWritable() throws IOException {
+        unflushed = 0;
+        Outbound head;
+        while ((head = pending.peek()) != null) {
+            boolean done = head instanceof BufferOutbound ? writeGathered() : head.writeTo(channel);
+            if (!done) {
+                writeBlocked = true;
+                key.interestOps(key.interestOps() | SelectionKey.OP_WRITE); // Socket lleno: esperar
+                return;
+            }
+            if (!(head instanceof BufferOutbound)) {
+                release(pending.poll());
+            }
+        }
+        writeBlocked = false;
+        key.interestOps(key.interestOps() & ~SelectionKey.OP_WRITE);
+    }
+
+    // Escribe de una vez los buffers seguidos al principio de la cola y libera los enviados
+    private boolean writeGathered() throws IOException {
+        int count = 0;
+        for (Outbound outbound : pending) {
+            if (count == GATHER || !(outbound instanceof BufferOutbound buffer)) {
+                break;
+            }
+            gather[count++] = buffer.buffer;
+        }
+        long written = count == 1 ? channel.write(gather[0]) : channel.write(gather, 0, count);
+        writeStats.writes(count);
+        writeStats.syscall(written);
+        Arrays.fill(gather, 0, count, null);
+        while (pending.peek() instanceof BufferOutbound buffer && !buffer.buffer.hasRemaining()) {
+            release(pending.poll());
+        }
+        return !(pending.peek() instanceof BufferOutbound buffer && buffer.buffer.hasRemaining());
+    }
+
+    // Saca de la cuenta de las colas una escritura enviada o descartada
+    private static void release(Outbound outbound) {
+        ServerMetrics.shared().queued(-1);
+        outbound.release();
+    }
+
+    /** Agranda el buffer si la siguiente trama no cabe en él, o lo reduce si quedó vacío. */
+    private void ensureCapacity() {
+        if (readBuffer.position() == 0 && readBuffer.capacity() > INITIAL_BUFFER && state != State.FILE_BODY) {
+            readBuffer = ByteBuffer.allocate(INITIAL_BUFFER); // Libera el buffer grande cuando queda vacío
+            return;
+        }
+        if (state == State.FILE_BODY) {
+            if (readBuffer.capacity() < FrameCodec.FILE_CHUNK_SIZE && readBuffer.position() == 0) {
+                readBuffer = ByteBuffer.allocate(FrameCodec.FILE_CHUNK_SIZE); // Trozos de archivo más grandes
+            }
+            return;
+        }
+        if (readBuffer.hasRemaining()) {
+            return;
+        }
+        int max = state == State.HELLO || state == State.BINARY
+                ? Integer.BYTES + FrameCodec.maxFrame()
+                : MAX_FRAME + Long.BYTES;
+        int needed = Math.min(max, readBuffer.capacity() * 2);
+        ByteBuffer bigger = ByteBuffer.allocate(needed);
+        readBuffer.flip();
+        bigger.put(readBuffer);
+        readBuffer = bigger;
+    }
+
+    void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        key.cancel();
+        NioEventLoop.closeQuietly(channel);
+        Outbound outbound;
+        while ((outbound = pending.poll()) != null) {
+            release(outbound);
+        }
+        if (upload != null) {
+            if (protocol.interleavesFiles()) {
+                upload.park(); // Se puede reanudar al reconectar
+            } else {
+                upload.sink().abort();
+            }
+            upload = null;
+        }
+        ServerMetrics.shared().connectionClosed();
+        if (clientName != null) {
+            Compression compression = protocol.compression();
+            Log.info("Cliente desconectado", "cliente", clientName, "escrituras", writeStats.snapshot(), "compresion", compression != null ? compression : "no");
+            server.removeSession(this);
+        }
+    }
+
+    /** Escritura pendiente hacia el canal del cliente. */
+    interface Outbound {
+        /** Escribe lo que el socket admita; devuelve true cuando ha terminado. */
+        boolean writeTo(SocketChannel channel) throws IOException;
+
+        default void release() {
+        }
+    }
+
+    private static final class BufferOutbound implements Outbound {
+        private final ByteBuffer buffer;
+        private final Runnable onRelease;
+
+        BufferOutbound(ByteBuffer buffer) {
+            this(buffer, null);
+        }
+
+        BufferOutbound(ByteBuffer buffer, Runnable onRelease) {
+            this.buffer = buffer;
+            this.onRelease = onRelease;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            channel.write(buffer);
+            return !buffer.hasRemaining();
+        }
+
+        @Override
+        public void release() {
+            if (onRelease != null) {
+                onRelease.run();
+            }
+        }
+    }
+
+    /**
+     * Cuerpo de un archivo enviado con {@code transferTo}. Si el protocolo pone cabecera a cada
+     * trozo, se intercala antes de cada tramo de {@link FrameCodec#FILE_CHUNK_SIZE} bytes; si no,
+     * el archivo va en un solo tramo.
+     */
+    private static final class FileOutbound implements Outbound {
+        // Trozo leído solo para calcular su CRC; uno por hilo del bucle, que es quien escribe
+        private static final ThreadLocal<ByteBuffer> CRC_BUFFER =
+                ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(FrameCodec.FILE_CHUNK_SIZE));
+
+        private final Path path;
+        private final long size;
+        private final ServerProtocol protocol;
+        private final long transferId;
+        private final Runnable onDone;
+        private FileChannel file;
+        private long position;
+        private long chunkEnd;
+        private ByteBuffer chunkHeader;
+
+        FileOutbound(Path path, long size, ServerProtocol protocol, long transferId, Runnable onDone) {
+            this.path = path;
+            this.size = size;
+            this.protocol = protocol;
+            this.transferId = transferId;
+            this.onDone = onDone;
+        }
+
+        @Override
+        public boolean writeTo(SocketChannel channel) throws IOException {
+            if (file == null) {
+                file = FileChannel.open(path, StandardOpenOption.READ);
+            }
+            while (position < size) {
+                if (position == chunkEnd) { // Empieza un trozo nuevo
+                    int length = (int) Math.min(FrameCodec.FILE_CHUNK_SIZE, size - position);
+                    long offset = position;
+                    int crc = protocol.interleavesFiles() ? crc(position, length) : 0;
+                    chunkHeader = encode((out, p) -> p.writeFileChunkHeader(out, transferId, offset, crc, length), protocol);
+                    chunkEnd = position + (chunkHeader.hasRemaining() ? length : size - position);
+                }
+                if (chunkHeader.hasRemaining()) {
+                    channel.write(chunkHeader);
+                    if (chunkHeader.hasRemaining()) {
+                        return false;
+                    }
+                }
+                long sent = file.transferTo(position, chunkEnd - position, channel);
+                if (sent <= 0) {
+                    return false;
+                }
+                position += sent;
+            }
+            return true;
+        }
+
+        // Lectura posicional en un buffer reutilizado: el envío sigue siendo transferTo, sin copias
+        private int crc(long offset, int length) throws IOException {
+            ByteBuffer buffer = CRC_BUFFER.get();
+            buffer.clear().limit(length);
+            FrameCodec.readChunk(file, offset, buffer);
+            return FrameCodec.crc(buffer);
+        }
+
+        @Override
+        public void release() {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException ignored) {
+                }
+            }
+            onDone.run();
+        }
+    }
+}
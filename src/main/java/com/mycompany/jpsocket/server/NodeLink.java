@@ -0,0 +1,162 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+import com.mycompany.jpsocket.ServerConfig;
+import com.mycompany.jpsocket.protocol.Frame;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+import com.mycompany.jpsocket.protocol.FrameType;
+
+/**
+ * Conexión saliente de este nodo a otro del {@link Cluster}. Funciona como la de un cliente v2:
+ * lo que se envía pasa por una {@link OutboundQueue} que vacía un único hilo, codificado con
+ * {@link BinaryProtocol}, y se agrupa en una sola escritura mientras haya tramas pendientes. Si
+ * no hay nada que enviar durante {@code cluster.heartbeat.ms} se envía un {@code NODE_PING}.
+ * <p>
+ * Si la conexión falla se vuelve a abrir con esperas crecientes, hasta {@code cluster.reconnect.max.ms}.
+ * Lo que estaba en la cola se pierde: el otro nodo habrá dado a estos usuarios por desconectados y
+ * recibe la lista completa al reconectar. Si la cola llega a {@code cluster.queue.capacity}
+ * tramas, el otro nodo no da abasto y se cierra la conexión.
+ */
+final class NodeLink implements Runnable {
+
+    private static final long FIRST_RETRY_MILLIS = 200;
+
+    private final Cluster cluster;
+    private final InetSocketAddress address;
+    private final int capacity;
+    private final long maxRetryMillis;
+    // Archivos encolados y aún no enviados: si la conexión cae, se sueltan sus referencias
+    private final ConcurrentLinkedQueue<AttachmentStore.Blob> pendingFiles = new ConcurrentLinkedQueue<>();
+    private volatile OutboundQueue queue; // Cola de la conexión actual; null mientras no hay conexión
+    private volatile Socket socket;
+
+    NodeLink(Cluster cluster, InetSocketAddress address, ServerConfig config) {
+        this.cluster = cluster;
+        this.address = address;
+        this.capacity = config.getInt("cluster.queue.capacity", 65536);
+        this.maxRetryMillis = config.getLong("cluster.reconnect.max.ms", 5000);
+    }
+
+    /**
+     * Encola una trama para el otro nodo; nunca bloquea.
+     *
+     * @return {@code false} si no hay conexión o la cola estaba llena.
+     */
+    boolean send(OutboundFrame frame) {
+        OutboundQueue current = queue;
+        if (current == null) {
+            return false;
+        }
+        if (!current.offer(OutboundFrame.reliable(frame))) {
+            Log.warn("Cola hacia el nodo llena, se cierra la conexión", "nodo", address, "cola", current.stats());
+            closeSocket();
+            return false;
+        }
+        return true;
+    }
+
+    /** Como {@link #send(OutboundFrame)}, manteniendo una referencia de {@code blob} hasta enviarlo. */
+    boolean sendFile(AttachmentStore.Blob blob, OutboundFrame frame) {
+        blob.retain();
+        pendingFiles.add(blob);
+        boolean queued = send((out, p) -> {
+            try {
+                frame.writeTo(out, p);
+            } finally {
+                if (pendingFiles.remove(blob)) {
+                    blob.release();
+                }
+            }
+        });
+        if (!queued && pendingFiles.remove(blob)) {
+            blob.release();
+        }
+        return queued;
+    }
+
+    @Override
+    public void run() {
+        long retry = FIRST_RETRY_MILLIS;
+        while (true) {
+            String peerId = null;
+            try (Socket s = new Socket()) {
+                socket = s;
+                s.connect(address, (int) Math.max(1000, maxRetryMillis));
+                s.setTcpNoDelay(true);
+                s.setKeepAlive(true);
+                DataOutputStream out = new DataOutputStream(new BufferedOutputStream(s.getOutputStream(), 64 * 1024));
+                DataInputStream in = new DataInputStream(new BufferedInputStream(s.getInputStream()));
+                s.setSoTimeout(cluster.heartbeatMillis() * 3);
+                peerId = cluster.connectHello(in, out);
+                if (peerId.equals(cluster.nodeId())) {
+                    return; // Es la dirección de este mismo nodo
+                }
+                retry = FIRST_RETRY_MILLIS;
+                OutboundQueue current = new OutboundQueue(capacity, OutboundQueue.OverflowPolicy.DISCONNECT);
+                queue = current;
+                cluster.linkUp(this, peerId);
+                try {
+                    writeLoop(out, current);
+                } finally {
+                    queue = null;
+                    cluster.linkDown(this, peerId);
+                    current.close();
+                    AttachmentStore.Blob blob;
+                    while ((blob = pendingFiles.poll()) != null) {
+                        blob.release();
+                    }
+                }
+            } catch (IOException e) {
+                if (peerId != null) {
+                    Log.warn("Conexión con el nodo perdida", "nodo", peerId, "error", e.getMessage());
+                } else {
+                    Log.debug("No se pudo conectar con el nodo", "direccion", address, "error", e.getMessage());
+                }
+            } catch (InterruptedException e) {
+                return;
+            }
+            try {
+                Thread.sleep(retry);
+            } catch (InterruptedException e) {
+                return;
+            }
+            retry = Math.min(retry * 2, maxRetryMillis);
+        }
+    }
+
+    // Vacía la cola en lotes; sin tráfico, un NODE_PING por latido
+    private void writeLoop(DataOutputStream out, OutboundQueue current) throws IOException, InterruptedException {
+        Frame ping = new Frame(FrameType.NODE_PING, 0, 0, null, null, null);
+        while (true) {
+            OutboundFrame frame = current.poll(cluster.heartbeatMillis(), TimeUnit.MILLISECONDS);
+            if (frame == null) {
+                FrameCodec.write(out, ping); // Si el socket se cerró, esta escritura falla y se reconecta
+                out.flush();
+                continue;
+            }
+            do {
+                frame.writeTo(out, BinaryProtocol.INSTANCE);
+            } while ((frame = current.poll(0, TimeUnit.MILLISECONDS)) != null);
+            out.flush();
+        }
+    }
+
+    private void closeSocket() {
+        Socket s = socket;
+        if (s != null) {
+            try {
+                s.close();
+            } catch (IOException ignored) {
+            }
+        }
+    }
+}
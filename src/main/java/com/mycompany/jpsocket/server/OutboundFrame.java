@@ -0,0 +1,61 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * Trama pendiente de enviar a un cliente. Se escribe completa, sin intercalarse con otras,
+ * desde el hilo escritor del cliente.
+ */
+@FunctionalInterface
+public interface OutboundFrame {
+
+    /**
+     * Escribe la trama en el stream de salida del cliente.
+     *
+     * @param out Stream de salida del socket.
+     * @param protocol Protocolo negociado por el cliente, con el que se codifica la trama.
+     * @throws IOException Si falla la escritura.
+     */
+    void writeTo(DataOutputStream out, ServerProtocol protocol) throws IOException;
+
+    /**
+     * Indica si la cola puede descartar la trama al llenarse. Las tramas de un archivo
+     * enviado por trozos no se pueden descartar sin corromperlo.
+     */
+    default boolean droppable() {
+        return true;
+    }
+
+    /** La cola la descarta sin escribirla (al llenarse o al cerrarse la conexión). */
+    default void discarded() {
+    }
+
+    /** Envuelve una trama para que la política {@code DROP_OLDEST} nunca la descarte. */
+    static OutboundFrame reliable(OutboundFrame frame) {
+        return reliable(frame, () -> { });
+    }
+
+    /**
+     * Como {@link #reliable(OutboundFrame)}, y ejecuta {@code onDiscard} si la trama no llega a
+     * escribirse porque se cierra la conexión.
+     */
+    static OutboundFrame reliable(OutboundFrame frame, Runnable onDiscard) {
+        return new OutboundFrame() {
+            @Override
+            public void writeTo(DataOutputStream out, ServerProtocol protocol) throws IOException {
+                frame.writeTo(out, protocol);
+            }
+
+            @Override
+            public boolean droppable() {
+                return false;
+            }
+
+            @Override
+            public void discarded() {
+                onDiscard.run();
+            }
+        };
+    }
+}
@@ -0,0 +1,193 @@
+package com.mycompany.jpsocket.server;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Cola de salida acotada de un cliente. Los hilos que reparten mensajes solo encolan,
+ * y un único hilo escritor por cliente la vacía hacia el socket, de modo que un receptor
+ * lento no bloquea a los demás. Cuando la cola se llena se aplica la {@link OverflowPolicy}.
+ * Las tramas no descartables ({@link OutboundFrame#droppable()}) se conservan aunque la cola
+ * supere su capacidad; quien las encola debe limitar cuántas tiene pendientes.
+ */
+public class OutboundQueue {
+
+    /** Qué hacer cuando un cliente no consume su cola a tiempo. */
+    public enum OverflowPolicy {
+        DROP_OLDEST, // Descarta la trama más antigua para hacer sitio
+        DISCONNECT   // Desconecta al cliente lento
+    }
+
+    /** Estadísticas de la cola en un instante dado. */
+    public record Stats(int depth, int maxDepth, long enqueued, long written, long dropped) {
+        @Override
+        public String toString() {
+            return "cola=" + depth + " max=" + maxDepth + " encolados=" + enqueued
+                    + " enviados=" + written + " descartados=" + dropped;
+        }
+    }
+
+    private final ArrayDeque<OutboundFrame> frames = new ArrayDeque<>();
+    private final int capacity;
+    private final OverflowPolicy policy;
+    private final ReentrantLock lock = new ReentrantLock(); // ReentrantLock para no fijar hilos virtuales
+    private final Condition notEmpty = lock.newCondition();
+    private final ServerMetrics metrics = ServerMetrics.shared();
+    private boolean closed;
+
+    // Estadísticas, protegidas por lock
+    private int maxDepth;
+    private long enqueued;
+    private long written;
+    private long dropped;
+
+    public OutboundQueue(int capacity, OverflowPolicy policy) {
+        if (capacity <= 0) {
+            throw new IllegalArgumentException("La capacidad debe ser positiva: " + capacity);
+        }
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * Encola una trama sin bloquear.
+     *
+     * @param frame Trama a enviar.
+     * @return {@code false} si la cola está llena y la política es {@code DISCONNECT}
+     *         o si la cola ya está cerrada; el llamante debe desconectar al cliente.
+     */
+    public boolean offer(OutboundFrame frame) {
+        metrics.outboundLock().lock(lock); // Compiten los hilos que reparten y el escritor
+        try {
+            if (closed) {
+                return false;
+            }
+            if (frames.size() >= capacity) {
+                if (policy == OverflowPolicy.DISCONNECT) {
+                    dropped++;
+                    return false;
+                }
+                if (dropOldest()) {
+                    dropped++;
+                    metrics.queued(-1);
+                }
+            }
+            frames.addLast(frame);
+            enqueued++;
+            metrics.queued(1);
+            maxDepth = Math.max(maxDepth, frames.size());
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Descarta la trama descartable más antigua (llamar con el candado)
+    private boolean dropOldest() {
+        Iterator<OutboundFrame> it = frames.iterator();
+        while (it.hasNext()) {
+            OutboundFrame frame = it.next();
+            if (frame.droppable()) {
+                it.remove();
+                frame.discarded();
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Espera la siguiente trama.
+     *
+     * @return La trama, o {@code null} cuando la cola está cerrada.
+     * @throws InterruptedException Si se interrumpe el hilo escritor.
+     */
+    public OutboundFrame take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed) {
+                notEmpty.await();
+            }
+            if (closed) {
+                return null;
+            }
+            written++;
+            metrics.queued(-1);
+            return frames.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Espera la siguiente trama como mucho {@code timeout}; con 0 no espera.
+     *
+     * @return La trama, o {@code null} si no llegó ninguna a tiempo o la cola está cerrada.
+     */
+    public OutboundFrame poll(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lock();
+        try {
+            while (frames.isEmpty() && !closed && nanos > 0) {
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            if (closed || frames.isEmpty()) {
+                return null;
+            }
+            written++;
+            metrics.queued(-1);
+            return frames.pollFirst();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Indica si no quedan tramas pendientes (para decidir cuándo hacer flush). */
+    public boolean isEmpty() {
+        lock.lock();
+        try {
+            return frames.isEmpty();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Indica si la cola ya está cerrada; desde entonces {@link #offer} siempre devuelve {@code false}. */
+    public boolean isClosed() {
+        lock.lock();
+        try {
+            return closed;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /** Cierra la cola, descarta lo pendiente y despierta al escritor. */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            metrics.queued(-frames.size());
+            for (OutboundFrame frame : frames) {
+                frame.discarded();
+            }
+            frames.clear();
+            notEmpty.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public Stats stats() {
+        lock.lock();
+        try {
+            return new Stats(frames.size(), maxDepth, enqueued, written, dropped);
+        } finally {
+            lock.unlock();
+        }
+    }
+}
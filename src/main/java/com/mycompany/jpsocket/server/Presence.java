@@ -0,0 +1,180 @@
+package com.mycompany.jpsocket.server;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Consumer;
+
+import com.mycompany.jpsocket.ServerConfig;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+
+/**
+ * Usuarios conectados, con un número de versión que sube con cada cambio. Las altas y bajas se
+ * acumulan durante {@code presence.coalesce.ms} (50 por defecto) y se publican juntas como un
+ * solo {@link Delta}; una alta y una baja del mismo nombre en ese intervalo se anulan, así que
+ * una tormenta de reconexiones se reduce a unos pocos mensajes pequeños en lugar de una lista
+ * completa por cliente y por conexión.
+ * <p>
+ * Los clientes reciben la lista completa ({@link Snapshot}) solo al conectar o si detectan
+ * que les falta una versión. El estado se copia con un candado y se publica tras soltarlo, así
+ * que las altas y bajas no esperan a que se reparta nada; un segundo candado, que se toma antes de
+ * soltar el primero, ordena las publicaciones, y lo que encolan el listener y los snapshots llega
+ * a cada cliente en orden de versión.
+ */
+public final class Presence {
+
+    /** Recibe cada cambio publicado; solo debe encolar mensajes, no bloquearse. */
+    public interface Listener {
+        void changed(Delta delta);
+    }
+
+    /** Lista completa de usuarios en una versión. */
+    public record Snapshot(long version, List<String> names) {
+    }
+
+    /** Altas y bajas que llevan de la versión {@code baseVersion} a {@code version}. */
+    public static final class Delta {
+        private final long baseVersion;
+        private final List<String> joined;
+        private final List<String> left;
+        private final Snapshot snapshot;
+        private byte[] payload;
+
+        Delta(long baseVersion, List<String> joined, List<String> left, Snapshot snapshot) {
+            this.baseVersion = baseVersion;
+            this.joined = joined;
+            this.left = left;
+            this.snapshot = snapshot;
+        }
+
+        public long baseVersion() {
+            return baseVersion;
+        }
+
+        public long version() {
+            return snapshot.version();
+        }
+
+        public List<String> joined() {
+            return joined;
+        }
+
+        public List<String> left() {
+            return left;
+        }
+
+        /** Lista completa tras el cambio, para los clientes que no entienden deltas. */
+        public Snapshot snapshot() {
+            return snapshot;
+        }
+
+        /** Contenido de la trama {@code PRESENCE}; se codifica una sola vez para todos los clientes. */
+        public synchronized byte[] payload() {
+            if (payload == null) {
+                payload = FrameCodec.presence(baseVersion, joined, left);
+            }
+            return payload;
+        }
+    }
+
+    private final Listener listener;
+    private final long coalesceMillis;
+    private final ScheduledExecutorService timer = Executors.newSingleThreadScheduledExecutor(task -> {
+        Thread thread = new Thread(task, "presence");
+        thread.setDaemon(true);
+        return thread;
+    });
+    private final ReentrantLock lock = new ReentrantLock();
+    private final ReentrantLock publishing = new ReentrantLock(); // Se toma con lock y se suelta al publicar
+    // Protegidos por lock
+    private final LinkedHashSet<String> roster = new LinkedHashSet<>(); // Usuarios publicados en la versión actual
+    private final Map<String, Boolean> pending = new LinkedHashMap<>(); // Cambios sin publicar: true alta, false baja
+    private long version;
+    private boolean scheduled;
+
+    public Presence(Listener listener) {
+        this.listener = listener;
+        this.coalesceMillis = ServerConfig.get().getLong("presence.coalesce.ms", 50);
+    }
+
+    public void join(String name) {
+        record(name, true);
+    }
+
+    public void leave(String name) {
+        if (name != null) {
+            record(name, false);
+        }
+    }
+
+    /** Pasa a {@code consumer} la lista actual; lo que encole llega antes que el siguiente cambio. */
+    public void snapshot(Consumer<Snapshot> consumer) {
+        Snapshot snapshot;
+        lock.lock();
+        try {
+            snapshot = new Snapshot(version, List.copyOf(roster));
+            publishing.lock(); // Nadie publica una versión posterior antes que esta
+        } finally {
+            lock.unlock();
+        }
+        try {
+            consumer.accept(snapshot);
+        } finally {
+            publishing.unlock();
+        }
+    }
+
+    private void record(String name, boolean joined) {
+        lock.lock();
+        try {
+            Boolean previous = pending.remove(name);
+            if (previous == null || previous == joined) {
+                pending.put(name, joined); // Si era el cambio contrario, los dos se anulan
+            }
+            if (!scheduled && !pending.isEmpty()) {
+                scheduled = true;
+                timer.schedule(this::flush, coalesceMillis, TimeUnit.MILLISECONDS);
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    // Publica los cambios acumulados como una nueva versión
+    private void flush() {
+        Delta delta;
+        lock.lock();
+        try {
+            scheduled = false;
+            List<String> joined = new ArrayList<>();
+            List<String> left = new ArrayList<>();
+            for (Map.Entry<String, Boolean> change : pending.entrySet()) {
+                if (change.getValue() ? roster.add(change.getKey()) : roster.remove(change.getKey())) {
+                    (change.getValue() ? joined : left).add(change.getKey());
+                }
+            }
+            pending.clear();
+            if (joined.isEmpty() && left.isEmpty()) {
+                return;
+            }
+            long base = version++;
+            delta = new Delta(base, joined, left, new Snapshot(version, List.copyOf(roster)));
+            publishing.lock();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            listener.changed(delta);
+        } catch (RuntimeException e) {
+            Log.error("Error al publicar los usuarios conectados", "error", e.getMessage());
+        } finally {
+            publishing.unlock();
+        }
+    }
+}
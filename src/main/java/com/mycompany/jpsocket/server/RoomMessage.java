@@ -0,0 +1,79 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.time.Instant;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Mensaje enviado a una sala. Es inmutable y guarda sus bytes ya codificados para cada forma de
+ * codificarlo (v1, v2, v2 comprimido), así que se codifica una sola vez por forma y no una vez
+ * por miembro; todos los miembros comparten el mismo array, que nadie debe modificar.
+ */
+public final class RoomMessage {
+
+    /** Escribe el mensaje en una de sus formas. */
+    @FunctionalInterface
+    public interface Encoder {
+        void writeTo(DataOutputStream out) throws IOException;
+    }
+
+    private final long id;
+    private final long timestamp;
+    private final String room;
+    private final String sender;
+    private final String text;
+    private final Map<Object, byte[]> encodings = new HashMap<>(4); // Protegido por sí mismo
+
+    public RoomMessage(long id, long timestamp, String room, String sender, String text) {
+        this.id = id;
+        this.timestamp = timestamp;
+        this.room = room;
+        this.sender = sender;
+        this.text = text;
+    }
+
+    public long id() {
+        return id;
+    }
+
+    public long timestamp() {
+        return timestamp;
+    }
+
+    public String room() {
+        return room;
+    }
+
+    public String sender() {
+        return sender;
+    }
+
+    public String text() {
+        return text;
+    }
+
+    /** Texto para los clientes antiguos: {@code [HH:mm] [#sala] [emisor] texto}. */
+    public String render() {
+        return "[" + HistoryStore.FORMATTER.format(Instant.ofEpochMilli(timestamp)) + "] [#" + room + "] [" + sender + "] " + text;
+    }
+
+    /**
+     * Bytes del mensaje codificado con {@code encoder}. Solo se codifica la primera vez que se
+     * pide cada {@code key}; los demás miembros esperan a esa codificación y la comparten.
+     */
+    public byte[] encoded(Object key, Encoder encoder) throws IOException {
+        synchronized (encodings) {
+            byte[] bytes = encodings.get(key);
+            if (bytes == null) {
+                ByteArrayOutputStream buffer = new ByteArrayOutputStream(64 + 3 * text.length());
+                encoder.writeTo(new DataOutputStream(buffer));
+                bytes = buffer.toByteArray();
+                encodings.put(key, bytes);
+            }
+            return bytes;
+        }
+    }
+}
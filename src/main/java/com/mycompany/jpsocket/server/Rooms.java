@@ -0,0 +1,131 @@
+package com.mycompany.jpsocket.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Salas de chat por nombre con sus miembros. Entrar y salir son atómicos por sala y una sala
+ * desaparece al quedarse vacía; los miembros se recorren sin candados, así que el reparto de un
+ * mensaje no frena a quien entra o sale de la sala a la vez.
+ * <p>
+ * Además mide cuánto tarda cada reparto (ver {@link #recordFanout(int, long)}).
+ *
+ * @param <S> Tipo de sesión (por ejemplo un {@code ClientHandler}).
+ */
+public class Rooms<S> {
+
+    public static final int MAX_NAME_LENGTH = 64;
+
+    /** Repartos realizados en un instante dado. */
+    public record Stats(int rooms, long messages, long deliveries, long totalNanos, long maxNanos) {
+        @Override
+        public String toString() {
+            return "salas=" + rooms + " mensajes=" + messages + " entregas=" + deliveries
+                    + " reparto_medio_us=" + (messages == 0 ? 0 : totalNanos / messages / 1000)
+                    + " reparto_max_us=" + maxNanos / 1000;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Set<S>> rooms = new ConcurrentHashMap<>();
+    private final ConcurrentHashMap<S, Set<String>> memberships = new ConcurrentHashMap<>(); // Salas de cada sesión
+    private final AtomicLong ids = new AtomicLong();
+    private final LongAdder messages = new LongAdder();
+    private final LongAdder deliveries = new LongAdder();
+    private final LongAdder totalNanos = new LongAdder();
+    private final LongAccumulator maxNanos = new LongAccumulator(Math::max, 0);
+
+    /**
+     * Normaliza el nombre de una sala.
+     *
+     * @return El nombre sin espacios alrededor ni {@code #} inicial, o {@code null} si no es válido.
+     */
+    public static String normalize(String name) {
+        if (name == null) {
+            return null;
+        }
+        String room = name.trim();
+        if (room.startsWith("#")) {
+            room = room.substring(1).trim();
+        }
+        return room.isEmpty() || room.length() > MAX_NAME_LENGTH ? null : room;
+    }
+
+    /**
+     * Añade la sesión a la sala, creándola si no existe.
+     *
+     * @return {@code true} si no era ya miembro.
+     */
+    public boolean join(String room, S session) {
+        boolean[] added = new boolean[1];
+        rooms.compute(room, (name, members) -> {
+            Set<S> set = members != null ? members : ConcurrentHashMap.newKeySet();
+            added[0] = set.add(session);
+            return set;
+        });
+        if (added[0]) {
+            memberships.computeIfAbsent(session, s -> ConcurrentHashMap.newKeySet()).add(room);
+        }
+        return added[0];
+    }
+
+    /**
+     * Saca la sesión de la sala; la sala se borra si se queda vacía.
+     *
+     * @return {@code true} si era miembro.
+     */
+    public boolean leave(String room, S session) {
+        boolean[] removed = new boolean[1];
+        rooms.computeIfPresent(room, (name, members) -> {
+            removed[0] = members.remove(session);
+            return members.isEmpty() ? null : members;
+        });
+        Set<String> joined = memberships.get(session);
+        if (joined != null) {
+            joined.remove(room);
+        }
+        return removed[0];
+    }
+
+    /** Saca la sesión de todas sus salas, al desconectarse. */
+    public void leaveAll(S session) {
+        Set<String> joined = memberships.remove(session);
+        if (joined != null) {
+            for (String room : joined) {
+                leave(room, session);
+            }
+        }
+    }
+
+    /** Miembros de la sala (vacío si no existe); la vista se recorre sin candados. */
+    public Collection<S> members(String room) {
+        Set<S> members = rooms.get(room);
+        return members == null ? Collections.emptySet() : Collections.unmodifiableSet(members);
+    }
+
+    public boolean isMember(String room, S session) {
+        Set<S> members = rooms.get(room);
+        return members != null && members.contains(session);
+    }
+
+    /** Crea el mensaje que se repartirá a los miembros de {@code room}. */
+    public RoomMessage message(String room, String sender, String text) {
+        return new RoomMessage(ids.incrementAndGet(), System.currentTimeMillis(), room, sender, text);
+    }
+
+    /** Anota un reparto a {@code members} miembros que tardó {@code nanos}. */
+    public void recordFanout(int members, long nanos) {
+        messages.increment();
+        deliveries.add(members);
+        totalNanos.add(nanos);
+        maxNanos.accumulate(nanos);
+    }
+
+    public Stats stats() {
+        return new Stats(rooms.size(), messages.sum(), deliveries.sum(), totalNanos.sum(), maxNanos.get());
+    }
+}
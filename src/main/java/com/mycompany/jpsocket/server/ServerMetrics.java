@@ -0,0 +1,321 @@
+package com.mycompany.jpsocket.server;
+
+import java.lang.management.ManagementFactory;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.ReentrantLock;
+
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Métricas de todo el servidor: conexiones, mensajes, bytes, archivos, latencia del historial,
+ * tamaño de las colas de salida y esperas por candados. Se actualizan desde los hilos de los
+ * clientes sin candados ({@link LongAdder} y {@link LatencyHistogram}) y solo se suman al
+ * leerlas, por JMX ({@link #registerMBean()}) o en formato Prometheus ({@link #writePrometheus(StringBuilder)},
+ * que sirve {@link MetricsEndpoint}).
+ */
+public final class ServerMetrics implements ServerMetricsMXBean {
+
+    public static final String OBJECT_NAME = "com.mycompany.jpsocket:type=ServerMetrics";
+    private static final double[] QUANTILES = {0.5, 0.9, 0.99, 0.999};
+    private static final ServerMetrics SHARED = new ServerMetrics();
+
+    /** Esperas por un candado. Solo se mide el tiempo cuando el candado está ocupado. */
+    public static final class LockWait {
+        private final String name;
+        private final LatencyHistogram waits = new LatencyHistogram();
+
+        private LockWait(String name) {
+            this.name = name;
+        }
+
+        /** Equivale a {@code lock.lock()}, anotando cuánto se esperó si no estaba libre. */
+        public void lock(ReentrantLock lock) {
+            if (lock.tryLock()) {
+                return;
+            }
+            long start = System.nanoTime();
+            lock.lock();
+            waits.record(System.nanoTime() - start);
+        }
+    }
+
+    private final LongAdder connectionsOpened = new LongAdder();
+    private final LongAdder connectionsClosed = new LongAdder();
+    private final LongAdder messagesReceived = new LongAdder();
+    private final LongAdder messagesDelivered = new LongAdder();
+    private final LongAdder bytesReceived = new LongAdder();
+    private final LongAdder fileBytes = new LongAdder();
+    private final LongAdder filesCompleted = new LongAdder();
+    private final LongAdder queued = new LongAdder();
+    private final LongAdder throttled = new LongAdder();
+    private final LongAdder transfersRejected = new LongAdder();
+    private final LatencyHistogram historyLatency = new LatencyHistogram();
+    private final LockWait historyLock = new LockWait("history");
+    private final LockWait outboundLock = new LockWait("outbound");
+    private final LockWait attachmentLock = new LockWait("attachments");
+    private final List<LockWait> locks = List.of(historyLock, outboundLock, attachmentLock);
+
+    private ServerMetrics() {
+    }
+
+    public static ServerMetrics shared() {
+        return SHARED;
+    }
+
+    /** Registra las métricas en el servidor JMX de la plataforma; no falla si ya lo estaban. */
+    public void registerMBean() {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(this, name);
+            }
+        } catch (JMException e) {
+            Log.warn("No se pudieron registrar las métricas en JMX", "error", e.getMessage());
+        }
+    }
+
+    public void connectionOpened() {
+        connectionsOpened.increment();
+    }
+
+    public void connectionClosed() {
+        connectionsClosed.increment();
+    }
+
+    /** Un mensaje o trama recibido de un cliente (sin contar los bytes de archivo del protocolo antiguo). */
+    public void messageReceived() {
+        messagesReceived.increment();
+    }
+
+    /** Copias de un mensaje de chat entregadas a otros tantos clientes (incluida la del emisor). */
+    public void messagesDelivered(int count) {
+        messagesDelivered.add(count);
+    }
+
+    public void bytesReceived(long bytes) {
+        bytesReceived.add(bytes);
+    }
+
+    /** Bytes de archivo aceptados para reenviar. */
+    public void fileBytes(long bytes) {
+        fileBytes.add(bytes);
+    }
+
+    public void fileCompleted() {
+        filesCompleted.increment();
+    }
+
+    /** Mensajes que entran ({@code count > 0}) o salen ({@code count < 0}) de alguna cola de salida. */
+    public void queued(int count) {
+        queued.add(count);
+    }
+
+    /** Se dejó de leer de un cliente por superar sus límites ({@link FlowControl}). */
+    public void throttled() {
+        throttled.increment();
+    }
+
+    /** Se rechazó una subida por tener el usuario demasiadas a la vez. */
+    public void transferRejected() {
+        transfersRejected.increment();
+    }
+
+    /** Tiempo en obtener una página del historial (memoria o diario en disco). */
+    public void historyRequest(long nanos) {
+        historyLatency.record(nanos);
+    }
+
+    public LockWait historyLock() {
+        return historyLock;
+    }
+
+    public LockWait outboundLock() {
+        return outboundLock;
+    }
+
+    public LockWait attachmentLock() {
+        return attachmentLock;
+    }
+
+    @Override
+    public long getConnectionsOpened() {
+        return connectionsOpened.sum();
+    }
+
+    @Override
+    public long getActiveConnections() {
+        return connectionsOpened.sum() - connectionsClosed.sum();
+    }
+
+    @Override
+    public long getMessagesReceived() {
+        return messagesReceived.sum();
+    }
+
+    @Override
+    public long getMessagesDelivered() {
+        return messagesDelivered.sum();
+    }
+
+    @Override
+    public long getBytesReceived() {
+        return bytesReceived.sum();
+    }
+
+    @Override
+    public long getBytesSent() {
+        return WriteStats.totals().bytes();
+    }
+
+    @Override
+    public long getWriteSyscalls() {
+        return WriteStats.totals().syscalls();
+    }
+
+    @Override
+    public long getFileBytesReceived() {
+        return fileBytes.sum();
+    }
+
+    @Override
+    public long getFilesCompleted() {
+        return filesCompleted.sum();
+    }
+
+    @Override
+    public long getOutboundQueued() {
+        return Math.max(0, queued.sum()); // La suma no es atómica: puede verse negativa un instante
+    }
+
+    @Override
+    public long getHistoryRequests() {
+        return historyLatency.count();
+    }
+
+    @Override
+    public long getHistoryLatencyP50Micros() {
+        return historyLatency.percentile(0.5) / 1000;
+    }
+
+    @Override
+    public long getHistoryLatencyP99Micros() {
+        return historyLatency.percentile(0.99) / 1000;
+    }
+
+    @Override
+    public long getHistoryLatencyMaxMicros() {
+        return historyLatency.max() / 1000;
+    }
+
+    @Override
+    public long getLockWaits() {
+        long total = 0;
+        for (LockWait lock : locks) {
+            total += lock.waits.count();
+        }
+        return total;
+    }
+
+    @Override
+    public long getLockWaitP99Micros() {
+        long p99 = 0;
+        for (LockWait lock : locks) {
+            p99 = Math.max(p99, lock.waits.percentile(0.99));
+        }
+        return p99 / 1000;
+    }
+
+    @Override
+    public long getLockWaitMaxMicros() {
+        long max = 0;
+        for (LockWait lock : locks) {
+            max = Math.max(max, lock.waits.max());
+        }
+        return max / 1000;
+    }
+
+    @Override
+    public long getThrottled() {
+        return throttled.sum();
+    }
+
+    @Override
+    public long getTransfersRejected() {
+        return transfersRejected.sum();
+    }
+
+    @Override
+    public long getInflightFileBytes() {
+        return FlowControl.inflightBytes();
+    }
+
+    @Override
+    public long getLogEventsDropped() {
+        return Log.dropped();
+    }
+
+    /** Escribe todas las métricas en el formato de texto de Prometheus (tiempos en segundos). */
+    public void writePrometheus(StringBuilder out) {
+        WriteStats.Snapshot writes = WriteStats.totals();
+        counter(out, "jpsocket_connections_opened_total", "Conexiones aceptadas", connectionsOpened.sum());
+        gauge(out, "jpsocket_connections_active", "Conexiones abiertas", getActiveConnections());
+        counter(out, "jpsocket_messages_received_total", "Mensajes y tramas recibidos de los clientes", messagesReceived.sum());
+        counter(out, "jpsocket_messages_delivered_total", "Copias de mensajes de chat entregadas", messagesDelivered.sum());
+        counter(out, "jpsocket_bytes_received_total", "Bytes leídos de los sockets", bytesReceived.sum());
+        counter(out, "jpsocket_bytes_sent_total", "Bytes escritos en los sockets", writes.bytes());
+        counter(out, "jpsocket_writes_total", "Escrituras pedidas por los protocolos", writes.writes());
+        counter(out, "jpsocket_write_syscalls_total", "Escrituras reales en los sockets", writes.syscalls());
+        counter(out, "jpsocket_file_bytes_received_total", "Bytes de archivo aceptados para reenviar", fileBytes.sum());
+        counter(out, "jpsocket_files_completed_total", "Archivos recibidos completos", filesCompleted.sum());
+        gauge(out, "jpsocket_outbound_queued", "Mensajes en colas de salida sin enviar", getOutboundQueued());
+        counter(out, "jpsocket_throttled_total", "Veces que se dejó de leer de un cliente por sus límites", throttled.sum());
+        counter(out, "jpsocket_transfers_rejected_total", "Subidas rechazadas por haber demasiadas a la vez", transfersRejected.sum());
+        gauge(out, "jpsocket_inflight_file_bytes", "Bytes de archivo recibidos y aún no reenviados", FlowControl.inflightBytes());
+        counter(out, "jpsocket_log_dropped_total", "Eventos de log descartados con el buffer lleno", Log.dropped());
+        summary(out, "jpsocket_history_request_seconds", "Tiempo en obtener una página del historial", "", historyLatency, true);
+        for (LockWait lock : locks) {
+            summary(out, "jpsocket_lock_wait_seconds", "Esperas por candados ocupados",
+                    "lock=\"" + lock.name + "\"", lock.waits, lock == locks.get(0));
+        }
+    }
+
+    private static void counter(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "counter");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    private static void gauge(StringBuilder out, String name, String help, long value) {
+        header(out, name, help, "gauge");
+        out.append(name).append(' ').append(value).append('\n');
+    }
+
+    // Resumen con cuantiles; withHeader es false en las series siguientes de la misma métrica
+    private static void summary(StringBuilder out, String name, String help, String labels,
+            LatencyHistogram histogram, boolean withHeader) {
+        if (withHeader) {
+            header(out, name, help, "summary");
+        }
+        String prefix = labels.isEmpty() ? "" : labels + ",";
+        for (double quantile : QUANTILES) {
+            out.append(name).append('{').append(prefix).append("quantile=\"").append(quantile).append("\"} ")
+                    .append(seconds(histogram.percentile(quantile))).append('\n');
+        }
+        String suffix = labels.isEmpty() ? "" : "{" + labels + "}";
+        out.append(name).append("_sum").append(suffix).append(' ').append(seconds(histogram.sum())).append('\n');
+        out.append(name).append("_count").append(suffix).append(' ').append(histogram.count()).append('\n');
+    }
+
+    private static void header(StringBuilder out, String name, String help, String type) {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static String seconds(long nanos) {
+        return String.format(Locale.ROOT, "%.9f", nanos / 1e9);
+    }
+}
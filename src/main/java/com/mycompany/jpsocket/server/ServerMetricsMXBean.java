@@ -0,0 +1,55 @@
+package com.mycompany.jpsocket.server;
+
+/**
+ * Vista JMX de {@link ServerMetrics} ({@value ServerMetrics#OBJECT_NAME}), para JConsole o
+ * VisualVM. Los contadores son totales desde el arranque; las latencias van en microsegundos.
+ */
+public interface ServerMetricsMXBean {
+
+    long getConnectionsOpened();
+
+    long getActiveConnections();
+
+    long getMessagesReceived();
+
+    long getMessagesDelivered();
+
+    long getBytesReceived();
+
+    long getBytesSent();
+
+    long getWriteSyscalls();
+
+    long getFileBytesReceived();
+
+    long getFilesCompleted();
+
+    /** Mensajes encolados para enviar que todavía no han salido por el socket, en todo el servidor. */
+    long getOutboundQueued();
+
+    /** Veces que se dejó de leer de un cliente por superar sus límites de mensajes o bytes. */
+    long getThrottled();
+
+    long getTransfersRejected();
+
+    /** Bytes de archivo recibidos que aún no han salido hacia sus receptores, en todo el servidor. */
+    long getInflightFileBytes();
+
+    long getHistoryRequests();
+
+    long getHistoryLatencyP50Micros();
+
+    long getHistoryLatencyP99Micros();
+
+    long getHistoryLatencyMaxMicros();
+
+    /** Veces que un hilo tuvo que esperar por un candado (historial, colas de salida o adjuntos). */
+    long getLockWaits();
+
+    long getLockWaitP99Micros();
+
+    long getLockWaitMaxMicros();
+
+    /** Eventos de {@link Log} descartados porque el hilo que los escribe no daba abasto. */
+    long getLogEventsDropped();
+}
@@ -0,0 +1,160 @@
+package com.mycompany.jpsocket.server;
+
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.StandardOpenOption;
+
+import com.mycompany.jpsocket.protocol.Compression;
+import com.mycompany.jpsocket.protocol.FrameCodec;
+
+/**
+ * Codificación de los mensajes del servidor hacia un cliente. Cada conexión usa
+ * {@link LegacyProtocol} (cadenas {@code writeUTF}) o {@link BinaryProtocol} (tramas v2)
+ * según lo negociado al conectar; el resto del servidor solo trabaja con mensajes.
+ */
+public interface ServerProtocol {
+
+    /** Mensaje privado; {@code viewer} es quien lo recibe. */
+    void writeText(DataOutputStream out, HistoryStore.Entry entry, String viewer) throws IOException;
+
+    /**
+     * Mensaje de una sala ya codificado. Los bytes se calculan una vez por forma de codificarlo
+     * ({@link RoomMessage#encoded}) y se comparten entre todos los miembros; no deben modificarse.
+     */
+    byte[] encodeRoomText(RoomMessage message) throws IOException;
+
+    /** Mensaje de una sala, con los bytes compartidos de {@link #encodeRoomText(RoomMessage)}. */
+    default void writeRoomText(DataOutputStream out, RoomMessage message) throws IOException {
+        out.write(encodeRoomText(message));
+    }
+
+    /** Aviso del servidor sin emisor. */
+    void writeNotice(DataOutputStream out, String text) throws IOException;
+
+    /** Lista completa de usuarios conectados, sin {@code viewer}. */
+    void writeUserList(DataOutputStream out, Presence.Snapshot snapshot, String viewer) throws IOException;
+
+    /**
+     * Cambios en los usuarios conectados. Por defecto se envía la lista completa resultante,
+     * para los clientes que no entienden deltas.
+     */
+    default void writePresence(DataOutputStream out, Presence.Delta delta, String viewer) throws IOException {
+        writeUserList(out, delta.snapshot(), viewer);
+    }
+
+    /**
+     * Nombre asignado al cliente.
+     *
+     * @param credit Tramas que el cliente puede enviar antes del primer {@code CREDIT} (0: sin créditos).
+     */
+    void writeName(DataOutputStream out, String name, int credit) throws IOException;
+
+    /** Tramas más que el cliente puede enviar (ver {@link FlowControl}); por defecto no escribe nada. */
+    default void writeCredit(DataOutputStream out, int frames) throws IOException {
+        // Sin créditos, al cliente solo lo frena TCP
+    }
+
+    void writeHistoryPage(DataOutputStream out, HistoryStore.Page page, String viewer, boolean forward) throws IOException;
+
+    /** Cabecera de un archivo reenviado. */
+    void writeFileHeader(DataOutputStream out, long transferId, String fileName, String sender, String receiver, long size) throws IOException;
+
+    /**
+     * Cabecera de cada trozo de archivo (puede no escribir nada).
+     *
+     * @param offset Posición del trozo en el archivo.
+     * @param crc CRC32 de los {@code length} bytes que siguen.
+     */
+    void writeFileChunkHeader(DataOutputStream out, long transferId, long offset, int crc, int length) throws IOException;
+
+    /** Compresión acordada con el cliente, o {@code null} si no comprime. */
+    default Compression compression() {
+        return null;
+    }
+
+    /**
+     * Cabecera de un trozo de archivo ya comprimido con {@link Compression#deflate}; le siguen
+     * los {@code length} bytes comprimidos de la posición, el CRC y los datos. Solo se llama si
+     * {@link #compression()} no es {@code null}.
+     */
+    default void writeDeflatedChunkHeader(DataOutputStream out, long transferId, int length) throws IOException {
+        throw new UnsupportedOperationException("Este protocolo no comprime");
+    }
+
+    /** Posición desde la que quien sube debe seguir enviando (puede no escribir nada). */
+    void writeFileAck(DataOutputStream out, long transferId, long offset) throws IOException;
+
+    /** Cierre del archivo (puede no escribir nada). */
+    void writeFileEnd(DataOutputStream out, long transferId) throws IOException;
+
+    /**
+     * Indica si los trozos de un archivo pueden intercalarse con otros mensajes. Si no, el
+     * archivo debe estar completo antes de empezar a enviarlo.
+     */
+    default boolean interleavesFiles() {
+        return false;
+    }
+
+    /**
+     * Envía un archivo completo: cabecera, trozos de {@code chunkSize} bytes y cierre.
+     * Si el protocolo lleva CRC por trozo, cada trozo se lee una vez en un buffer que se reutiliza,
+     * se calcula su CRC y se escribe desde ahí; si no, se copia con {@link FileChannel#transferTo}.
+     *
+     * @param fileName Nombre con el que lo verá el receptor (la copia en disco puede ser temporal).
+     */
+    default void writeFile(DataOutputStream out, long transferId, File file, String fileName, String sender, String receiver, int chunkSize) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long size = channel.size();
+            writeFileHeader(out, transferId, fileName, sender, receiver, size);
+            WritableByteChannel target = Channels.newChannel(out);
+            byte[] chunk = interleavesFiles() ? new byte[(int) Math.min(chunkSize, size)] : null;
+            long position = 0;
+            while (position < size) {
+                int length = (int) Math.min(chunkSize, size - position);
+                if (chunk != null) {
+                    ByteBuffer region = ByteBuffer.wrap(chunk, 0, length);
+                    FrameCodec.readChunk(channel, position, region);
+                    writeFileChunkHeader(out, transferId, position, FrameCodec.crc(region), length);
+                    out.write(chunk, 0, length);
+                    position += length;
+                    continue;
+                }
+                writeFileChunkHeader(out, transferId, position, 0, length);
+                long end = position + length;
+                while (position < end) {
+                    long sent = channel.transferTo(position, end - position, target);
+                    if (sent <= 0) {
+                        throw new IOException("El archivo " + fileName + " se acortó durante el envío");
+                    }
+                    position += sent;
+                }
+            }
+        }
+        writeFileEnd(out, transferId);
+    }
+
+    /**
+     * Envía un archivo que ya está en memoria (ver {@link AttachmentStore.Blob#cached()}), con el
+     * mismo formato que {@link #writeFile(DataOutputStream, long, File, String, String, String, int)}.
+     */
+    default void writeFile(DataOutputStream out, long transferId, ByteBuffer data, String fileName, String sender, String receiver, int chunkSize) throws IOException {
+        ByteBuffer content = data.duplicate();
+        writeFileHeader(out, transferId, fileName, sender, receiver, content.remaining());
+        byte[] chunk = new byte[Math.min(chunkSize, content.remaining())];
+        long position = 0;
+        while (content.hasRemaining()) {
+            int length = Math.min(chunk.length, content.remaining());
+            ByteBuffer region = content.slice(content.position(), length);
+            writeFileChunkHeader(out, transferId, position, interleavesFiles() ? FrameCodec.crc(region) : 0, length);
+            content.get(chunk, 0, length);
+            out.write(chunk, 0, length);
+            position += length;
+        }
+        writeFileEnd(out, transferId);
+    }
+}
@@ -0,0 +1,98 @@
+package com.mycompany.jpsocket.server;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Predicate;
+
+/**
+ * Índice concurrente de clientes conectados por nombre. Las búsquedas para enrutar un
+ * mensaje son O(1) y no toman ningún candado; el alta y la baja son atómicas gracias a las
+ * operaciones condicionales de {@link ConcurrentHashMap}.
+ *
+ * @param <S> Tipo de sesión registrada (por ejemplo un {@code ClientHandler}).
+ */
+public class SessionRegistry<S> {
+
+    /** Caracteres máximos de un nombre de usuario (sin el sufijo que se añade si está repetido). */
+    public static final int MAX_NAME_LENGTH = 32;
+
+    private final ConcurrentHashMap<String, S> sessions = new ConcurrentHashMap<>();
+
+    /**
+     * Comprueba un nombre pedido por un cliente antes de registrarlo. No se admiten nombres vacíos,
+     * de más de {@link #MAX_NAME_LENGTH} caracteres ni con caracteres de control, {@code ','} o
+     * {@code '|'}: son los separadores de {@code USERLIST}, {@code PRESENCE}, las claves de
+     * conversación ({@code a|b}) y las peticiones de historial ({@code usuario|otro}).
+     *
+     * @return El motivo del rechazo, para avisar al cliente, o {@code null} si el nombre es válido.
+     */
+    public static String checkName(String name) {
+        if (name == null || name.isBlank()) {
+            return "el nombre está vacío";
+        }
+        if (name.length() > MAX_NAME_LENGTH) {
+            return "el nombre tiene más de " + MAX_NAME_LENGTH + " caracteres";
+        }
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (c == ',' || c == '|' || Character.isISOControl(c)) {
+                return "el nombre no puede contener comas, '|' ni caracteres de control";
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Registra una sesión. Si el nombre ya está en uso se le añade un sufijo
+     * ({@code "ana (2)"}, {@code "ana (3)"}, ...) hasta encontrar uno libre.
+     *
+     * @param requestedName Nombre enviado por el cliente.
+     * @param session Sesión a registrar.
+     * @return El nombre con el que ha quedado registrada la sesión.
+     */
+    public String register(String requestedName, S session) {
+        return register(requestedName, session, name -> false);
+    }
+
+    /**
+     * Como {@link #register(String, Object)}, saltando además los nombres que {@code reserved}
+     * indica que están en uso fuera de este índice (por ejemplo en otro nodo del clúster).
+     */
+    public String register(String requestedName, S session, Predicate<String> reserved) {
+        String name = requestedName;
+        int suffix = 2;
+        while (reserved.test(name) || sessions.putIfAbsent(name, session) != null) {
+            name = requestedName + " (" + suffix++ + ")";
+        }
+        return name;
+    }
+
+    /** Sesión registrada con ese nombre, o {@code null} si no está conectada. */
+    public S lookup(String name) {
+        return name == null ? null : sessions.get(name);
+    }
+
+    /**
+     * Da de baja la sesión solo si el nombre sigue apuntando a ella, para no borrar
+     * a otro cliente que se haya registrado después con el mismo nombre.
+     */
+    public boolean remove(String name, S session) {
+        return name != null && sessions.remove(name, session);
+    }
+
+    /** Vista de las sesiones conectadas; se puede recorrer sin candados. */
+    public Collection<S> sessions() {
+        return Collections.unmodifiableCollection(sessions.values());
+    }
+
+    /** Nombres de los clientes conectados. */
+    public Set<String> names() {
+        return Collections.unmodifiableSet(sessions.keySet());
+    }
+
+    public int size() {
+        return sessions.size();
+    }
+}
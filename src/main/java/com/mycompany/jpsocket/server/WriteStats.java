@@ -0,0 +1,66 @@
+package com.mycompany.jpsocket.server;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Contadores de escritura de una conexión: cuántas escrituras pidieron los protocolos (cada una
+ * era antes una llamada al sistema) y cuántas llegaron realmente al socket. Todo lo que cuenta
+ * una conexión se suma también a los totales del servidor ({@link #totals()}).
+ */
+public final class WriteStats {
+
+    /** Valores en un instante dado. */
+    public record Snapshot(long writes, long syscalls, long bytes) {
+        /** Llamadas al sistema ahorradas al agrupar escrituras. */
+        public long saved() {
+            return writes - syscalls;
+        }
+
+        @Override
+        public String toString() {
+            return "escrituras=" + writes + " syscalls=" + syscalls + " ahorradas=" + saved() + " bytes=" + bytes;
+        }
+    }
+
+    private static final WriteStats TOTAL = new WriteStats(null);
+
+    private final WriteStats total; // null en los totales
+    private final LongAdder writes = new LongAdder();
+    private final LongAdder syscalls = new LongAdder();
+    private final LongAdder bytes = new LongAdder();
+
+    /** Contadores de una conexión nueva. */
+    public WriteStats() {
+        this(TOTAL);
+    }
+
+    private WriteStats(WriteStats total) {
+        this.total = total;
+    }
+
+    /** Escrituras pedidas por el código que codifica los mensajes. */
+    void writes(int count) {
+        writes.add(count);
+        if (total != null) {
+            total.writes(count);
+        }
+    }
+
+    /** Una escritura real en el socket. */
+    void syscall(long written) {
+        syscalls.increment();
+        bytes.add(written);
+        if (total != null) {
+            total.syscall(written);
+        }
+    }
+
+    public Snapshot snapshot() {
+        return new Snapshot(writes.sum(), syscalls.sum(), bytes.sum());
+    }
+
+    /** Suma de todas las conexiones desde que arrancó el servidor. */
+    public static Snapshot totals() {
+        return TOTAL.snapshot();
+    }
+}